@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 
 import org.bitseal.R;
+import org.bitseal.controllers.SpeculativePubkeyResolver;
 import org.bitseal.core.AddressProcessor;
 import org.bitseal.data.Address;
 import org.bitseal.data.AddressBookRecord;
@@ -28,6 +29,8 @@ import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.Menu;
@@ -99,6 +102,9 @@ public class ComposeActivity extends Activity implements ICacheWordSubscriber
 	private int mColourG;
 	private int mColourB;
 	
+	/** Set once the message has been sent, so that the pubkey resolved for it is not cancelled */
+	private boolean mMessageSent;
+	
 	private static final String KEY_TO_ADDRESS_DIALOG_SELECTION = "toAddressDialogSelection";
 	private static final String KEY_FROM_ADDRESS_DIALOG_SELECTION = "fromAddressDialogSelection";
 	private static final String KEY_ON_PAUSE_CALLED = "onPauseCalled";
@@ -141,6 +147,7 @@ public class ComposeActivity extends Activity implements ICacheWordSubscriber
 		setColours();
 		
 		populateEditTexts();
+		resolveToAddressPubkey();
 	}
 	
 	@Override
@@ -158,6 +165,12 @@ public class ComposeActivity extends Activity implements ICacheWordSubscriber
 	{
 		super.onPause();
 		
+		// If the user has left this screen without sending the message, we no longer need the pubkey of the 'to address'
+		if (isFinishing() && mMessageSent == false)
+		{
+			SpeculativePubkeyResolver.getInstance().cancel();
+		}
+		
 		// We need to clear the saved dialog selections so that they aren't used in future openings of this activity
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
 		SharedPreferences.Editor editor = prefs.edit();
@@ -250,6 +263,51 @@ public class ComposeActivity extends Activity implements ICacheWordSubscriber
 		mFromAddressEditText = (EditText) findViewById(R.id.compose_fromAddress_EditText);
 		mSubjectEditText = (EditText) findViewById(R.id.compose_subject_EditText);
 		mBodyEditText = (EditText) findViewById(R.id.compose_body_EditText);
+		
+		mToAddressEditText.addTextChangedListener(new TextWatcher()
+		{
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after)
+			{
+			}
+			
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count)
+			{
+			}
+			
+			@Override
+			public void afterTextChanged(Editable s)
+			{
+				resolveToAddressPubkey();
+			}
+		});
+	}
+	
+	/**
+	 * If the 'to address' edit text contains a valid Bitmessage address, or the label
+	 * of one from the address book, starts retrieving the pubkey for that address in the
+	 * background. This means that the pubkey will usually be ready by the time the user
+	 * presses the 'Send' button. Working out which address the text refers to is also
+	 * done in the background, as this is called each time the text changes. 
+	 */
+	private void resolveToAddressPubkey()
+	{
+		try
+		{
+			String toAddress = mToAddressEditText.getText().toString().trim();
+			if (toAddress.equals(""))
+			{
+				return;
+			}
+			
+			SpeculativePubkeyResolver.getInstance().resolve(toAddress);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Exception occurred in ComposeActivity.resolveToAddressPubkey(). \n" +
+					"The exception messsage was: " + e.getMessage());
+		}
 	}
 	
 	/**
@@ -365,6 +423,7 @@ public class ComposeActivity extends Activity implements ICacheWordSubscriber
 		    intent.putExtra(BackgroundService.UI_REQUEST, BackgroundService.UI_REQUEST_SEND_MESSAGE);	    
 		    intent.putExtra(BackgroundService.MESSAGE_ID, messageId);	    
 		    BackgroundService.sendWakefulWork(getBaseContext(), intent);
+		    mMessageSent = true;
 			
 			Toast.makeText(getApplicationContext(), R.string.compose_toast_sending_message, Toast.LENGTH_LONG).show();
 			
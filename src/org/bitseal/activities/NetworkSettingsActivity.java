@@ -53,6 +53,7 @@ public class NetworkSettingsActivity extends ListActivity implements ICacheWordS
 	private Button mAddNewServerButton;
 	private Button mRestoreDefaultServersButton;
 	private TextView mListItemUrlTextView;
+	private TextView mListItemScoreTextView;
     private ListView mServersListView;
     
     private ArrayList<ServerRecord> mServerRecords;
@@ -616,6 +617,17 @@ public class NetworkSettingsActivity extends ListActivity implements ICacheWordS
             mListItemUrlTextView = (TextView)convertView.findViewById(R.id.servers_list_item_url_textview);
             
             mListItemUrlTextView.setText(s.getURL());
+            
+            // Show the latency and reliability scores of this server
+            mListItemScoreTextView = (TextView)convertView.findViewById(R.id.servers_list_item_score_textview);
+            if (s.getLatency() > 0)
+            {
+            	mListItemScoreTextView.setText(getString(R.string.network_settings_server_score, Math.round(s.getLatency()), Math.round(s.getSuccessRate() * 100)));
+            }
+            else
+            {
+            	mListItemScoreTextView.setText(R.string.network_settings_server_score_unknown);
+            }
 
             return convertView;
         }
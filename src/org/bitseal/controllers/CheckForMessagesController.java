@@ -1,28 +1,36 @@
 package org.bitseal.controllers;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.bitseal.core.AckProcessor;
 import org.bitseal.core.App;
 import org.bitseal.core.IncomingMessageProcessor;
+import org.bitseal.core.ObjectProcessor;
+import org.bitseal.data.BMObject;
 import org.bitseal.data.Message;
 import org.bitseal.data.Payload;
+import org.bitseal.database.DatabaseContentProvider;
 import org.bitseal.database.MessageProvider;
 import org.bitseal.database.PayloadProvider;
 import org.bitseal.database.PayloadsTable;
+import org.bitseal.network.DownloadedMsgHandler;
 import org.bitseal.network.ServerCommunicator;
 import org.bitseal.services.NotificationsService;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
+import android.util.Base64;
 import android.util.Log;
 
 /**
  * This class controls the operations necessary to check whether
  * any new messages are available from servers and to process any
- * new messages that are retrieved.
+ * new messages that are retrieved. These operations are carried out
+ * by the stages of the IncomingMessagePipeline.
  * 
  * @author Jonathan Coe
  */
@@ -31,84 +39,189 @@ public class CheckForMessagesController
 	/** Used when broadcasting Intents to the UI so that it can refresh the data it is displaying */
 	private static final String UI_NOTIFICATION = "uiNotification";
 	
+	/** A key used to store the time of the last successful 'check for new msgs' server request */
+	private static final String LAST_MSG_CHECK_TIME = "lastMsgCheckTime";
+	
 	/** Stores the Unix timestamp of the last msg payload we processed. This can be used to tell us how far behind the network we are. */
 	private static final String LAST_PROCESSED_MSG_TIME = "lastProcessedMsgTime";
 	
+	/** Held while a batch of processed msgs is committed, so that the duplicate message check and the insert cannot be interleaved */
+	private static final Object COMMIT_LOCK = new Object();
+	
 	private static final String TAG = "CHECK_FOR_MESSAGES_CONTROLLER";
 	
 	/**
-	 * Polls one or more servers to check whether any new messages are available. 
+	 * Polls one or more servers to check whether any new msgs were received
+	 * during the given time window.
+	 * 
+	 * Each msg is passed to the given handler as soon as it has been downloaded.
+	 * 
+	 * @param receivedSinceTime - The start of the time window
+	 * @param receivedBeforeTime - The end of the time window
+	 * @param serverOffset - The number of places to move down the list of servers 
+	 * before making the first request, so that concurrent downloads use different servers
+	 * @param handler - The DownloadedMsgHandler to pass each msg to
+	 * 
+	 * @return The number of msgs returned by the server(s)
+	 * 
+	 * @throws InterruptedException If the handler is interrupted while handling a msg
 	 */
-	public void checkServerForMessages()
+	public int downloadMsgs(long receivedSinceTime, long receivedBeforeTime, int serverOffset, DownloadedMsgHandler handler) throws InterruptedException
 	{
-		new ServerCommunicator().checkServerForNewMsgs();
+		return new ServerCommunicator().downloadNewMsgs(receivedSinceTime, receivedBeforeTime, serverOffset, handler);
 	}
 	
 	/**
-	 * Processes one or more msg payloads that have been sent to me
-	 *  
-	 * @return An int representing the number of new messages successfully processed
+	 * Checks whether we have already received the given msg
+	 * 
+	 * @param msgBytes - A byte[] containing the msg data
+	 * 
+	 * @return A boolean indicating whether or not the msg is new to us
 	 */
-	public int processIncomingMessages()
+	public boolean isNewMsg(byte[] msgBytes)
 	{
-		int newMessagesReceived = 0;
-		
-		// Search the database for the Payloads of any possible new msgs
+		String msgBase64 = Base64.encodeToString(msgBytes, Base64.DEFAULT);
 		PayloadProvider payProv = PayloadProvider.get(App.getContext());
-		String[] columnNames = new String[]{PayloadsTable.COLUMN_TYPE, PayloadsTable.COLUMN_BELONGS_TO_ME, PayloadsTable.COLUMN_PROCESSING_COMPLETE};
-		String[] searchTerms = new String[]{Payload.OBJECT_TYPE_MSG, "0", "0"}; // Zero stands for false in the database
-		ArrayList<Payload> msgsToProcess = payProv.searchPayloads(columnNames, searchTerms);
+		ArrayList<Payload> retrievedPayloads = payProv.searchPayloads(PayloadsTable.COLUMN_PAYLOAD, msgBase64);
+		return retrievedPayloads.size() == 0;
+	}
+	
+	/**
+	 * Parses the given msg data, checking its expiration time and POW
+	 * 
+	 * @param msgBytes - A byte[] containing the msg data
+	 * 
+	 * @return A BMObject containing the parsed msg, or null if the msg was
+	 * found to be invalid
+	 */
+	public BMObject verifyMsg(byte[] msgBytes)
+	{
+		try
+		{
+			return new ObjectProcessor().parseObject(msgBytes);
+		}
+		catch (RuntimeException runEx)
+		{
+			Log.i(TAG, "RuntimeException occurred in CheckForMessagesController.verifyMsg().\n" +
+					"The exception message was: " + runEx.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Attempts to decrypt the given msg using each of our addresses. If the
+	 * msg is an acknowledgement, it is processed as such. If the msg contains
+	 * a new message for us, the decrypted Message and its acknowledgement data
+	 * are stored in the given IncomingObject.
+	 * 
+	 * @param object - The IncomingObject containing the parsed msg
+	 */
+	void decryptMsg(IncomingObject object)
+	{
+		IncomingMessageProcessor processor = new IncomingMessageProcessor();
+		Message decryptedMessage = processor.processReceivedMsg(object.getMsgObject());
+		if (decryptedMessage != null)
+		{
+			object.setMessage(decryptedMessage);
+			object.setAckPayload(processor.getAckPayload());
+		}
+	}
+	
+	/**
+	 * Saves the results of processing a batch of msgs to the database in a single
+	 * transaction. Any new messages and their acknowledgement data are saved, and 
+	 * each msg itself is recorded as processed so that it will not be processed 
+	 * again. The user is then notified of any new messages. <br><br>
+	 * 
+	 * The msgs are decrypted concurrently, before any of the new messages have been
+	 * saved, so each new message is checked again here for duplicates, both within 
+	 * the batch and in the database. 
+	 * 
+	 * @param objects - An ArrayList containing the IncomingObjects to commit
+	 */
+	void commitProcessedMsgs(ArrayList<IncomingObject> objects)
+	{
+		MessageProvider msgProv = MessageProvider.get(App.getContext());
+		PayloadProvider payProv = PayloadProvider.get(App.getContext());
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		HashSet<String> fingerprintsInBatch = new HashSet<String>();
+		int newMessagesReceived = 0;
 		
-		// At this point we have selected all the msg payloads received by me which have not been processed yet. Now process them. 
-		ArrayList<Payload> processedMsgs = new ArrayList<Payload>();
-		for (Payload p : msgsToProcess)
+		synchronized (COMMIT_LOCK)
 		{
-			Message decryptedMessage = new IncomingMessageProcessor().processReceivedMsg(p);
-			
-			if (decryptedMessage != null) // If the message was decrypted and authenticated successfully
+			for (IncomingObject object : objects)
 			{
-				newMessagesReceived ++;
+				Message message = object.getMessage();
+				if (message != null) // If the message was decrypted and authenticated successfully
+				{
+					if (fingerprintsInBatch.add(MessageProvider.calculateFingerprint(message)) == false || msgProv.detectDuplicateMessage(message))
+					{
+						Log.d(TAG, "A new message with subject " + message.getSubject() + " is a duplicate of a message received in the same batch or already saved. " +
+								"It will therefore be ignored.");
+						message = null;
+					}
+				}
 				
-				// Save the decrypted Message to the database
-				MessageProvider.get(App.getContext()).addMessage(decryptedMessage);
+				if (message != null)
+				{
+					newMessagesReceived ++;
+					operations.add(msgProv.buildAddOperation(message));
+					
+					// Save the acknowledgement data of this message so that we can send it later
+					if (object.getAckPayload() != null)
+					{
+						operations.add(payProv.buildAddOperation(object.getAckPayload()));
+					}
+				}
 				
-				// Update the UI
-				App.getContext().sendBroadcast(new Intent(UI_NOTIFICATION));
+				// Record the msg payload as processed so that it won't be processed again
+				if (object.getPayloadId() == 0)
+				{
+					Payload msgPayload = new Payload();
+					msgPayload.setBelongsToMe(false);
+					msgPayload.setProcessingComplete(true);
+					msgPayload.setType(Payload.OBJECT_TYPE_MSG);
+					msgPayload.setPayload(object.getObjectBytes());
+					operations.add(payProv.buildAddOperation(msgPayload));
+				}
+				else
+				{
+					operations.add(payProv.buildProcessingCompleteOperation(object.getPayloadId()));
+				}
 			}
 			
-			processedMsgs.add(p);
-		}
-		
-		// Update all the processed Payload records so that they won't be processed again
-		for (Payload p : processedMsgs)
-		{
-			p.setProcessingComplete(true);
-			payProv.updatePayload(p);
-		}
-		
-		if (processedMsgs.size() > 0)
-		{
-			// If we have processed at least 1 message, use the time value of the last processed message to set a
-			// variable that tells us how far behind the network we are  
-			Payload lastMsgPayload = processedMsgs.get(processedMsgs.size() - 1);
-			long lastProcessedMsgTime = lastMsgPayload.getTime();
-			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
-			SharedPreferences.Editor editor = prefs.edit();
-		    editor.putLong(LAST_PROCESSED_MSG_TIME, lastProcessedMsgTime);
-		    editor.commit();
-			Log.i(TAG, "Updated the 'last processed msg time' value stored in SharedPreferences to " + lastProcessedMsgTime);
+			DatabaseContentProvider.applyOperations(operations);
 		}
+		Log.i(TAG, "Committed a batch of " + objects.size() + " processed msg(s), containing " + newMessagesReceived + " new message(s)");
 		
 		if (newMessagesReceived > 0)
 		{
+			// Update the UI
+			App.getContext().sendBroadcast(new Intent(UI_NOTIFICATION));
+			
 			// Display a notification for any new message(s) we have received
 			Context appContext = App.getContext();
 			Intent intent = new Intent(appContext, NotificationsService.class);
 		    intent.putExtra(NotificationsService.EXTRA_DISPLAY_NEW_MESSAGES_NOTIFICATION, newMessagesReceived);
 		    appContext.startService(intent);
 		}
-		
-		return processedMsgs.size();
+	}
+	
+	/**
+	 * Records that all msgs received before the given time have been downloaded
+	 * and processed
+	 * 
+	 * @param receivedBeforeTime - The end of the last time window that has been
+	 * completely downloaded and processed
+	 */
+	public void recordMsgCheckTime(long receivedBeforeTime)
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		SharedPreferences.Editor editor = prefs.edit();
+	    editor.putLong(LAST_MSG_CHECK_TIME, receivedBeforeTime);
+	    editor.putLong(LAST_PROCESSED_MSG_TIME, receivedBeforeTime);
+	    editor.commit();
+		Log.i(TAG, "Updated the 'last successful msg check time' and 'last processed msg time' values stored in SharedPreferences to " + receivedBeforeTime);
 	}
 	
 	/**
@@ -116,10 +229,10 @@ public class CheckForMessagesController
 	 * sent by me for messages that I have received
 	 * 
 	 * @return - A boolean indicating whether or not all outstanding acknowledgements
-	 * were successfully processed 
+	 * were successfully processed
 	 */
 	public boolean sendAcknowledgments()
 	{
 		return new AckProcessor().sendAcknowledgments();
 	}
-}
\ No newline at end of file
+}
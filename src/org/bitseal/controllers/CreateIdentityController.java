@@ -1,5 +1,7 @@
 package org.bitseal.controllers;
 
+import java.util.ArrayList;
+
 import org.bitseal.core.PubkeyProcessor;
 import org.bitseal.crypt.PubkeyGenerator;
 import org.bitseal.data.Address;
@@ -64,4 +66,34 @@ public class CreateIdentityController
 		
 		return disseminationSuccessful;
 	}
+	
+	/**
+	 * Attempts to disseminate several pubkeys to the Bitmessage network, sending
+	 * them to servers in batches. 
+	 * 
+	 * @param pubkeyPayloads - The pubkey payloads to be sent across the network
+	 * @param POWDone - A boolean indicating whether or not proof of work has
+	 * been done for these pubkeys. If not, a server will be expected to do the 
+	 * proof of work. 
+	 * 
+	 * @return A boolean[] indicating whether or not each pubkey was successfully
+	 * disseminated to the network, in the same order as the given payloads
+	 */
+	public boolean[] disseminatePubkeys(ArrayList<Payload> pubkeyPayloads, boolean POWDone)
+	{
+		ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+		for (Payload p : pubkeyPayloads)
+		{
+			payloads.add(p.getPayload());
+		}
+		
+		if (POWDone)
+		{
+			return new ServerCommunicator().disseminatePubkeys(payloads);
+		}
+		else
+		{
+			return new ServerCommunicator().disseminatePubkeysNoPOW(payloads);
+		}
+	}
 } 
\ No newline at end of file
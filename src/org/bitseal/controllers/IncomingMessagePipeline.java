@@ -0,0 +1,545 @@
+package org.bitseal.controllers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bitseal.core.App;
+import org.bitseal.data.BMObject;
+import org.bitseal.data.Payload;
+import org.bitseal.database.PayloadIterator;
+import org.bitseal.database.PayloadProvider;
+import org.bitseal.database.PayloadsTable;
+import org.bitseal.network.DownloadedMsgHandler;
+import org.bitseal.network.NetworkHelper;
+import org.bitseal.network.ServerCommunicator;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * A Singleton class that downloads and processes new msgs using a
+ * pipeline of four stages: <br><br>
+ * 
+ * 1) Download - Fetches the msgs received by servers during a given time window<br>
+ * 2) Verify - Checks the expiration time and POW of each msg<br>
+ * 3) Decrypt - Attempts to decrypt each msg using each of our addresses<br>
+ * 4) Commit - Saves the results of processing a batch of msgs to the database in a single transaction<br><br>
+ * 
+ * The stages are connected by bounded queues, so if a later stage falls behind
+ * then the earlier stages will block, pausing downloads until it has caught up.
+ * Msgs are passed between stages in memory. <br><br>
+ * 
+ * When we are a long way behind the network, the missing time is split into 
+ * windows which are downloaded concurrently, each starting with a different
+ * server. Windows may therefore finish out of order. A window is only recorded 
+ * as checked once every msg in it has been committed, and the 'last msg check
+ * time' is only advanced once every earlier window has been checked too. Windows
+ * which finish early are kept in a SyncGapList until then.
+ * 
+ * @author Jonathan Coe
+ */
+public class IncomingMessagePipeline
+{
+	/** Defines the minimum amount of time (in seconds) behind the network for which we will make a 'check for new msgs' server request */
+	private static final int MINIMUM_TIME_BEHIND_NETWORK = 30;
+	
+	/** A key used to store the time of the last successful 'check for new msgs' server request */
+	private static final String LAST_MSG_CHECK_TIME = "lastMsgCheckTime";
+	
+	// Keys which can be used to override the number of worker threads used for each stage
+	public static final String KEY_DOWNLOAD_THREADS = "pipelineDownloadThreads";
+	public static final String KEY_VERIFY_THREADS = "pipelineVerifyThreads";
+	public static final String KEY_DECRYPT_THREADS = "pipelineDecryptThreads";
+	public static final String KEY_COMMIT_THREADS = "pipelineCommitThreads";
+	
+	// The default number of worker threads used for each stage. The number of download threads is the maximum number of windows which will be downloaded at once.
+	private static final int DEFAULT_DOWNLOAD_THREADS = 3;
+	private static final int DEFAULT_VERIFY_THREADS = 1;
+	private static final int DEFAULT_DECRYPT_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int DEFAULT_COMMIT_THREADS = 1;
+	
+	/** The maximum number of time windows which may be waiting to be downloaded */
+	private static final int DOWNLOAD_QUEUE_CAPACITY = 2;
+	
+	/** The maximum number of msgs which may be waiting in each of the processing stages. Msgs may be up to 256 KB in size. */
+	private static final int MSG_QUEUE_CAPACITY = 32;
+	
+	/** The maximum number of processed msgs which will be saved to the database in a single transaction */
+	private static final int COMMIT_BATCH_SIZE = 32;
+	
+	/** The maximum number of unprocessed msgs which will be read from the database at once */
+	private static final int UNPROCESSED_MSGS_PAGE_SIZE = 32;
+	
+	/** The amount of time in milliseconds between each check that the stages are still running while waiting for the pipeline to finish */
+	private static final long STAGE_CHECK_INTERVAL = 30000; // Currently set to 30 seconds
+	
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	
+	private final CheckForMessagesController controller = new CheckForMessagesController();
+	
+	/** Keys of the msgs which are currently in the pipeline, used to avoid processing the same msg twice */
+	private final HashSet<ByteBuffer> msgsInPipeline = new HashSet<ByteBuffer>();
+	
+	/** The time windows which have been checked, but which the 'last msg check time' cannot yet be advanced over */
+	private SyncGapList gapList;
+	
+	/** The number of time windows and msgs that are currently in the pipeline */
+	private int outstandingWork;
+	private final Object workLock = new Object();
+	
+	private volatile boolean downloadFailed;
+	
+	private PipelineStage<SyncWindow> downloadStage;
+	private PipelineStage<IncomingObject> verifyStage;
+	private PipelineStage<IncomingObject> decryptStage;
+	private PipelineStage<IncomingObject> commitStage;
+	
+	private static final String TAG = "INCOMING_MESSAGE_PIPELINE";
+	
+	private static class Holder
+    {
+        static final IncomingMessagePipeline INSTANCE = new IncomingMessagePipeline();
+    }
+	
+	/**
+	 * Returns a singleton instance of the IncomingMessagePipeline. This ensures that
+	 * only one instance of the pipeline will ever exist at once.
+	 */
+	public static IncomingMessagePipeline getInstance()
+	{
+		return Holder.INSTANCE;
+	}
+	
+	private IncomingMessagePipeline()
+	{
+		// Private to enforce the singleton pattern
+	}
+	
+	/**
+	 * Starts a run of the pipeline, in such a way that it will only be started if
+	 * it is not already running. The run finishes once we have caught up with the
+	 * network (or can make no further progress) and all downloaded msgs have been
+	 * processed.
+	 */
+	public void start()
+	{
+		if (running.compareAndSet(false, true) == false)
+		{
+			Log.d(TAG, "IncomingMessagePipeline.start() was called, but the pipeline is already running.");
+			return;
+		}
+		
+		new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Log.i(TAG, "Starting incoming message pipeline.");
+					startStages();
+					queueUnprocessedMsgs();
+					queueTimeWindows();
+					awaitCompletion();
+					Log.i(TAG, "Incoming message pipeline finished. " + getMetricsSummary());
+					
+					// Attempt to send any pending acknowledgements
+					controller.sendAcknowledgments();
+				}
+				catch (Exception e)
+				{
+					Log.e(TAG, "Exception occurred in IncomingMessagePipeline.start(). The exception message was:\n"
+							+ e.getMessage());
+				}
+				finally
+				{
+					stopStages();
+					running.set(false);
+				}
+			}
+		}, "IncomingMessagePipeline").start();
+	}
+	
+	/**
+	 * Returns a boolean indicating whether or not the pipeline is currently running
+	 */
+	public boolean isRunning()
+	{
+		return running.get();
+	}
+	
+	/**
+	 * Returns the stages of the current (or most recent) run of the pipeline, in order. 
+	 * This can be used to inspect the throughput and queue depth of each stage. Returns 
+	 * an empty list if the pipeline has not been run yet.
+	 */
+	public synchronized ArrayList<PipelineStage<?>> getStages()
+	{
+		ArrayList<PipelineStage<?>> stages = new ArrayList<PipelineStage<?>>();
+		if (downloadStage != null)
+		{
+			stages.add(downloadStage);
+			stages.add(verifyStage);
+			stages.add(decryptStage);
+			stages.add(commitStage);
+		}
+		return stages;
+	}
+	
+	/**
+	 * Returns a String describing the current metrics of each stage in the pipeline
+	 */
+	public String getMetricsSummary()
+	{
+		StringBuilder summary = new StringBuilder("Pipeline metrics:");
+		for (PipelineStage<?> stage : getStages())
+		{
+			summary.append("\n").append(stage.getMetricsSummary());
+		}
+		return summary.toString();
+	}
+	
+	/**
+	 * Creates and starts the stages of the pipeline
+	 */
+	private synchronized void startStages()
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		downloadFailed = false;
+		
+		downloadStage = new PipelineStage<SyncWindow>("Download", DOWNLOAD_QUEUE_CAPACITY, prefs.getInt(KEY_DOWNLOAD_THREADS, DEFAULT_DOWNLOAD_THREADS))
+		{
+			@Override
+			protected void process(SyncWindow window) throws InterruptedException
+			{
+				downloadWindow(window);
+			}
+			
+			@Override
+			protected void onProcessingFailed(SyncWindow window, Throwable e)
+			{
+				// If we could not download this window, we cannot advance the 'last msg check time' past it
+				downloadFailed = true;
+				window.setFailed(true);
+				finishWindowWork(window);
+				finishOutstandingWork();
+			}
+		};
+		
+		verifyStage = new PipelineStage<IncomingObject>("Verify", MSG_QUEUE_CAPACITY, prefs.getInt(KEY_VERIFY_THREADS, DEFAULT_VERIFY_THREADS))
+		{
+			@Override
+			protected void process(IncomingObject object) throws InterruptedException
+			{
+				BMObject msgObject = controller.verifyMsg(object.getObjectBytes());
+				if (msgObject == null)
+				{
+					// The msg is invalid. Record it as processed so that we will not download it again.
+					commitStage.submit(object);
+				}
+				else
+				{
+					object.setMsgObject(msgObject);
+					decryptStage.submit(object);
+				}
+			}
+			
+			@Override
+			protected void onProcessingFailed(IncomingObject object, Throwable e)
+			{
+				// This msg was not processed, so we cannot advance the 'last msg check time' past its window
+				failMsg(object);
+			}
+		};
+		
+		decryptStage = new PipelineStage<IncomingObject>("Decrypt", MSG_QUEUE_CAPACITY, prefs.getInt(KEY_DECRYPT_THREADS, DEFAULT_DECRYPT_THREADS))
+		{
+			@Override
+			protected void process(IncomingObject object) throws InterruptedException
+			{
+				controller.decryptMsg(object);
+				commitStage.submit(object);
+			}
+			
+			@Override
+			protected void onProcessingFailed(IncomingObject object, Throwable e)
+			{
+				// This msg was not processed, so we cannot advance the 'last msg check time' past its window
+				failMsg(object);
+			}
+		};
+		
+		commitStage = new PipelineStage<IncomingObject>("Commit", MSG_QUEUE_CAPACITY, prefs.getInt(KEY_COMMIT_THREADS, DEFAULT_COMMIT_THREADS), COMMIT_BATCH_SIZE)
+		{
+			@Override
+			protected void process(IncomingObject object) throws InterruptedException
+			{
+				ArrayList<IncomingObject> objects = new ArrayList<IncomingObject>();
+				objects.add(object);
+				processBatch(objects);
+			}
+			
+			@Override
+			protected void processBatch(ArrayList<IncomingObject> objects) throws InterruptedException
+			{
+				controller.commitProcessedMsgs(objects);
+				for (IncomingObject object : objects)
+				{
+					finishMsg(object);
+				}
+			}
+			
+			@Override
+			protected void onProcessingFailed(IncomingObject object, Throwable e)
+			{
+				// The results of processing this msg were not saved, so we cannot advance the 'last msg check time' past its window
+				failMsg(object);
+			}
+		};
+		
+		commitStage.start();
+		decryptStage.start();
+		verifyStage.start();
+		downloadStage.start();
+	}
+	
+	/**
+	 * Stops all the stages of the pipeline
+	 */
+	private synchronized void stopStages()
+	{
+		if (downloadStage != null)
+		{
+			downloadStage.stop();
+			verifyStage.stop();
+			decryptStage.stop();
+			commitStage.stop();
+		}
+		synchronized (msgsInPipeline)
+		{
+			msgsInPipeline.clear();
+		}
+		synchronized (workLock)
+		{
+			outstandingWork = 0;
+		}
+	}
+	
+	/**
+	 * Feeds any msgs which were saved to the database but never processed
+	 * into the pipeline. The msgs are read from the database one page at a 
+	 * time, so only a small number of them are held in memory at once. 
+	 */
+	private void queueUnprocessedMsgs() throws InterruptedException
+	{
+		PayloadProvider payProv = PayloadProvider.get(App.getContext());
+		String[] columnNames = new String[]{PayloadsTable.COLUMN_TYPE, PayloadsTable.COLUMN_BELONGS_TO_ME, PayloadsTable.COLUMN_PROCESSING_COMPLETE};
+		String[] searchTerms = new String[]{Payload.OBJECT_TYPE_MSG, "0", "0"}; // Zero stands for false in the database
+		PayloadIterator msgsToProcess = payProv.iteratePayloads(columnNames, searchTerms, UNPROCESSED_MSGS_PAGE_SIZE);
+		
+		while (msgsToProcess.hasNext())
+		{
+			Payload p = msgsToProcess.next();
+			submitMsg(new IncomingObject(p.getPayload(), p.getId(), null));
+		}
+	}
+	
+	/**
+	 * Creates a time window for each period we have not yet checked for new msgs,
+	 * feeding them into the download stage. Any period which was already checked 
+	 * in an earlier run is skipped. This will block if the download stage is busy, 
+	 * so windows are only created as they are needed.
+	 */
+	private void queueTimeWindows() throws InterruptedException
+	{
+		ServerCommunicator servCom = new ServerCommunicator();
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		gapList = new SyncGapList();
+		long nextWindowTime = gapList.getNextUncheckedTime(prefs.getLong(LAST_MSG_CHECK_TIME, 0));
+		long currentTime = System.currentTimeMillis() / 1000;
+		int sequenceNumber = 0;
+		
+		// Check whether we are significantly behind in checking for new msgs. If we are AND there is an internet connection available
+	    // then we should keep downloading new msgs
+		while (((currentTime - nextWindowTime) > MINIMUM_TIME_BEHIND_NETWORK) && (downloadFailed == false) && (NetworkHelper.checkInternetAvailability() == true))
+		{
+			long receivedSinceTime = servCom.calculateReceivedSinceTime(nextWindowTime);
+			long receivedBeforeTime = servCom.calculateReceivedBeforeTime(receivedSinceTime);
+			
+			// Stop this window where the next period that has already been checked begins
+			long nextCompletedWindowStart = gapList.getNextCompletedWindowStart(nextWindowTime);
+			if (nextCompletedWindowStart != -1 && receivedBeforeTime > nextCompletedWindowStart)
+			{
+				receivedBeforeTime = nextCompletedWindowStart;
+			}
+			
+			SyncWindow window = new SyncWindow(nextWindowTime, receivedSinceTime, receivedBeforeTime, sequenceNumber);
+			sequenceNumber ++;
+			addOutstandingWork();
+			downloadStage.submit(window);
+			
+			nextWindowTime = gapList.getNextUncheckedTime(receivedBeforeTime);
+			currentTime = System.currentTimeMillis() / 1000;
+		}
+	}
+	
+	/**
+	 * Downloads the msgs for the given time window and feeds any new ones into
+	 * the verify stage
+	 */
+	private void downloadWindow(final SyncWindow window) throws InterruptedException
+	{
+		if (downloadFailed)
+		{
+			// An earlier window failed, so there is no point in downloading this one now
+			window.setFailed(true);
+			finishWindowWork(window);
+			finishOutstandingWork();
+			return;
+		}
+		
+		// Feed each msg into the pipeline as soon as it has been downloaded
+		final int[] newMsgs = new int[1];
+		int msgsDownloaded = controller.downloadMsgs(window.getReceivedSinceTime(), window.getReceivedBeforeTime(), window.getSequenceNumber(), new DownloadedMsgHandler()
+		{
+			@Override
+			public void onMsgDownloaded(byte[] msgBytes) throws InterruptedException
+			{
+				IncomingObject object = new IncomingObject(msgBytes, 0, window);
+				if (controller.isNewMsg(msgBytes) && submitMsg(object))
+				{
+					newMsgs[0] ++;
+				}
+			}
+		});
+		Log.d(TAG, "Out of the " + msgsDownloaded + " msg payloads returned by the server, " + newMsgs[0] + " were new.");
+		
+		finishWindowWork(window);
+		finishOutstandingWork();
+	}
+	
+	/**
+	 * Feeds a msg into the verify stage, unless the same msg is already in the pipeline
+	 * 
+	 * @return A boolean indicating whether or not the msg was added to the pipeline
+	 */
+	private boolean submitMsg(IncomingObject object) throws InterruptedException
+	{
+		synchronized (msgsInPipeline)
+		{
+			if (msgsInPipeline.add(object.getKey()) == false)
+			{
+				return false;
+			}
+		}
+		if (object.getWindow() != null)
+		{
+			object.getWindow().addPendingWork();
+		}
+		addOutstandingWork();
+		verifyStage.submit(object);
+		return true;
+	}
+	
+	/**
+	 * Records that a msg has left the pipeline
+	 */
+	private void finishMsg(IncomingObject object)
+	{
+		synchronized (msgsInPipeline)
+		{
+			msgsInPipeline.remove(object.getKey());
+		}
+		if (object.getWindow() != null)
+		{
+			finishWindowWork(object.getWindow());
+		}
+		finishOutstandingWork();
+	}
+	
+	/**
+	 * Records that the given msg could not be processed. The window it was downloaded
+	 * in is marked as failed, so that the msg will be downloaded again next time.
+	 */
+	private void failMsg(IncomingObject object)
+	{
+		if (object.getWindow() != null)
+		{
+			object.getWindow().setFailed(true);
+		}
+		finishMsg(object);
+	}
+	
+	/**
+	 * Records that a piece of work for the given window has finished. Once all
+	 * the work for a window has finished, the window is added to the gap list and
+	 * the 'last msg check time' is advanced over every consecutive completed window. 
+	 * A window which failed is not recorded, so the 'last msg check time' cannot be
+	 * advanced past it.
+	 */
+	private void finishWindowWork(SyncWindow window)
+	{
+		if (window.finishPendingWork() && (window.isFailed() == false))
+		{
+			synchronized (gapList)
+			{
+				SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+				long lastMsgCheckTime = prefs.getLong(LAST_MSG_CHECK_TIME, 0);
+				long newMsgCheckTime = gapList.recordCompletedWindow(window.getStartTime(), window.getReceivedBeforeTime(), lastMsgCheckTime);
+				if (newMsgCheckTime > lastMsgCheckTime)
+				{
+					controller.recordMsgCheckTime(newMsgCheckTime);
+				}
+			}
+		}
+	}
+	
+	private void addOutstandingWork()
+	{
+		synchronized (workLock)
+		{
+			outstandingWork ++;
+		}
+	}
+	
+	private void finishOutstandingWork()
+	{
+		synchronized (workLock)
+		{
+			outstandingWork --;
+			if (outstandingWork <= 0)
+			{
+				workLock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Blocks until all the work in the pipeline has finished. If any of the stages
+	 * has stopped running, the work can never finish, so a RuntimeException is thrown
+	 * instead.
+	 */
+	private void awaitCompletion() throws InterruptedException
+	{
+		synchronized (workLock)
+		{
+			while (outstandingWork > 0)
+			{
+				workLock.wait(STAGE_CHECK_INTERVAL);
+				if (outstandingWork > 0)
+				{
+					for (PipelineStage<?> stage : getStages())
+					{
+						if (stage.isAlive() == false)
+						{
+							throw new RuntimeException("The " + stage.getName() + " stage of the pipeline has stopped running with " + outstandingWork + " item(s) of work still outstanding");
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package org.bitseal.controllers;
+
+import java.nio.ByteBuffer;
+
+import org.bitseal.data.BMObject;
+import org.bitseal.data.Message;
+import org.bitseal.data.Payload;
+
+/**
+ * Holds the data for a single msg as it moves through the stages of
+ * the incoming message pipeline, so that it does not need to be written
+ * to and read back from the database between stages. 
+ * 
+ * @author Jonathan Coe
+ */
+class IncomingObject
+{
+	private final byte[] objectBytes;
+	private final long payloadId; // The ID of an existing Payload record for this msg, or 0 if it has not been saved yet
+	private final SyncWindow window; // The window this msg was downloaded in, or null if it was loaded from the database
+	private BMObject msgObject;
+	private Message message;
+	private Payload ackPayload;
+	
+	IncomingObject(byte[] objectBytes, long payloadId, SyncWindow window)
+	{
+		this.objectBytes = objectBytes;
+		this.payloadId = payloadId;
+		this.window = window;
+	}
+	
+	/**
+	 * Returns a key which can be used to detect duplicate copies of
+	 * this msg. Two keys are equal if the msg bytes are equal.
+	 */
+	ByteBuffer getKey()
+	{
+		return ByteBuffer.wrap(objectBytes);
+	}
+	
+	byte[] getObjectBytes()
+	{
+		return objectBytes;
+	}
+	
+	long getPayloadId()
+	{
+		return payloadId;
+	}
+	
+	SyncWindow getWindow()
+	{
+		return window;
+	}
+	
+	BMObject getMsgObject()
+	{
+		return msgObject;
+	}
+	
+	void setMsgObject(BMObject msgObject)
+	{
+		this.msgObject = msgObject;
+	}
+	
+	Message getMessage()
+	{
+		return message;
+	}
+	
+	void setMessage(Message message)
+	{
+		this.message = message;
+	}
+	
+	Payload getAckPayload()
+	{
+		return ackPayload;
+	}
+	
+	void setAckPayload(Payload ackPayload)
+	{
+		this.ackPayload = ackPayload;
+	}
+}
@@ -0,0 +1,295 @@
+package org.bitseal.controllers;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A single stage of a processing pipeline. Each stage has a bounded input
+ * queue and a configurable number of worker threads which take items from
+ * that queue and process them. <br><br>
+ * 
+ * Because the input queue is bounded, a stage which falls behind will cause
+ * the stages feeding it to block when they try to submit more items. This
+ * provides backpressure throughout the pipeline.
+ * 
+ * @param <T> - The type of item processed by this stage
+ * 
+ * @author Jonathan Coe
+ */
+public abstract class PipelineStage<T>
+{
+	private final String name;
+	private final int parallelism;
+	private final int maxBatchSize;
+	private final BlockingQueue<T> queue;
+	private final AtomicLong itemsProcessed;
+	private final AtomicLong itemsFailed;
+	private Thread[] workers;
+	private long startTime;
+	
+	private static final String TAG = "PIPELINE_STAGE";
+	
+	/**
+	 * Creates a new PipelineStage
+	 * 
+	 * @param name - The name of this stage, used in logging and metrics
+	 * @param queueCapacity - The maximum number of items that may be waiting in this
+	 * stage's input queue
+	 * @param parallelism - The number of worker threads to use for this stage
+	 */
+	protected PipelineStage(String name, int queueCapacity, int parallelism)
+	{
+		this(name, queueCapacity, parallelism, 1);
+	}
+	
+	/**
+	 * Creates a new PipelineStage which processes items in batches. Each worker 
+	 * thread takes all the items waiting in the input queue, up to the given maximum,
+	 * and passes them to processBatch() together. 
+	 * 
+	 * @param name - The name of this stage, used in logging and metrics
+	 * @param queueCapacity - The maximum number of items that may be waiting in this
+	 * stage's input queue
+	 * @param parallelism - The number of worker threads to use for this stage
+	 * @param maxBatchSize - The maximum number of items to process in a single batch
+	 */
+	protected PipelineStage(String name, int queueCapacity, int parallelism, int maxBatchSize)
+	{
+		this.name = name;
+		this.parallelism = Math.max(1, parallelism);
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.queue = new ArrayBlockingQueue<T>(Math.max(1, queueCapacity));
+		this.itemsProcessed = new AtomicLong(0);
+		this.itemsFailed = new AtomicLong(0);
+	}
+	
+	/**
+	 * Processes a single item taken from this stage's input queue. Implementations
+	 * will normally pass the item on to the next stage once they have finished with it.
+	 * 
+	 * @param item - The item to process
+	 * 
+	 * @throws InterruptedException If the thread is interrupted while waiting to
+	 * submit the item to the next stage
+	 */
+	protected abstract void process(T item) throws InterruptedException;
+	
+	/**
+	 * Processes a batch of items taken from this stage's input queue. By default
+	 * this simply processes each item in turn. Stages which can handle a batch of 
+	 * items more efficiently than individual items should override this method. 
+	 * 
+	 * @param items - An ArrayList containing the items to process
+	 * 
+	 * @throws InterruptedException If the thread is interrupted while waiting to
+	 * submit the items to the next stage
+	 */
+	protected void processBatch(ArrayList<T> items) throws InterruptedException
+	{
+		for (T item : items)
+		{
+			process(item);
+		}
+	}
+	
+	/**
+	 * Called when processing of an item throws a RuntimeException or an Error, such as
+	 * an OutOfMemoryError caused by a large payload. Implementations should use this to
+	 * release any resources associated with the item.
+	 * 
+	 * @param item - The item which could not be processed
+	 * @param e - The Throwable that was thrown
+	 */
+	protected abstract void onProcessingFailed(T item, Throwable e);
+	
+	/**
+	 * Starts the worker threads for this stage
+	 */
+	protected synchronized void start()
+	{
+		startTime = System.currentTimeMillis();
+		workers = new Thread[parallelism];
+		for (int i = 0; i < parallelism; i++)
+		{
+			workers[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					try
+					{
+						while (Thread.currentThread().isInterrupted() == false)
+						{
+							if (maxBatchSize == 1)
+							{
+								T item = queue.take();
+								try
+								{
+									process(item);
+									itemsProcessed.incrementAndGet();
+								}
+								catch (InterruptedException e)
+								{
+									throw e;
+								}
+								catch (Throwable e)
+								{
+									// Errors are caught as well, so that the work for the item is always accounted for
+									itemsFailed.incrementAndGet();
+									Log.e(TAG, e.getClass().getSimpleName() + " occurred while processing an item in pipeline stage " + name + ". The exception message was:\n"
+											+ e.getMessage());
+									onProcessingFailed(item, e);
+								}
+							}
+							else
+							{
+								ArrayList<T> items = new ArrayList<T>();
+								items.add(queue.take());
+								queue.drainTo(items, maxBatchSize - 1);
+								try
+								{
+									processBatch(items);
+									itemsProcessed.addAndGet(items.size());
+								}
+								catch (InterruptedException e)
+								{
+									throw e;
+								}
+								catch (Throwable e)
+								{
+									itemsFailed.addAndGet(items.size());
+									Log.e(TAG, e.getClass().getSimpleName() + " occurred while processing a batch of " + items.size() + " items in pipeline stage " + name + ". The exception message was:\n"
+											+ e.getMessage());
+									for (T item : items)
+									{
+										onProcessingFailed(item, e);
+									}
+								}
+							}
+						}
+					}
+					catch (InterruptedException e)
+					{
+						// The stage has been stopped
+					}
+				}
+			}, name + "-" + i);
+			workers[i].start();
+		}
+	}
+	
+	/**
+	 * Stops the worker threads for this stage. Any items remaining in the
+	 * input queue are discarded.
+	 */
+	protected synchronized void stop()
+	{
+		if (workers != null)
+		{
+			for (Thread t : workers)
+			{
+				t.interrupt();
+			}
+			workers = null;
+		}
+		queue.clear();
+	}
+	
+	/**
+	 * Returns a boolean indicating whether or not any of the worker threads for
+	 * this stage are still running
+	 */
+	protected synchronized boolean isAlive()
+	{
+		if (workers == null)
+		{
+			return false;
+		}
+		for (Thread t : workers)
+		{
+			if (t.isAlive())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Submits an item to this stage's input queue, blocking until space
+	 * is available if the queue is full.
+	 * 
+	 * @param item - The item to submit
+	 * 
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	protected void submit(T item) throws InterruptedException
+	{
+		queue.put(item);
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+	
+	/**
+	 * Returns the number of items currently waiting in this stage's input queue
+	 */
+	public int getQueueDepth()
+	{
+		return queue.size();
+	}
+	
+	/**
+	 * Returns the maximum number of items that may wait in this stage's input queue
+	 */
+	public int getQueueCapacity()
+	{
+		return queue.size() + queue.remainingCapacity();
+	}
+	
+	public long getItemsProcessed()
+	{
+		return itemsProcessed.get();
+	}
+	
+	public long getItemsFailed()
+	{
+		return itemsFailed.get();
+	}
+	
+	/**
+	 * Returns the average number of items processed per second since this
+	 * stage was started
+	 */
+	public double getThroughput()
+	{
+		long elapsedMillis = System.currentTimeMillis() - startTime;
+		if (startTime == 0 || elapsedMillis <= 0)
+		{
+			return 0;
+		}
+		return (itemsProcessed.get() * 1000.0) / elapsedMillis;
+	}
+	
+	/**
+	 * Returns a String describing the current metrics of this stage
+	 */
+	public String getMetricsSummary()
+	{
+		return name + ": processed " + getItemsProcessed() + ", failed " + getItemsFailed() + ", throughput " + String.format("%.2f", getThroughput())
+				+ " items/s, queue depth " + getQueueDepth() + "/" + getQueueCapacity() + ", workers " + parallelism;
+	}
+}
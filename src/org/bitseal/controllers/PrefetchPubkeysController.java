@@ -0,0 +1,141 @@
+package org.bitseal.controllers;
+
+import java.util.ArrayList;
+
+import org.bitseal.core.AddressProcessor;
+import org.bitseal.core.App;
+import org.bitseal.core.PubkeyProcessor;
+import org.bitseal.data.AddressBookRecord;
+import org.bitseal.data.Pubkey;
+import org.bitseal.database.AddressBookRecordProvider;
+import org.bitseal.util.TimeUtils;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * This class controls the operations necessary to fetch the pubkeys of the
+ * people in our address book before we need them, and to refresh those pubkeys
+ * before they expire. <br><br>
+ * 
+ * Having the pubkey ready means that a msg to a contact can be encrypted and
+ * sent straight away, rather than waiting for the pubkey to be requested
+ * from a server first.
+ * 
+ * @author Jonathan Coe
+ */
+public class PrefetchPubkeysController
+{
+	/** A key used to store the time at which pubkeys were last prefetched */
+	private static final String LAST_PUBKEY_PREFETCH_TIME = "lastPubkeyPrefetchTime";
+	
+	/** The minimum amount of time (in seconds) between each run of the pubkey prefetch task */
+	private static final long TIME_BETWEEN_PUBKEY_PREFETCHES = 3600; // Currently set to 1 hour
+	
+	/** Pubkeys which will expire within this amount of time (in seconds) are refreshed */
+	private static final long PUBKEY_REFRESH_MARGIN = 86400; // Currently set to 1 day
+	
+	/** The maximum number of pubkeys to fetch or refresh each time the task is run */
+	private static final int MAX_PUBKEYS_PER_PREFETCH = 10;
+	
+	private static final String TAG = "PREFETCH_PUBKEYS_CONTROLLER";
+	
+	/**
+	 * Checks whether any of the pubkeys for the addresses in our address book
+	 * need to be fetched or refreshed. The time of the check is recorded whether
+	 * or not any pubkeys need to be fetched, so that the address book is not 
+	 * checked again until TIME_BETWEEN_PUBKEY_PREFETCHES has passed.
+	 * 
+	 * @return An ArrayList<String> containing the addresses for which we have no
+	 * pubkey, followed by the addresses for which the pubkey will soon expire. If
+	 * none need to be fetched, or if the task has been run too recently, this
+	 * ArrayList will be empty.
+	 */
+	public ArrayList<String> checkIfPubkeyPrefetchIsDue()
+	{
+		ArrayList<String> missingPubkeyAddresses = new ArrayList<String>();
+		ArrayList<String> expiringPubkeyAddresses = new ArrayList<String>();
+		
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		long currentTime = System.currentTimeMillis() / 1000;
+		long timeSinceLastPrefetch = currentTime - prefs.getLong(LAST_PUBKEY_PREFETCH_TIME, 0);
+		if (timeSinceLastPrefetch < TIME_BETWEEN_PUBKEY_PREFETCHES)
+		{
+			Log.i(TAG, "The pubkey prefetch task will be run again in " + TimeUtils.getTimeMessage(TIME_BETWEEN_PUBKEY_PREFETCHES - timeSinceLastPrefetch));
+			return missingPubkeyAddresses;
+		}
+		recordPrefetchTime();
+		
+		AddressProcessor addProc = new AddressProcessor();
+		PubkeyProcessor pubProc = new PubkeyProcessor();
+		ArrayList<AddressBookRecord> addressBookRecords = AddressBookRecordProvider.get(App.getContext()).getAllAddressBookRecords();
+		for (AddressBookRecord a : addressBookRecords)
+		{
+			String addressString = a.getAddress();
+			if (addProc.validateAddress(addressString) == false)
+			{
+				continue;
+			}
+			
+			Pubkey pubkey = pubProc.retrieveStoredPubkey(addressString);
+			if (pubkey == null)
+			{
+				missingPubkeyAddresses.add(addressString);
+			}
+			else if (pubkey.belongsToMe() == false && pubkey.getExpirationTime() < currentTime + PUBKEY_REFRESH_MARGIN)
+			{
+				expiringPubkeyAddresses.add(addressString);
+			}
+		}
+		
+		// Missing pubkeys are fetched first, as without them we cannot send a msg at all
+		ArrayList<String> addressesToPrefetch = new ArrayList<String>();
+		addressesToPrefetch.addAll(missingPubkeyAddresses);
+		addressesToPrefetch.addAll(expiringPubkeyAddresses);
+		while (addressesToPrefetch.size() > MAX_PUBKEYS_PER_PREFETCH)
+		{
+			addressesToPrefetch.remove(addressesToPrefetch.size() - 1);
+		}
+		
+		Log.i(TAG, "Found " + missingPubkeyAddresses.size() + " address book entries with no pubkey and " + expiringPubkeyAddresses.size() +
+				" with a pubkey which will soon expire");
+		return addressesToPrefetch;
+	}
+	
+	/**
+	 * Fetches the pubkey for a given address from a server, validates it, and
+	 * saves it, replacing any older pubkey for the same address.
+	 * 
+	 * @param addressString - The address to fetch the pubkey for
+	 * 
+	 * @return A boolean indicating whether or not the pubkey was fetched successfully
+	 */
+	public boolean prefetchPubkey(String addressString)
+	{
+		try
+		{
+			Pubkey pubkey = new PubkeyProcessor().refreshPubkeyFromServer(addressString);
+			long timeTillExpiration = pubkey.getExpirationTime() - (System.currentTimeMillis() / 1000);
+			Log.i(TAG, "The pubkey for address " + addressString + " is now stored and will expire in " + TimeUtils.getTimeMessage(timeTillExpiration));
+			return true;
+		}
+		catch (RuntimeException runEx)
+		{
+			Log.e(TAG, "While running PrefetchPubkeysController.prefetchPubkey(), we were unable to retrieve the pubkey for address " + addressString + ". \n"
+					+ "The exception message was: " + runEx.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Records the time at which the pubkey prefetch task was last run
+	 */
+	private void recordPrefetchTime()
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putLong(LAST_PUBKEY_PREFETCH_TIME, System.currentTimeMillis() / 1000);
+		editor.commit();
+	}
+}
@@ -1,6 +1,8 @@
 package org.bitseal.controllers;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 import org.bitseal.core.App;
 import org.bitseal.core.PubkeyProcessor;
@@ -16,31 +18,87 @@ import org.bitseal.database.PubkeysTable;
 import org.bitseal.util.ByteFormatter;
 import org.bitseal.util.TimeUtils;
 
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
  * This class controls the operations necessary to check whether
  * any of our pubkeys need to be disseminated to the Bitmessage 
- * network again, and to do so when that time comes. 
+ * network again, and to do so when that time comes. <br><br>
+ * 
+ * So that the device does not spend a long time doing POW for many pubkeys
+ * at once, only a few pubkeys are regenerated each time the check is made,
+ * and the number of pubkeys which are regenerated each day is limited. While
+ * the device is idle, pubkeys which will soon expire can be regenerated early,
+ * so that the pubkeys of addresses which were created together are spread out
+ * over time. 
  * 
  * @author Jonathan Coe
  */
 public class ReDisseminatePubkeysController
 {
+	/** The maximum number of pubkeys to regenerate each time we check whether pubkey re-dissemination is due */
+	private static final int MAXIMUM_RENEWALS_PER_CHECK = 1;
+	
+	/** How long (in seconds) before a pubkey expires that it may be regenerated early while the device is idle */
+	private static final long EARLY_RENEWAL_WINDOW = 43200; // Currently set to 12 hours
+	
+	/** The length (in seconds) of the period over which the number of pubkeys we regenerate is limited */
+	private static final long POW_BUDGET_PERIOD = 86400; // Currently set to 1 day
+	
+	/** The number of pubkeys we may regenerate in each budget period, in addition to the number needed to keep all our pubkeys up to date */
+	private static final int POW_BUDGET_HEADROOM = 4;
+	
+	// Keys used to store the current period of the POW budget and the number of pubkeys regenerated during it
+	private static final String KEY_POW_BUDGET_PERIOD_START = "pubkeyPOWBudgetPeriodStart";
+	private static final String KEY_POW_BUDGET_USED = "pubkeyPOWBudgetUsed";
+	
 	private static final String TAG = "RE_DISSEMINATE_PUBKEYS_CONTROLLER";
 	
 	/**
-	 * Checks whether any of our pubkeys are due to be disseminated again. 
+	 * Checks whether any of our pubkeys are due to be disseminated again. <br><br>
+	 * 
+	 * Pubkeys which have expired are due first, starting with the one that expired
+	 * earliest. If early renewal is allowed and the POW budget is not needed for pubkeys
+	 * which will expire soon anyway, a pubkey which will expire within the early renewal
+	 * window may also be due. 
+	 * 
+	 * @param allowEarlyRenewal - A boolean indicating whether or not pubkeys which have not
+	 * yet expired may be regenerated, e.g. because the device is idle
 	 * 
 	 * @return An ArrayList<Address> containing any Addresses for which the Pubkeys
-	 * have expired and are thus due to be disseminated again. If none are due, this
-	 * ArrayList will be empty. 
+	 * are due to be disseminated again. If none are due, this ArrayList will be empty. 
 	 */
-	public ArrayList<Address> checkIfPubkeyDisseminationIsDue()
+	public ArrayList<Address> checkIfPubkeyDisseminationIsDue(boolean allowEarlyRenewal)
 	{
-		// Get all the user's pubkeys
+		// Get all the user's pubkeys, in order of expiration time
 		PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
 		ArrayList<Pubkey> myPubkeys = pubProv.searchPubkeys(PubkeysTable.COLUMN_BELONGS_TO_ME, String.valueOf(1)); // 1 stands for true in the database
+		Collections.sort(myPubkeys, new Comparator<Pubkey>()
+		{
+			@Override
+			public int compare(Pubkey p1, Pubkey p2)
+			{
+				long difference = p1.getExpirationTime() - p2.getExpirationTime();
+				return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+			}
+		});
+		
+		// Work out how many pubkeys we may regenerate now. Pubkeys which will expire within the next budget
+		// period must be regenerated then anyway, so budget for those is not used for early renewals. 
+		long currentTime = System.currentTimeMillis() / 1000;
+		int remainingBudget = getRemainingPOWBudget(myPubkeys.size());
+		int renewalsAllowed = Math.min(MAXIMUM_RENEWALS_PER_CHECK, remainingBudget);
+		int pubkeysExpiringInBudgetPeriod = 0;
+		for (Pubkey p : myPubkeys)
+		{
+			if (p.getExpirationTime() < currentTime + POW_BUDGET_PERIOD)
+			{
+				pubkeysExpiringInBudgetPeriod ++;
+			}
+		}
+		boolean earlyRenewalAllowed = allowEarlyRenewal && (remainingBudget > pubkeysExpiringInBudgetPeriod);
 		
 		// Check whether any of our pubkeys need to be disseminated again
 		ArrayList<Address> addressesWithExpiredPubkeys = new ArrayList<Address>();
@@ -62,13 +120,27 @@ public class ReDisseminatePubkeysController
 			}
 			
 			// Work out whether the pubkey is due for re-dissemination
-			long currentTime = System.currentTimeMillis() / 1000;
 			long expirationTime = p.getExpirationTime();
 			if (expirationTime < currentTime)
 			{
 				long timeSinceExpiration = currentTime - expirationTime;
-				Log.d(TAG, "The pubkey for address " + address.getAddress() + " expired " + TimeUtils.getTimeMessage(timeSinceExpiration) + " ago.\n" +
-						"We will now attempt to re-disseminate it.");
+				if (addressesWithExpiredPubkeys.size() < renewalsAllowed)
+				{
+					Log.d(TAG, "The pubkey for address " + address.getAddress() + " expired " + TimeUtils.getTimeMessage(timeSinceExpiration) + " ago.\n" +
+							"We will now attempt to re-disseminate it.");
+					
+					addressesWithExpiredPubkeys.add(address);
+				}
+				else
+				{
+					Log.i(TAG, "The pubkey for address " + address.getAddress() + " expired " + TimeUtils.getTimeMessage(timeSinceExpiration) + " ago. " +
+							"It will be re-disseminated once the pubkeys which expired before it have been done, if the POW budget allows.");
+				}
+			}
+			else if (earlyRenewalAllowed && (expirationTime - currentTime < EARLY_RENEWAL_WINDOW) && (addressesWithExpiredPubkeys.size() < renewalsAllowed))
+			{
+				Log.d(TAG, "The pubkey for address " + address.getAddress() + " will expire in " + TimeUtils.getTimeMessage(expirationTime - currentTime) + ".\n" +
+						"The device is idle, so we will now re-disseminate it early.");
 				
 				addressesWithExpiredPubkeys.add(address);
 			}
@@ -82,6 +154,28 @@ public class ReDisseminatePubkeysController
 		return addressesWithExpiredPubkeys;
 	}
 	
+	/**
+	 * Works out when the next of our pubkeys will be due to be disseminated again
+	 * 
+	 * @return The earliest expiration time of any of our pubkeys in seconds, or -1 if
+	 * we have no pubkeys
+	 */
+	public long getNextReDisseminationTime()
+	{
+		PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
+		ArrayList<Pubkey> myPubkeys = pubProv.searchPubkeys(PubkeysTable.COLUMN_BELONGS_TO_ME, String.valueOf(1)); // 1 stands for true in the database
+		
+		long nextReDisseminationTime = -1;
+		for (Pubkey p : myPubkeys)
+		{
+			if (nextReDisseminationTime == -1 || p.getExpirationTime() < nextReDisseminationTime)
+			{
+				nextReDisseminationTime = p.getExpirationTime();
+			}
+		}
+		return nextReDisseminationTime;
+	}
+	
 	/**
 	 * Creates an updated payload for pubkeys that need to be disseminated again. 
 	 * 
@@ -126,7 +220,65 @@ public class ReDisseminatePubkeysController
 		// Generate a new pubkey
 		Pubkey regeneratedPubkey = new PubkeyGenerator().generateAndSaveNewPubkey(address);
 		
+		// Record that we are doing POW for this pubkey, so that it is counted against the POW budget
+		if (doPOW)
+		{
+			recordPOWBudgetUse();
+		}
+		
 		// Create an updated payload for the pubkey. We can then re-disseminate it to the network.
 		return new PubkeyProcessor().constructPubkeyPayload(regeneratedPubkey, doPOW);
 	}
+	
+	/**
+	 * Works out how many more pubkeys we may regenerate during the current POW
+	 * budget period. The budget is always large enough to keep all of our pubkeys
+	 * up to date. 
+	 * 
+	 * @param numberOfPubkeys - The number of pubkeys that we have
+	 * 
+	 * @return The number of pubkeys which may be regenerated
+	 */
+	private int getRemainingPOWBudget(int numberOfPubkeys)
+	{
+		// Each pubkey will need to be regenerated at most this many times in each budget period
+		long renewalsNeeded = ((numberOfPubkeys * POW_BUDGET_PERIOD) + PubkeyGenerator.MINIMUM_PUBKEY_TTL - 1) / PubkeyGenerator.MINIMUM_PUBKEY_TTL;
+		long budget = renewalsNeeded + POW_BUDGET_HEADROOM;
+		
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		long currentTime = System.currentTimeMillis() / 1000;
+		long budgetUsed = 0;
+		if (currentTime - prefs.getLong(KEY_POW_BUDGET_PERIOD_START, 0) < POW_BUDGET_PERIOD)
+		{
+			budgetUsed = prefs.getInt(KEY_POW_BUDGET_USED, 0);
+		}
+		
+		int remainingBudget = (int) Math.max(0, budget - budgetUsed);
+		if (remainingBudget == 0)
+		{
+			Log.i(TAG, "We have used all of today's POW budget of " + budget + " pubkeys. No more pubkeys will be regenerated until the budget is reset.");
+		}
+		return remainingBudget;
+	}
+	
+	/**
+	 * Records that a pubkey has been regenerated with POW, starting a new POW
+	 * budget period if the previous one has ended
+	 */
+	private void recordPOWBudgetUse()
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		SharedPreferences.Editor editor = prefs.edit();
+		long currentTime = System.currentTimeMillis() / 1000;
+		if (currentTime - prefs.getLong(KEY_POW_BUDGET_PERIOD_START, 0) < POW_BUDGET_PERIOD)
+		{
+			editor.putInt(KEY_POW_BUDGET_USED, prefs.getInt(KEY_POW_BUDGET_USED, 0) + 1);
+		}
+		else
+		{
+			editor.putLong(KEY_POW_BUDGET_PERIOD_START, currentTime);
+			editor.putInt(KEY_POW_BUDGET_USED, 1);
+		}
+		editor.commit();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package org.bitseal.controllers;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.bitseal.core.AddressProcessor;
+import org.bitseal.core.App;
+import org.bitseal.core.OutgoingGetpubkeyProcessor;
+import org.bitseal.core.PubkeyProcessor;
+import org.bitseal.data.AddressBookRecord;
+import org.bitseal.database.AddressBookRecordProvider;
+import org.bitseal.database.AddressBookRecordsTable;
+import org.bitseal.network.NetworkHelper;
+import org.bitseal.services.BackgroundService;
+
+import android.util.Log;
+
+/**
+ * A Singleton class that starts retrieving the pubkey of an address while the
+ * user is still writing a message to it. <br><br>
+ * 
+ * As soon as a valid 'to address' is entered on the compose screen, the pubkey
+ * is looked up in the database and then requested from a server. If it cannot be
+ * retrieved, a getpubkey is created (including its POW) and saved to the database, 
+ * so that by the time the user presses send the send path can usually use the pubkey
+ * or getpubkey straight away. <br><br>
+ * 
+ * The getpubkey is NOT disseminated here. Doing so would tell the network who the 
+ * user is about to contact before they have decided to send the message, and could
+ * not be undone. It is only disseminated by the send path. <br><br>
+ * 
+ * The work is done on a single thread with the lowest priority, so that it does
+ * not slow down the UI. Only the most recently entered address is resolved: if
+ * the address is changed, any work for the old address which has not yet started
+ * is skipped, and work in progress stops at the next step. Work in progress is not
+ * interrupted, because the send path may be waiting on the same lookup or getpubkey.
+ * 
+ * @author Jonathan Coe
+ */
+public class SpeculativePubkeyResolver
+{
+	private final ExecutorService executor;
+	
+	/** The 'to address' text whose pubkey we currently want, or null if none is wanted */
+	private volatile String requestedText;
+	
+	private static final String TAG = "SPECULATIVE_PUBKEY_RESOLVER";
+	
+	private static class Holder
+	{
+		static final SpeculativePubkeyResolver INSTANCE = new SpeculativePubkeyResolver();
+	}
+	
+	/**
+	 * Returns a singleton instance of the SpeculativePubkeyResolver
+	 */
+	public static SpeculativePubkeyResolver getInstance()
+	{
+		return Holder.INSTANCE;
+	}
+	
+	private SpeculativePubkeyResolver()
+	{
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "SpeculativePubkeyResolver");
+				thread.setPriority(Thread.MIN_PRIORITY); // Any POW worker threads inherit this priority
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Starts resolving the pubkey of the address in the given 'to address' text in 
+	 * the background, replacing any text which was requested previously. The text may
+	 * be a Bitmessage address or the label of an address book entry. Checking which
+	 * address the text refers to is also done in the background, so this method can be
+	 * called from the UI thread each time the text changes. 
+	 * 
+	 * @param toAddressText - A String containing the text entered as the 'to address'
+	 */
+	public void resolve(final String toAddressText)
+	{
+		if (toAddressText.equals(requestedText))
+		{
+			return;
+		}
+		requestedText = toAddressText;
+		
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				resolvePubkey(toAddressText);
+			}
+		});
+	}
+	
+	/**
+	 * Stops resolving the pubkey of the most recently requested address. Any step
+	 * which is already in progress will be allowed to finish.
+	 */
+	public void cancel()
+	{
+		requestedText = null;
+	}
+	
+	/**
+	 * Retrieves the pubkey for the address in the given 'to address' text, or creates
+	 * and saves a getpubkey for it if the pubkey cannot be retrieved. Each step is skipped
+	 * if the text has been changed since.
+	 * 
+	 * @param toAddressText - The 'to address' text to resolve the pubkey of
+	 */
+	private void resolvePubkey(String toAddressText)
+	{
+		try
+		{
+			if (isStillRequested(toAddressText) == false)
+			{
+				return;
+			}
+			String addressString = findAddress(toAddressText);
+			if (addressString == null)
+			{
+				return;
+			}
+			
+			PubkeyProcessor pubProc = new PubkeyProcessor();
+			if (isStillRequested(toAddressText) == false || pubProc.retrieveStoredPubkey(addressString) != null)
+			{
+				return;
+			}
+			if (NetworkHelper.checkInternetAvailability() == false)
+			{
+				Log.i(TAG, "No internet connection is available, so the pubkey of " + addressString + " will be retrieved when the message is sent");
+				return;
+			}
+			
+			try
+			{
+				if (isStillRequested(toAddressText))
+				{
+					pubProc.retrievePubkeyByAddressString(addressString);
+					Log.i(TAG, "Retrieved the pubkey of " + addressString + " while the message was being written");
+				}
+				return;
+			}
+			catch (RuntimeException e)
+			{
+				Log.i(TAG, "Unable to retrieve the pubkey of " + addressString + " from a server. The exception message was: " + e.getMessage());
+			}
+			
+			if (isStillRequested(toAddressText))
+			{
+				Log.i(TAG, "Creating a getpubkey for " + addressString + " while the message is being written");
+				new OutgoingGetpubkeyProcessor().constructGetpubkeyRequest(addressString, BackgroundService.FIRST_ATTEMPT_TTL);
+			}
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Exception occurred in SpeculativePubkeyResolver.resolvePubkey(). The exception message was:\n"
+					+ e.getMessage());
+		}
+	}
+	
+	/**
+	 * Works out which address the given 'to address' text refers to
+	 * 
+	 * @param toAddressText - The text entered as the 'to address'
+	 * 
+	 * @return The address from the address book entry with the text as its label, 
+	 * the text itself if it is a valid address, or null otherwise
+	 */
+	private String findAddress(String toAddressText)
+	{
+		AddressBookRecordProvider addBookProv = AddressBookRecordProvider.get(App.getContext());
+		ArrayList<AddressBookRecord> retrievedRecords = addBookProv.searchAddressBookRecords(AddressBookRecordsTable.COLUMN_LABEL, toAddressText);
+		if (retrievedRecords.size() > 0)
+		{
+			return retrievedRecords.get(0).getAddress();
+		}
+		else if (toAddressText.startsWith("BM-") && new AddressProcessor().validateAddress(toAddressText))
+		{
+			return toAddressText;
+		}
+		return null;
+	}
+	
+	private boolean isStillRequested(String toAddressText)
+	{
+		return toAddressText.equals(requestedText);
+	}
+}
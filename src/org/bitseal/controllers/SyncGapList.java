@@ -0,0 +1,171 @@
+package org.bitseal.controllers;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bitseal.core.App;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Records the 'check for new msgs' time windows which have been completely
+ * downloaded and processed, but which lie beyond the 'last msg check time'. <br><br>
+ * 
+ * When several time windows are downloaded at once they can finish in any order.
+ * The 'last msg check time' can only be advanced over a window once every earlier
+ * window has also finished, so any window which finishes early is kept in this list
+ * until the gap before it has been filled. The list is saved in SharedPreferences,
+ * so that windows which have already been checked will not be downloaded again if
+ * the app is stopped before the gaps are filled.
+ * 
+ * @author Jonathan Coe
+ */
+class SyncGapList
+{
+	/** The completed windows, mapping the start time of each window to its end time. Adjoining windows are merged together. */
+	private final TreeMap<Long, Long> completedWindows;
+	
+	/** A key used to store the list of completed windows in SharedPreferences */
+	private static final String COMPLETED_MSG_CHECK_WINDOWS = "completedMsgCheckWindows";
+	
+	private static final String TAG = "SYNC_GAP_LIST";
+	
+	/**
+	 * Creates a new SyncGapList, loading any completed windows which were saved previously
+	 */
+	SyncGapList()
+	{
+		completedWindows = new TreeMap<Long, Long>();
+		
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		String savedWindows = prefs.getString(COMPLETED_MSG_CHECK_WINDOWS, "");
+		if (savedWindows.length() > 0)
+		{
+			try
+			{
+				for (String savedWindow : savedWindows.split(","))
+				{
+					String[] times = savedWindow.split("-");
+					completedWindows.put(Long.valueOf(times[0]), Long.valueOf(times[1]));
+				}
+			}
+			catch (RuntimeException e)
+			{
+				// The worst that can happen is that some windows will be downloaded again
+				Log.e(TAG, "Exception occurred while reading the saved list of completed msg check windows. The list will be discarded. The exception message was:\n"
+						+ e.getMessage());
+				completedWindows.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the first time, at or after the given time, which does not fall
+	 * within any of the completed windows
+	 * 
+	 * @param time - The time to start from
+	 */
+	synchronized long getNextUncheckedTime(long time)
+	{
+		Map.Entry<Long, Long> window = completedWindows.floorEntry(time);
+		while (window != null && window.getValue() > time)
+		{
+			time = window.getValue();
+			window = completedWindows.floorEntry(time);
+		}
+		return time;
+	}
+	
+	/**
+	 * Returns the start time of the first completed window which starts after
+	 * the given time
+	 * 
+	 * @param time - The time to start from
+	 * 
+	 * @return The start time of the window, or -1 if there is no such window
+	 */
+	synchronized long getNextCompletedWindowStart(long time)
+	{
+		Long start = completedWindows.higherKey(time);
+		if (start == null)
+		{
+			return -1;
+		}
+		return start;
+	}
+	
+	/**
+	 * Adds a completed window to the list, then works out how far the 'last msg
+	 * check time' can now be advanced. Any windows which the 'last msg check time'
+	 * can be advanced over are removed from the list.
+	 * 
+	 * @param startTime - The start of the completed window
+	 * @param endTime - The end of the completed window
+	 * @param lastMsgCheckTime - The current 'last msg check time'
+	 * 
+	 * @return The new 'last msg check time'. This will be the same as the current
+	 * one if there is still a gap before the first completed window.
+	 */
+	synchronized long recordCompletedWindow(long startTime, long endTime, long lastMsgCheckTime)
+	{
+		// Merge the new window with any completed windows which it overlaps or adjoins
+		Map.Entry<Long, Long> previous = completedWindows.floorEntry(startTime);
+		if (previous != null && previous.getValue() >= startTime)
+		{
+			startTime = previous.getKey();
+			endTime = Math.max(endTime, previous.getValue());
+		}
+		Map.Entry<Long, Long> next = completedWindows.ceilingEntry(startTime);
+		while (next != null && next.getKey() <= endTime)
+		{
+			endTime = Math.max(endTime, next.getValue());
+			completedWindows.remove(next.getKey());
+			next = completedWindows.ceilingEntry(startTime);
+		}
+		completedWindows.put(startTime, endTime);
+		
+		// Advance over every completed window which now begins at or before the 'last msg check time'
+		Iterator<Map.Entry<Long, Long>> iterator = completedWindows.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			Map.Entry<Long, Long> window = iterator.next();
+			if (window.getKey() > lastMsgCheckTime)
+			{
+				break;
+			}
+			lastMsgCheckTime = Math.max(lastMsgCheckTime, window.getValue());
+			iterator.remove();
+		}
+		
+		save();
+		if (completedWindows.size() > 0)
+		{
+			Log.d(TAG, "There are now " + completedWindows.size() + " completed msg check window(s) waiting for the gap(s) before them to be filled");
+		}
+		return lastMsgCheckTime;
+	}
+	
+	/**
+	 * Saves the list of completed windows to SharedPreferences
+	 */
+	private void save()
+	{
+		StringBuilder savedWindows = new StringBuilder();
+		for (Map.Entry<Long, Long> window : completedWindows.entrySet())
+		{
+			if (savedWindows.length() > 0)
+			{
+				savedWindows.append(",");
+			}
+			savedWindows.append(window.getKey()).append("-").append(window.getValue());
+		}
+		
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putString(COMPLETED_MSG_CHECK_WINDOWS, savedWindows.toString());
+		editor.commit();
+	}
+}
@@ -0,0 +1,105 @@
+package org.bitseal.controllers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Represents a single 'check for new msgs' time window which is being
+ * downloaded and processed by the incoming message pipeline. <br><br>
+ * 
+ * A window is complete once it has been downloaded and every msg in it
+ * has left the pipeline. Only then is it safe to record the window as 
+ * checked. 
+ * 
+ * @author Jonathan Coe
+ */
+class SyncWindow
+{
+	private final long startTime;
+	private final long receivedSinceTime;
+	private final long receivedBeforeTime;
+	private final int sequenceNumber;
+	
+	/** The number of outstanding pieces of work for this window. Starts at 1 to account for the download itself. */
+	private final AtomicInteger pendingWork;
+	
+	private volatile boolean complete;
+	private volatile boolean failed;
+	
+	/**
+	 * Creates a new SyncWindow
+	 * 
+	 * @param startTime - The time from which this window continues checking for new msgs. The 
+	 * 'received since' time requested from servers is slightly earlier than this, so that the 
+	 * windows overlap.
+	 * @param receivedSinceTime - The 'received since' time to request from servers
+	 * @param receivedBeforeTime - The 'received before' time to request from servers
+	 * @param sequenceNumber - The position of this window among the windows created in the 
+	 * current run of the pipeline
+	 */
+	SyncWindow(long startTime, long receivedSinceTime, long receivedBeforeTime, int sequenceNumber)
+	{
+		this.startTime = startTime;
+		this.receivedSinceTime = receivedSinceTime;
+		this.receivedBeforeTime = receivedBeforeTime;
+		this.sequenceNumber = sequenceNumber;
+		this.pendingWork = new AtomicInteger(1);
+	}
+	
+	/**
+	 * Records that a msg from this window has entered the pipeline
+	 */
+	void addPendingWork()
+	{
+		pendingWork.incrementAndGet();
+	}
+	
+	/**
+	 * Records that a piece of work for this window (either the download or 
+	 * the processing of one msg) has finished.
+	 * 
+	 * @return A boolean indicating whether this window is now complete
+	 */
+	boolean finishPendingWork()
+	{
+		if (pendingWork.decrementAndGet() == 0)
+		{
+			complete = true;
+		}
+		return complete;
+	}
+	
+	long getStartTime()
+	{
+		return startTime;
+	}
+	
+	long getReceivedSinceTime()
+	{
+		return receivedSinceTime;
+	}
+	
+	long getReceivedBeforeTime()
+	{
+		return receivedBeforeTime;
+	}
+	
+	int getSequenceNumber()
+	{
+		return sequenceNumber;
+	}
+	
+	boolean isComplete()
+	{
+		return complete;
+	}
+	
+	boolean isFailed()
+	{
+		return failed;
+	}
+	
+	void setFailed(boolean failed)
+	{
+		this.failed = failed;
+	}
+}
@@ -47,9 +47,10 @@ public class TaskController
 	 * @param doPOW - A boolean indicating whether or not to do POW for the pubkey
 	 * of the identity we are creating
 	 * 
-	 * @return A boolean indicating whether all parts of this task were completed successfully
+	 * @return A boolean indicating whether the identity data was created successfully. If it was, 
+	 * the pubkey is disseminated on the network lane of the TaskExecutor. 
 	 */
-	public boolean createIdentity(QueueRecord inputQueueRecord, boolean doPOW)
+	public boolean createIdentity(QueueRecord inputQueueRecord, final boolean doPOW)
 	{
 		Log.i(TAG, "TaskController.createIdentity() called");
 		
@@ -80,7 +81,7 @@ public class TaskController
 		{
 			Log.e(TAG, "While running TaskController.createIdentity(), CreateIdentityController.generateIdentityData() threw a RuntimeExecption. \n" +
 					"The exception message was: " + runEx.getMessage());
-			queueProc.updateQueueRecordAfterFailure(inputQueueRecord); // Update the QueueRecord to record the failed attempt
+			queueProc.updateQueueRecordAfterFailure(inputQueueRecord, QueueRecordProcessor.FAILURE_POW); // Update the QueueRecord to record the failed attempt
 			return false; // If we failed to create the identity data because of an exception, leave the QueueRecord for that
 					  	  // task in place so that it can be attempted again later
 		}
@@ -88,19 +89,25 @@ public class TaskController
 		// If we successfully generated the identity data, delete the QueueRecord for that task and
 		// create a new QueueRecord to disseminate the pubkey of that identity
 		queueProc.deleteQueueRecord(inputQueueRecord);
-		QueueRecord newQueueRecord = queueProc.createAndSaveQueueRecord(BackgroundService.TASK_DISSEMINATE_PUBKEY, TimeUtils.getUnixTime(), 0, pubkeyPayload, null, null);
+		final QueueRecord newQueueRecord = queueProc.createAndSaveQueueRecord(BackgroundService.TASK_DISSEMINATE_PUBKEY, TimeUtils.getUnixTime(), 0, pubkeyPayload, null, null);
+		final Payload newPubkeyPayload = pubkeyPayload;
 		
-		// First check whether an Internet connection is available. If not, the QueueRecord for the
-		// 'disseminate pubkey' task will be saved (as above) and processed later
-		if (NetworkHelper.checkInternetAvailability() == true)
-		{
-			// Attempt to disseminate the pubkey for the newly generated identity
-			return disseminatePubkey(newQueueRecord, pubkeyPayload, doPOW);
-		}
-		else
+		// Hand the next stage of this task to the network lane
+		TaskExecutor.getInstance().execute(TaskExecutor.LANE_NETWORK, new Runnable()
 		{
-			return false;
-		}
+			@Override
+			public void run()
+			{
+				// First check whether an Internet connection is available. If not, the QueueRecord for the
+				// 'disseminate pubkey' task will be saved (as above) and processed later
+				if (NetworkHelper.checkInternetAvailability() == true)
+				{
+					// Attempt to disseminate the pubkey for the newly generated identity
+					disseminatePubkey(newQueueRecord, newPubkeyPayload, doPOW);
+				}
+			}
+		});
+		return true;
 	}
 	
 	/**
@@ -149,6 +156,48 @@ public class TaskController
 		}
 	}
 	
+	/**
+	 * Attempts to disseminate several pubkey payloads to the Bitmessage network,
+	 * sending them to servers in batches rather than one at a time. 
+	 * 
+	 * @param inputQueueRecords - The QueueRecord objects for the task of disseminating each pubkey
+	 * @param pubkeyPayloads - The pubkey payloads to be disseminated, in the same order as the QueueRecords
+	 * @param POWDone - A boolean indicating whether or not POW has been done for these pubkeys
+	 */
+	public void disseminatePubkeys(ArrayList<QueueRecord> inputQueueRecords, ArrayList<Payload> pubkeyPayloads, boolean POWDone)
+	{
+		Log.i(TAG, "TaskController.disseminatePubkeys() called for " + pubkeyPayloads.size() + " pubkeys");
+		
+		QueueRecordProcessor queueProc = new QueueRecordProcessor();
+		boolean[] results;
+		
+		try
+		{
+			results = new CreateIdentityController().disseminatePubkeys(pubkeyPayloads, POWDone);
+		}
+		catch (RuntimeException runEx)
+		{
+			Log.e(TAG, "While running TaskController.disseminatePubkeys(), CreateIdentityController.disseminatePubkeys() threw a RuntimeExecption. \n" +
+					"The exception message was: " + runEx.getMessage());
+			results = new boolean[pubkeyPayloads.size()];
+		}
+		
+		for (int i = 0; i < pubkeyPayloads.size(); i++)
+		{
+			if (results[i])
+			{
+				// Delete the successfully disseminated payload and the QueueRecord for disseminating it
+				PayloadProvider.get(App.getContext()).deletePayload(pubkeyPayloads.get(i));
+				queueProc.deleteQueueRecord(inputQueueRecords.get(i));
+			}
+			else
+			{
+				// Leave the QueueRecord in place so that the pubkey can be disseminated later
+				queueProc.updateQueueRecordAfterFailure(inputQueueRecords.get(i));
+			}
+		}
+	}
+	
 	/**
 	 * This method takes a scheduled 'send message' task and does all the work
 	 * necessary to send the message.
@@ -160,10 +209,11 @@ public class TaskController
 	 * @param getpubkeyTimeToLive - The 'time to live' value (in seconds) to be used if we need to create
 	 * a getpubkey object in order to retrieve the destination pubkey for this message
 	 * 
-	 * @return A boolean indicating whether or not the entire process of creating and 
-	 * sending the message was completed successfully. 
+	 * @return A boolean indicating whether or not the pubkey of the address that the message
+	 * is to be sent to was retrieved successfully. If it was, the message is processed on the 
+	 * CPU lane of the TaskExecutor. 
 	 */
-	public boolean sendMessage(QueueRecord inputQueueRecord, Message message, boolean doPOW, long msgTimeToLive, long getpubkeyTimeToLive)
+	public boolean sendMessage(QueueRecord inputQueueRecord, final Message message, final boolean doPOW, final long msgTimeToLive, long getpubkeyTimeToLive)
 	{
 		Log.i(TAG, "TaskController.sendMessage() called");
 		
@@ -176,11 +226,24 @@ public class TaskController
 			Object retrievalResult = null;
 			// If we have already have getpubkey object created during a previous attempt to retrieve this 
 			// pubkey, pass it to the SendMessageController so it can be reused if necessary
+			PayloadProvider payProv = PayloadProvider.get(App.getContext());
+			Payload getpubkeyPayload = null;
 			if (inputQueueRecord.getObject1Id() != 0)
 			{
-				PayloadProvider payProv = PayloadProvider.get(App.getContext());
-				Payload getpubkeyPayload = payProv.searchForSingleRecord(inputQueueRecord.getObject1Id());
-				
+				try
+				{
+					getpubkeyPayload = payProv.searchForSingleRecord(inputQueueRecord.getObject1Id());
+				}
+				catch (RuntimeException e)
+				{
+					// The getpubkey may have been shared with another message to the same address, and deleted once that
+					// message retrieved the pubkey
+					Log.i(TAG, "The getpubkey Payload with ID " + inputQueueRecord.getObject1Id() + " could not be found. It may already have been used to retrieve the pubkey.");
+				}
+			}
+			
+			if (getpubkeyPayload != null)
+			{
 				// Check whether If the getpubkey is still valid (its time to live pay have expired)
 				boolean getpubkeyValid = new ObjectProcessor().validateObject(getpubkeyPayload.getPayload());
 				if (getpubkeyValid)
@@ -210,7 +273,7 @@ public class TaskController
 				// to include a reference to the getpubkey Payload, so that we can reuse it if necessary. 
 				inputQueueRecord.setObject1Type(QueueRecord.QUEUE_RECORD_OBJECT_TYPE_PAYLOAD);
 				inputQueueRecord.setObject1Id(((Payload) retrievalResult).getId());
-				queueProc.updateQueueRecord(inputQueueRecord);
+				queueProc.updateQueueRecordAfterFailure(inputQueueRecord, QueueRecordProcessor.FAILURE_PUBKEY_MISSING);
 				return false; // If we failed to retrieve the pubkey, leave the QueueRecord for that
 							  // task in place so that it can be attempted again later
 			}
@@ -231,9 +294,19 @@ public class TaskController
 		// If we successfully retrieved the pubkey, delete the 'retrieve pubkey' QueueRecord and create a new one for the 
 		// next stage of this task
 		queueProc.deleteQueueRecord(inputQueueRecord);
-		QueueRecord newQueueRecord = queueProc.createAndSaveQueueRecord(BackgroundService.TASK_PROCESS_OUTGOING_MESSAGE, TimeUtils.getUnixTime(), inputQueueRecord.getRecordCount(), message, toPubkey, null);
+		final QueueRecord newQueueRecord = queueProc.createAndSaveQueueRecord(BackgroundService.TASK_PROCESS_OUTGOING_MESSAGE, TimeUtils.getUnixTime(), inputQueueRecord.getRecordCount(), message, toPubkey, null);
+		final Pubkey retrievedPubkey = toPubkey;
 		
-		return processOutgoingMessage(newQueueRecord, message, toPubkey, doPOW, msgTimeToLive);
+		// Hand the next stage of this task to the CPU lane
+		TaskExecutor.getInstance().execute(TaskExecutor.LANE_CPU, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				processOutgoingMessage(newQueueRecord, message, retrievedPubkey, doPOW, msgTimeToLive);
+			}
+		});
+		return true;
 	}
 	
 	/**
@@ -246,9 +319,10 @@ public class TaskController
 	 * @param doPOW - A boolean indicating whether or not to do POW for this message
 	 * @param timeToLive - The 'time to live' value (in seconds) to be used in sending this message
 	 * 
-	 * @return A boolean indicating whether or not the Message was successfully processed
+	 * @return A boolean indicating whether or not the Message was successfully processed. If
+	 * it was, the msg payload is disseminated on the network lane of the TaskExecutor. 
 	 */
-	public boolean processOutgoingMessage (QueueRecord inputQueueRecord, Message message, Pubkey toPubkey, boolean doPOW, long timeToLive)
+	public boolean processOutgoingMessage (QueueRecord inputQueueRecord, final Message message, final Pubkey toPubkey, final boolean doPOW, long timeToLive)
 	{
 		Log.i(TAG, "TaskController.processOutgoingMessage() called");
 		
@@ -268,7 +342,7 @@ public class TaskController
 		{
 			Log.e(TAG, "While running TaskController.processOutgoingMessage(), SendMessageController.processOutgoingMessage() threw an Exception. \n" +
 					"The exception message was: " + e.getMessage());
-			queueProc.updateQueueRecordAfterFailure(inputQueueRecord); // Update the QueueRecord to record the failed attempt
+			queueProc.updateQueueRecordAfterFailure(inputQueueRecord, QueueRecordProcessor.FAILURE_POW); // Update the QueueRecord to record the failed attempt
 			return false; // If we failed to process the outgoing message, leave the QueueRecord for that
 						  // task in place so that it can be attempted again later
 		}
@@ -276,7 +350,8 @@ public class TaskController
 		// If we successfully created the message payload, delete the 'process outgoing message' QueueRecord and create a new one for the 
 		// next stage of this task
 		queueProc.deleteQueueRecord(inputQueueRecord);
-		QueueRecord newQueueRecord = queueProc.createAndSaveQueueRecord(BackgroundService.TASK_DISSEMINATE_MESSAGE, TimeUtils.getUnixTime(), 0, message, msgPayload, toPubkey);
+		final QueueRecord newQueueRecord = queueProc.createAndSaveQueueRecord(BackgroundService.TASK_DISSEMINATE_MESSAGE, TimeUtils.getUnixTime(), 0, message, msgPayload, toPubkey);
+		final Payload newMsgPayload = msgPayload;
 		
 		MessageStatusHandler.updateMessageStatus(message, App.getContext().getString(R.string.message_status_sending_message));
 		
@@ -284,17 +359,25 @@ public class TaskController
 		message.setMsgPayloadId(msgPayload.getId());
 		MessageProvider.get(App.getContext()).updateMessage(message);
 		
-		// First check whether an Internet connection is available. If not, the QueueRecord for the
-		// 'disseminate message' task will be processed later
-		if (NetworkHelper.checkInternetAvailability() == true)
-		{
-			return disseminateMessage(newQueueRecord, msgPayload, toPubkey, doPOW);
-		}
-		else
+		// Hand the next stage of this task to the network lane
+		TaskExecutor.getInstance().execute(TaskExecutor.LANE_NETWORK, new Runnable()
 		{
-			MessageStatusHandler.updateMessageStatus(message, App.getContext().getString(R.string.message_status_waiting_for_connection));
-			return false;
-		}
+			@Override
+			public void run()
+			{
+				// First check whether an Internet connection is available. If not, the QueueRecord for the
+				// 'disseminate message' task will be processed later
+				if (NetworkHelper.checkInternetAvailability() == true)
+				{
+					disseminateMessage(newQueueRecord, newMsgPayload, toPubkey, doPOW);
+				}
+				else
+				{
+					MessageStatusHandler.updateMessageStatus(message, App.getContext().getString(R.string.message_status_waiting_for_connection));
+				}
+			}
+		});
+		return true;
 	}
 	
 	/**
@@ -377,23 +460,12 @@ public class TaskController
 		
 		try
 		{
-			// Start the message download thread.
-		    MessageDownloadThread.getInstance().startThread();
+			// Start the incoming message pipeline, which downloads and processes any new msgs and then sends any pending acknowledgements
+			IncomingMessagePipeline.getInstance().start();
 		}
 		catch (Exception e)
 		{
-			Log.e(TAG, "While running TaskController.checkForMessagesAndSendAcks(), MessageDownloadThread.getInstance().startThread() threw an Exception. \n" +
-					"The exception message was: " + e.getMessage());
-		}
-		
-		try
-		{
-			// Start the message processing thread
-			MessageProcessingThread.getInstance().startThread();
-		}
-		catch (Exception e)
-		{
-			Log.e(TAG, "While running TaskController.checkForMessagesAndSendAcks(), MessageProcessingThread.getInstance().startThread() threw an Exception. \n" +
+			Log.e(TAG, "While running TaskController.checkForMessagesAndSendAcks(), IncomingMessagePipeline.getInstance().start() threw an Exception. \n" +
 					"The exception message was: " + e.getMessage());
 		}
 	}
@@ -408,15 +480,17 @@ public class TaskController
 	 * 
 	 * @param doPOW - A boolean indicating whether or not to do POW for the updated
 	 * pubkey payload
+	 * @param allowEarlyRenewal - A boolean indicating whether or not pubkeys which will
+	 * soon expire may be disseminated again before they expire
 	 */
-	public void checkIfPubkeyDisseminationIsDue(boolean doPOW)
+	public void checkIfPubkeyDisseminationIsDue(boolean doPOW, boolean allowEarlyRenewal)
 	{
 		Log.i(TAG, "TaskController.checkIfPubkeyDisseminationIsDue() called");
 		
 		ArrayList<Address> addressesWithExpiredPubkeys = new ArrayList<Address>();
 		try
 		{
-			addressesWithExpiredPubkeys = new ReDisseminatePubkeysController().checkIfPubkeyDisseminationIsDue();
+			addressesWithExpiredPubkeys = new ReDisseminatePubkeysController().checkIfPubkeyDisseminationIsDue(allowEarlyRenewal);
 		}
 		catch (RuntimeException runEx)
 		{
@@ -435,7 +509,8 @@ public class TaskController
 	}
 	
 	/**
-	 * Re-disseminates the Pubkeys of any given Addresses
+	 * Re-disseminates the Pubkeys of any given Addresses. If several pubkeys expire
+	 * together, they are disseminated in batches. 
 	 * 
 	 * @param addressesWithExpiredPubkeys - The Addresses which require their pubkeys to
 	 * be regenerated and re-disseminated
@@ -446,6 +521,8 @@ public class TaskController
 	{
 		try
 		{
+			ArrayList<QueueRecord> queueRecords = new ArrayList<QueueRecord>();
+			ArrayList<Payload> updatedPayloads = new ArrayList<Payload>();
 			for (Address a : addressesWithExpiredPubkeys)
 			{
 				Payload updatedPayload = new ReDisseminatePubkeysController().regeneratePubkey(a, doPOW);
@@ -454,19 +531,62 @@ public class TaskController
 				QueueRecordProcessor queueProc = new QueueRecordProcessor();
 				QueueRecord queueRecord = queueProc.createAndSaveQueueRecord(BackgroundService.TASK_DISSEMINATE_PUBKEY, TimeUtils.getUnixTime(), 0, updatedPayload, null, null);
 				
-				// First check whether an Internet connection is available. If not, the QueueRecord for the
-				// 'disseminate pubkey' task will be saved (as above) and processed later
-				if (NetworkHelper.checkInternetAvailability() == true)
+				Log.d(TAG, "Re-disseminating the pubkey for address " + a.getAddress());
+				queueRecords.add(queueRecord);
+				updatedPayloads.add(updatedPayload);
+			}
+			
+			// First check whether an Internet connection is available. If not, the QueueRecords for the
+			// 'disseminate pubkey' tasks will be saved (as above) and processed later
+			if (NetworkHelper.checkInternetAvailability() == true)
+			{
+				// Attempt to disseminate the regenerated pubkeys
+				disseminatePubkeys(queueRecords, updatedPayloads, doPOW);
+			}
+		}
+		catch (RuntimeException runEx)
+		{
+			Log.e(TAG, "A RuntimeException was thrown while running TaskController.reDisseminatePubkeys(). \n" +
+					"The exception message was: " + runEx.getMessage());
+		}
+	}
+	
+	/**
+	 * Fetches the pubkeys of any addresses in the address book for which we do
+	 * not yet have a pubkey, and refreshes any of their pubkeys which will soon
+	 * expire. <br><br>
+	 * 
+	 * Note that we do NOT create QueueRecords for this task, because it is a default action
+	 * that will be carried out regularly anyway. See BackgroundService.runPeriodicTasks().
+	 */
+	public void prefetchPubkeys()
+	{
+		Log.i(TAG, "TaskController.prefetchPubkeys() called");
+		
+		try
+		{
+			PrefetchPubkeysController prefetchController = new PrefetchPubkeysController();
+			ArrayList<String> addressesToPrefetch = prefetchController.checkIfPubkeyPrefetchIsDue();
+			if (addressesToPrefetch.size() == 0)
+			{
+				Log.i(TAG, "No pubkeys are due to be prefetched");
+				return;
+			}
+			
+			int pubkeysPrefetched = 0;
+			for (String s : addressesToPrefetch)
+			{
+				if (prefetchController.prefetchPubkey(s))
 				{
-					// Attempt to disseminate the pubkey for the newly generated identity
-					Log.d(TAG, "Re-disseminating the pubkey for address " + a.getAddress());
-					disseminatePubkey(queueRecord, updatedPayload, doPOW);
+					pubkeysPrefetched ++;
 				}
 			}
+			
+			Log.i(TAG, "Prefetched " + pubkeysPrefetched + " of " + addressesToPrefetch.size() + " pubkey(s)");
 		}
 		catch (RuntimeException runEx)
 		{
-			Log.e(TAG, "A RuntimeException was thrown while running TaskController.reDisseminatePubkeys(). \n" +
+			Log.e(TAG, "A RuntimeException was thrown while running TaskController.prefetchPubkeys(). \n" +
 					"The exception message was: " + runEx.getMessage());
 		}
 	}
@@ -0,0 +1,206 @@
+package org.bitseal.controllers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A Singleton class which runs queued tasks on separate lanes, according to the
+ * kind of work that they do: <br><br>
+ *
+ * 1) CPU - Proof of work and other expensive cryptography<br>
+ * 2) Network - Retrieving pubkeys and disseminating objects to servers<br>
+ * 3) Database - Checking queued tasks and deciding which lane they should go to next<br><br>
+ *
+ * Each lane has its own threads and its own limit on how many tasks it will run at
+ * once. A task for a QueueRecord runs one stage of that task on the appropriate lane,
+ * then hands the next stage to the next lane. This means that network work for other
+ * messages can make progress while the proof of work for one message is being done.
+ *
+ * @author Jonathan Coe
+ */
+public class TaskExecutor
+{
+	// The lanes on which tasks can be run
+	public static final int LANE_CPU = 0;
+	public static final int LANE_NETWORK = 1;
+	public static final int LANE_DATABASE = 2;
+
+	/** 
+	 * The maximum number of CPU tasks to run at once. Each proof of work calculation already uses every available 
+	 * core, so the POWScheduler only lets one run at a time. Allowing more than one task here means that an urgent
+	 * proof of work calculation can be started, pausing a less urgent one, rather than waiting for it to finish.
+	 */
+	private static final int CPU_LANE_THREADS = 3;
+
+	/** The maximum number of network tasks to run at once */
+	private static final int NETWORK_LANE_THREADS = 3;
+
+	/** The maximum number of database tasks to run at once. Using a single thread means that queued tasks are checked one at a time. */
+	private static final int DATABASE_LANE_THREADS = 1;
+
+	private final ExecutorService cpuLane;
+	private final ExecutorService networkLane;
+	private final ExecutorService databaseLane;
+
+	/** The number of tasks which have been started on any lane and have not yet finished */
+	private int outstandingTasks;
+	private final Object taskLock = new Object();
+
+	private static final String TAG = "TASK_EXECUTOR";
+
+	private static class Holder
+	{
+		static final TaskExecutor INSTANCE = new TaskExecutor();
+	}
+
+	/**
+	 * Returns a singleton instance of the TaskExecutor
+	 */
+	public static TaskExecutor getInstance()
+	{
+		return Holder.INSTANCE;
+	}
+
+	private TaskExecutor()
+	{
+		cpuLane = Executors.newFixedThreadPool(CPU_LANE_THREADS, createThreadFactory("TaskExecutor CPU lane"));
+		networkLane = Executors.newFixedThreadPool(NETWORK_LANE_THREADS, createThreadFactory("TaskExecutor network lane"));
+		databaseLane = Executors.newFixedThreadPool(DATABASE_LANE_THREADS, createThreadFactory("TaskExecutor database lane"));
+	}
+
+	/**
+	 * Runs the given task on the given lane. Any exception thrown by the task
+	 * is logged.
+	 *
+	 * @param lane - The lane to run the task on, e.g. LANE_CPU
+	 * @param task - The task to run
+	 */
+	public void execute(int lane, final Runnable task)
+	{
+		synchronized (taskLock)
+		{
+			outstandingTasks ++;
+		}
+
+		try
+		{
+			getLane(lane).execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						task.run();
+					}
+					catch (Exception e)
+					{
+						Log.e(TAG, "Exception occurred in TaskExecutor.execute(). The exception message was:\n"
+								+ e.getMessage());
+					}
+					finally
+					{
+						finishTask();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			finishTask();
+			throw e;
+		}
+	}
+
+	/**
+	 * Blocks until every task which has been started on any lane has finished,
+	 * including any tasks which those tasks have started on other lanes.
+	 */
+	public void awaitIdle()
+	{
+		synchronized (taskLock)
+		{
+			while (outstandingTasks > 0)
+			{
+				try
+				{
+					taskLock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					Log.e(TAG, "InterruptedException occurred in TaskExecutor.awaitIdle(). The exception message was:\n"
+							+ e.getMessage());
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records that a task has finished, waking any threads waiting in awaitIdle()
+	 * if no tasks remain
+	 */
+	private void finishTask()
+	{
+		synchronized (taskLock)
+		{
+			outstandingTasks --;
+			if (outstandingTasks == 0)
+			{
+				taskLock.notifyAll();
+			}
+		}
+	}
+
+	private ExecutorService getLane(int lane)
+	{
+		if (lane == LANE_CPU)
+		{
+			return cpuLane;
+		}
+		else if (lane == LANE_NETWORK)
+		{
+			return networkLane;
+		}
+		else if (lane == LANE_DATABASE)
+		{
+			return databaseLane;
+		}
+		else
+		{
+			throw new IllegalArgumentException("TaskExecutor.getLane() was called with an invalid lane. The invalid lane was " + lane);
+		}
+	}
+
+	/**
+	 * Creates a ThreadFactory for the threads of a lane, which run with background priority
+	 *
+	 * @param name - The name to give each thread
+	 */
+	private static ThreadFactory createThreadFactory(final String name)
+	{
+		return new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				Thread t = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
@@ -24,7 +24,10 @@ public class AckProcessor
 	 * This method will look in the application database's "Payloads" table
 	 * for any acknowledgement payloads that 'belong to me', and are thus 
 	 * acknowledgements that are waiting to be sent for messages that the user
-	 * of the app has received. 
+	 * of the app has received. <br><br>
+	 * 
+	 * The valid acknowledgements are sent to servers in batches, rather than 
+	 * in a separate request for each one. 
 	 * 
 	 * @return - A boolean indicating whether or not all outstanding acknowledgements
 	 * were successfully processed 
@@ -47,26 +50,39 @@ public class AckProcessor
 			
 			Log.i(TAG, "Number of acknowledgment messages that I need to send: " + acksToSend.size());
 			
-			// Attempt to send each ack payload retrieved from the database. If any of these payloads
+			// Check each ack payload retrieved from the database. If any of these payloads
 			// are not processed successfully, that failure is recorded in 'numberOfAcksNotProcessedSuccessfully'
 			int numberOfAcksNotProcessedSuccessfully = 0;
+			ArrayList<Payload> validAcks = new ArrayList<Payload>();
+			ArrayList<byte[]> validAckObjects = new ArrayList<byte[]>();
 			for (Payload p : acksToSend)
 			{
-				boolean ackProcessedSuccessfully = false;
+				byte[] ackObjectBytes = null;
 				try
 				{
-					ackProcessedSuccessfully = checkAndSendAcknowledgment(p);
+					ackObjectBytes = checkAcknowledgment(p);
 				}
     	        catch (Exception e)
     	        {
-    	        	Log.e(TAG, "While running AckProcessor.checkAndSendAcknowledgment(), and Exception was thrown. \n" +
+    	        	Log.e(TAG, "While running AckProcessor.checkAcknowledgment(), and Exception was thrown. \n" +
     						"The exception message was: " + e.getMessage());
     	        }
 				
-				if (ackProcessedSuccessfully == false)
+				if (ackObjectBytes == null)
 				{
 					numberOfAcksNotProcessedSuccessfully = numberOfAcksNotProcessedSuccessfully + 1;
 				}
+				else
+				{
+					validAcks.add(p);
+					validAckObjects.add(ackObjectBytes);
+				}
+			}
+			
+			// Attempt to send all the valid acks
+			if (validAcks.size() > 0)
+			{
+				numberOfAcksNotProcessedSuccessfully = numberOfAcksNotProcessedSuccessfully + sendAcknowledgments(validAcks, validAckObjects);
 			}
 			
 			if (numberOfAcksNotProcessedSuccessfully > 0)
@@ -88,15 +104,15 @@ public class AckProcessor
 	}
 	
 	/**
-	 * This method checks an acknowledgement message and, if it is found to be valid, 
-	 * attempts to disseminate it to the Bitmessage network. 
+	 * This method checks whether an acknowledgement message is valid. If it is not,
+	 * the acknowledgement is deleted. 
 	 * 
 	 * @param p - A Payload object containing the acknowledgement msg to be sent
 	 * 
-	 * @return - A boolean indicating whether or not the acknowledgement was successfully
-	 * processed 
+	 * @return - A byte[] containing the acknowledgement object to be disseminated, or
+	 * null if the acknowledgement is not valid
 	 */
-	private boolean checkAndSendAcknowledgment(Payload p)
+	private byte[] checkAcknowledgment(Payload p)
 	{
 		byte[] fullAckMessage = p.getPayload();
 		
@@ -116,24 +132,49 @@ public class AckProcessor
 					"and the attempt to send it will be cancelled. The full RuntimeException message was:\n" + 
 					e.getMessage());
 			PayloadProvider.get(App.getContext()).deletePayload(p);
-			return false;
+			return null;
 		}
 		
-		// Attempt to send the acknowledgement. 
-		ServerCommunicator servCom = new ServerCommunicator();
-		boolean disseminationSuccessful = servCom.disseminateMsg(ackObjectBytes);
-		
-		// If it is sent successfully, delete it from the database. If not, it will be kept
-		// and we will try to send it again later. 
-		if (disseminationSuccessful)
+		return ackObjectBytes;
+	}
+	
+	/**
+	 * Attempts to disseminate a group of acknowledgements to the Bitmessage network. 
+	 * Any acknowledgements which are sent successfully are deleted from the database. 
+	 * The others are kept, and we will try to send them again later. 
+	 * 
+	 * @param acks - The Payloads of the acknowledgements
+	 * @param ackObjects - The acknowledgement objects to be disseminated, in the same order
+	 * 
+	 * @return - The number of acknowledgements which were not sent successfully
+	 */
+	private int sendAcknowledgments(ArrayList<Payload> acks, ArrayList<byte[]> ackObjects)
+	{
+		boolean[] disseminationResults;
+		try
 		{
-			PayloadProvider payProv = PayloadProvider.get(App.getContext());
-			payProv.deletePayload(p);
-			return true;
+			disseminationResults = new ServerCommunicator().disseminateMsgs(ackObjects);
 		}
-		else
+		catch (Exception e)
+		{
+			Log.e(TAG, "While running AckProcessor.sendAcknowledgments(), an Exception was thrown. \n" +
+					"The exception message was: " + e.getMessage());
+			return acks.size();
+		}
+		
+		int numberOfAcksNotSent = 0;
+		PayloadProvider payProv = PayloadProvider.get(App.getContext());
+		for (int i = 0; i < acks.size(); i++)
 		{
-			return false;
+			if (disseminationResults[i])
+			{
+				payProv.deletePayload(acks.get(i));
+			}
+			else
+			{
+				numberOfAcksNotSent ++;
+			}
 		}
+		return numberOfAcksNotSent;
 	}
 }
\ No newline at end of file
@@ -13,17 +13,15 @@ import org.bitseal.data.BMObject;
 import org.bitseal.data.Message;
 import org.bitseal.data.Payload;
 import org.bitseal.data.Pubkey;
-import org.bitseal.data.QueueRecord;
 import org.bitseal.data.UnencryptedMsg;
 import org.bitseal.database.AddressProvider;
 import org.bitseal.database.AddressesTable;
+import org.bitseal.database.DatabaseContentProvider;
 import org.bitseal.database.MessageProvider;
 import org.bitseal.database.MessagesTable;
 import org.bitseal.database.PayloadProvider;
 import org.bitseal.database.PayloadsTable;
 import org.bitseal.database.PubkeyProvider;
-import org.bitseal.database.PubkeysTable;
-import org.bitseal.database.QueueRecordProvider;
 import org.bitseal.database.QueueRecordsTable;
 import org.bitseal.services.MessageStatusHandler;
 import org.bitseal.util.ArrayCopier;
@@ -33,6 +31,7 @@ import org.bitseal.util.VarintEncoder;
 import org.spongycastle.jce.interfaces.ECPrivateKey;
 import org.spongycastle.jce.interfaces.ECPublicKey;
 
+import android.content.ContentProviderOperation;
 import android.util.Base64;
 import android.util.Log;
 
@@ -63,30 +62,26 @@ public class IncomingMessageProcessor
 	
 	private static final String TAG = "INCOMING_MESSAGE_PROCESSOR";
 	
+	/** The acknowledgement Payload for the last new message processed, if it had one */
+	private Payload ackPayload;
+	
 	/**
-	 * Takes a Payload containing the data of a msg encrypted messages and
-	 * processes it, returning a new Message object for each valid message
-	 * found in the given data. <br><br>
+	 * Takes a msg Object which has already been parsed and validated and
+	 * processes it, returning a new Message object if the msg contained a new
+	 * message for us. <br><br>
+	 * 
+	 * <b>NOTE:</b> This method does not save the acknowledgement data of the new
+	 * message to the database. The caller should retrieve it using getAckPayload()
+	 * and save it along with the new message. <br><br>
 	 * 
-	 * @param msgPayload - An Payload containing the payload a possible new msg
+	 * @param msgObject - A BMObject containing a possible new msg
 	 * 
-	 * @return An boolean indicating whether or not the given Payload contained a new message
-	 * for us
+	 * @return The new Message, or null if the given msg did not contain a new
+	 * message for us
 	 */
-	public Message processReceivedMsg(Payload msgPayload)
-	{	
-		// Attempt to reconstruct the payload into a Msg object
-		BMObject msgObject = null;
-		try
-		{		
-			msgObject = new ObjectProcessor().parseObject(msgPayload.getPayload());
-		}
-		catch (RuntimeException runEx)
-		{
-			Log.i(TAG, "RuntimeException occurred in IncomingMessageProcessor.processReceivedMsg().\n" +
-					"The exception message was: " + runEx.getMessage());
-			return null;
-		}
+	public Message processReceivedMsg(BMObject msgObject)
+	{
+		ackPayload = null;
 		
 		// Check whether this msg is an acknowledgement
 		if (msgObject.getPayload().length == ACK_DATA_LENGTH)
@@ -149,6 +144,16 @@ public class IncomingMessageProcessor
 		}
 	}
 	
+	/**
+	 * Returns the acknowledgement Payload for the new message returned by the last call
+	 * to processReceivedMsg(), or null if that message did not include any 
+	 * acknowledgement data. 
+	 */
+	public Payload getAckPayload()
+	{
+		return ackPayload;
+	}
+	
 	/**
 	 * Takes the embedded pubkey data from a decrypted msg that we have received
 	 * and checks whether or not we have that pubkey data already. If we do not,
@@ -170,9 +175,7 @@ public class IncomingMessageProcessor
 			
 			// Check whether or not we have the pubkey for the sender of this message stored in our database
 			byte[] ripeHash = new AddressGenerator().calculateRipeHash(publicSigningKey, publicEncryptionKey);
-			PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
-			ArrayList<Pubkey> retrievedPubkeys = pubProv.searchPubkeys(PubkeysTable.COLUMN_RIPE_HASH, Base64.encodeToString(ripeHash, Base64.DEFAULT));
-			if (retrievedPubkeys.size() == 0)
+			if (PubkeyCache.getInstance().getPubkey(ripeHash) == null)
 			{
 				Log.i(TAG, "We received a message and found that we do not have the embedded pubkey data already. Therefore we will now save that pubkey data to our database");
 				
@@ -193,7 +196,7 @@ public class IncomingMessageProcessor
 				pubkey.setSignatureLength(0);
 				pubkey.setSignature(new byte[0]);
 				
-				pubProv.addPubkey(pubkey);
+				PubkeyProvider.get(App.getContext()).addPubkey(pubkey);
 			}
 		}
 		catch (Exception e)
@@ -215,58 +218,58 @@ public class IncomingMessageProcessor
 		// Get the ack data from the msg
 		byte[] ackData = msg.getPayload();
 		
-		// Get all acknowledgements that I am awaiting
+		// Check if this is an acknowledgement that I am awaiting
 		PayloadProvider payProv = PayloadProvider.get(App.getContext());
-		String[] columnNames = new String[]{PayloadsTable.COLUMN_ACK, PayloadsTable.COLUMN_BELONGS_TO_ME};
-		String[] searchTerms = new String[]{"1", "1"}; // 1 stands for true in the database
-		ArrayList<Payload> expectedAckPayloads = payProv.searchPayloads(columnNames, searchTerms);
+		Payload ackPayload = payProv.searchForAwaitedAck(ackData);
+		if (ackPayload == null)
+		{
+			Log.i(TAG, "Processed a msg that was found to be an acknowledgement bound for someone else");
+			return;
+		}
+		
+		// This is an acknowledgement that I am expecting! The status update and the clean-up below
+		// are applied to the database in a single transaction
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
 		
-		// Check if this is an acknowledgement bound for me
-		for (Payload p : expectedAckPayloads)
+		// Update the status of the Message that this acknowledgement is for
+		MessageProvider msgProv = MessageProvider.get(App.getContext());
+		ArrayList<Message> retrievedMessages = msgProv.searchMessages(MessagesTable.COLUMN_ACK_PAYLOAD_ID, String.valueOf(ackPayload.getId()));
+		if (retrievedMessages.size() == 1)
 		{
-			if (Arrays.equals(p.getPayload(), ackData))
-			{
-				// This is an acknowledgement that I am expecting!
-				// Update the status of the Message that this acknowledgement is for
-				MessageProvider msgProv = MessageProvider.get(App.getContext());
-				ArrayList<Message> retrievedMessages = msgProv.searchMessages(MessagesTable.COLUMN_ACK_PAYLOAD_ID, String.valueOf(p.getId()));
-				if (retrievedMessages.size() == 1)
-				{
-					// Retrieve the original message
-					Message originalMessage = retrievedMessages.get(0);
-					
-					// Update the status of this message displayed in the UI
-					String messageStatus = App.getContext().getString(R.string.message_status_ack_received);
-					MessageStatusHandler.updateMessageStatus(originalMessage, messageStatus);
-					
-					Log.d(TAG, "Acknowledgement received!\n" +
-							"Message subject:    " + originalMessage.getSubject() + "\n" +
-							"Message to address: " +  originalMessage.getToAddress());
-					
-					// Delete any QueueRecords for sending this message
-					QueueRecordProvider queueProv = QueueRecordProvider.get(App.getContext());
-					ArrayList<QueueRecord> retrievedRecords = queueProv.searchQueueRecords(QueueRecordsTable.COLUMN_OBJECT_0_ID, String.valueOf(originalMessage.getId()));
-					for (QueueRecord q : retrievedRecords)
-					{
-						// If this is a QueueRecord for one of the three 'send message' tasks
-						if (q.getTask().equals(QueueRecordProcessor.TASK_SEND_MESSAGE) || q.getTask().equals(QueueRecordProcessor.TASK_PROCESS_OUTGOING_MESSAGE) || q.getTask().equals(QueueRecordProcessor.TASK_DISSEMINATE_MESSAGE))
-						{
-							queueProv.deleteQueueRecord(q);
-						}
-					}
-				}
-				else
-				{
-					Log.d(TAG, "We received an acknowledgement that we were awaiting, but the original message could not be found in the database.");
-				}
-				
-				// We have now received this acknowledgement, so delete the 'awaiting' ack payload from the database
-				payProv.deletePayload(p);
-				return;
-			}
+			// Retrieve the original message
+			Message originalMessage = retrievedMessages.get(0);
+			String messageStatus = App.getContext().getString(R.string.message_status_ack_received);
+			originalMessage.setStatus(messageStatus);
+			operations.add(ContentProviderOperation.newUpdate(DatabaseContentProvider.CONTENT_URI_MESSAGES)
+					.withValue(MessagesTable.COLUMN_STATUS, messageStatus)
+					.withSelection(MessagesTable.COLUMN_ID + " = ? ", new String[]{String.valueOf(originalMessage.getId())})
+					.build());
+			
+			// Delete any QueueRecords for one of the three 'send message' tasks for this message
+			operations.add(ContentProviderOperation.newDelete(DatabaseContentProvider.CONTENT_URI_QUEUE_RECORDS)
+					.withSelection(QueueRecordsTable.COLUMN_OBJECT_0_ID + " = ? AND " + QueueRecordsTable.COLUMN_TASK + " IN (?, ?, ?)", 
+							new String[]{String.valueOf(originalMessage.getId()), QueueRecordProcessor.TASK_SEND_MESSAGE, 
+							QueueRecordProcessor.TASK_PROCESS_OUTGOING_MESSAGE, QueueRecordProcessor.TASK_DISSEMINATE_MESSAGE})
+					.build());
+			
+			Log.d(TAG, "Acknowledgement received!\n" +
+					"Message subject:    " + originalMessage.getSubject() + "\n" +
+					"Message to address: " +  originalMessage.getToAddress());
+		}
+		else
+		{
+			Log.d(TAG, "We received an acknowledgement that we were awaiting, but the original message could not be found in the database.");
 		}
-		// If the acknowledgement was not one that we are awaiting
-		Log.i(TAG, "Processed a msg that was found to be an acknowledgement bound for someone else");
+		
+		// We have now received this acknowledgement, so delete the 'awaiting' ack payload from the database
+		operations.add(ContentProviderOperation.newDelete(DatabaseContentProvider.CONTENT_URI_PAYLOADS)
+				.withSelection(PayloadsTable.COLUMN_ID + " = ? ", new String[]{String.valueOf(ackPayload.getId())})
+				.build());
+		
+		DatabaseContentProvider.applyOperations(operations);
+		
+		// Prompt the UI to refresh itself so that the new message status will be displayed
+		MessageStatusHandler.sendUIUpdateBroadcast();
 	}
 
 	/**
@@ -454,8 +457,8 @@ public class IncomingMessageProcessor
 		// In some rare instances, such as PyBitmessage sending a message to one of its own addresses, no ack data will be included
 		if (ackData.length != 0)
 		{
-			// Save the acknowledgement data of this msg as a Payload object and save it to 
-			// the database so that we can send it later
+			// Create a Payload object containing the acknowledgement data of this msg. This must be
+			// saved to the database so that we can send it later. See getAckPayload().
 			Payload ackPayload = new Payload();
 			ackPayload.setBelongsToMe(false); // i.e This is the acknowledgement of a msg created by someone else
 			ackPayload.setProcessingComplete(true); // Set 'processing complete' to true so that we won't attempt to process this as a new incoming msg
@@ -463,9 +466,7 @@ public class IncomingMessageProcessor
 			ackPayload.setAck(true); // This payload is an acknowledgement
 			ackPayload.setType(Payload.OBJECT_TYPE_MSG); // Currently we treat all acks from other people as msgs. Strictly though they can be objects of any type, so this may change
 			ackPayload.setPayload(ackData);
-			
-			PayloadProvider payProv = PayloadProvider.get(App.getContext());
-			payProv.addPayload(ackPayload);
+			this.ackPayload = ackPayload;
 		}
 
 		return unencMsg;
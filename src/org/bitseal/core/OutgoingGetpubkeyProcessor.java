@@ -2,16 +2,23 @@ package org.bitseal.core;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 import org.bitseal.R;
 import org.bitseal.data.Message;
 import org.bitseal.data.Payload;
 import org.bitseal.database.PayloadProvider;
+import org.bitseal.database.PayloadsTable;
 import org.bitseal.network.NetworkHelper;
 import org.bitseal.network.ServerCommunicator;
 import org.bitseal.pow.POWProcessor;
 import org.bitseal.services.MessageStatusHandler;
+import org.bitseal.util.ArrayCopier;
+import org.bitseal.util.ByteFormatter;
 import org.bitseal.util.ByteUtils;
+import org.bitseal.util.SingleFlight;
 import org.bitseal.util.TimeUtils;
 import org.bitseal.util.VarintEncoder;
 
@@ -28,6 +35,9 @@ public class OutgoingGetpubkeyProcessor
 	/** The object type number for getpubkeys, as defined by the Bitmessage protocol */
 	private static final int OBJECT_TYPE_GETPUBKEY = 0;
 	
+	/** Getpubkeys which are currently being created, keyed by the ripe hash or tag of the pubkey they request */
+	private static final SingleFlight<Payload> GETPUBKEY_CREATIONS = new SingleFlight<Payload>();
+	
 	private static final String TAG = "OUTGOING_GETPUBKEY_PROCESSOR";
 	
 	/**
@@ -55,56 +65,144 @@ public class OutgoingGetpubkeyProcessor
 	
 	/**
 	 * Creates a new getpubkey object for the 'to address' of a given Message and
-	 * disseminates it to the rest of the Bitmessage network. 
+	 * disseminates it to the rest of the Bitmessage network. <br><br>
+	 * 
+	 * If we already have a valid getpubkey for the same address, for example because
+	 * another message is being sent to that address or because one was created while
+	 * the message was being written, it is used instead of creating a new one. Likewise, 
+	 * if a getpubkey for the same address is being created at the moment, we wait for it
+	 * rather than doing the POW for a second one. 
 	 * 
 	 * @param addressString - The Message we are trying to send
 	 * @param timeToLive - The 'time to live' value (in seconds) to be used in creating 
 	 * this getpubkey
 	 * 
-	 * @return - A Payload object containing the newly created getpubkey object
+	 * @return - A Payload object containing the getpubkey object
 	 */
-	public Payload constructAndDisseminateGetpubkeyRequst(Message message, long timeToLive)
+	public Payload constructAndDisseminateGetpubkeyRequst(Message message, final long timeToLive)
 	{
-		// We were unable to retrieve the pubkey after trying all servers. Now we must create a getpubkey 
-		// object which can be sent out to servers. We should then be able to retrieve the required pubkey.
-		Payload getpubkeyPayload = constructGetpubkeyPayload(message.getToAddress(), timeToLive);
+		Payload getpubkeyPayload = constructGetpubkeyRequest(message.getToAddress(), timeToLive);
 		
-		// Save the getpubkey object to the database
-		PayloadProvider payProv = PayloadProvider.get(App.getContext());
-		long id = payProv.addPayload(getpubkeyPayload);
-		getpubkeyPayload.setId(id);
-		
-		// Check whether an Internet connection is available. 
-		if (NetworkHelper.checkInternetAvailability() == true)
+		// Disseminate the getpubkey, unless it has been disseminated already
+		if (getpubkeyPayload.getTime() == 0 && NetworkHelper.checkInternetAvailability() == true)
 		{
-			// Update the status of this message displayed in the UI
-			String messageStatus = App.getContext().getString(R.string.message_status_requesting_pubkey);
-			MessageStatusHandler.updateMessageStatus(message, messageStatus);
-			
-			// Disseminate the getpubkey payload
 			try
 			{
-				ServerCommunicator servCom = new ServerCommunicator();
-				boolean disseminationSuccessful = servCom.disseminateGetpubkey(getpubkeyPayload.getPayload());
-				if (disseminationSuccessful)
-				{
-					getpubkeyPayload.setTime(System.currentTimeMillis() / 1000);
-					payProv.updatePayload(getpubkeyPayload);
-				}
-				return getpubkeyPayload;
+				disseminateGetpubkeyRequest(getpubkeyPayload);
 			}
 			catch (RuntimeException e)
 			{
-				Log.e(TAG, "RuntimeException occurred in PubkeyProcessor.constructAndDisseminateGetpubkeyRequst()\n"
+				Log.e(TAG, "RuntimeException occurred in OutgoingGetpubkeyProcessor.constructAndDisseminateGetpubkeyRequst()\n"
 						+ "The exception message was: " + e.getMessage());
-				return getpubkeyPayload;
 			}
 		}
-		else
+		
+		// Update the status of this message displayed in the UI
+		if (getpubkeyPayload.getTime() != 0) // If the getpubkey has been disseminated
+		{
+			MessageStatusHandler.updateMessageStatus(message, App.getContext().getString(R.string.message_status_requesting_pubkey));
+		}
+		else if (NetworkHelper.checkInternetAvailability() == false)
 		{
 			MessageStatusHandler.updateMessageStatus(message, App.getContext().getString(R.string.message_status_waiting_for_connection));
-			return getpubkeyPayload;
-		}	
+		}
+		return getpubkeyPayload;
+	}
+	
+	/**
+	 * Creates a new getpubkey object for the given address and saves it to the 
+	 * database, without disseminating it, unless we already have a valid getpubkey
+	 * for that address or one is being created at the moment. 
+	 * 
+	 * @param addressString - The address of the pubkey to be requested
+	 * @param timeToLive - The 'time to live' value (in seconds) to be used in creating 
+	 * this getpubkey
+	 * 
+	 * @return - A Payload object containing the getpubkey object
+	 */
+	public Payload constructGetpubkeyRequest(final String addressString, final long timeToLive)
+	{
+		final byte[] pubkeyIdentifier = calculatePubkeyIdentifier(addressString);
+		
+		return GETPUBKEY_CREATIONS.execute(ByteFormatter.byteArrayToHexString(pubkeyIdentifier), new Callable<Payload>()
+		{
+			@Override
+			public Payload call()
+			{
+				Payload existingGetpubkey = findExistingGetpubkey(pubkeyIdentifier);
+				if (existingGetpubkey != null)
+				{
+					Log.i(TAG, "Using an existing getpubkey Payload to request the pubkey of address " + addressString);
+					return existingGetpubkey;
+				}
+				
+				// We were unable to retrieve the pubkey after trying all servers. Now we must create a getpubkey 
+				// object which can be sent out to servers. We should then be able to retrieve the required pubkey.
+				Payload newGetpubkey = constructGetpubkeyPayload(addressString, timeToLive);
+				
+				// Save the getpubkey object to the database
+				PayloadProvider payProv = PayloadProvider.get(App.getContext());
+				long id = payProv.addPayload(newGetpubkey);
+				newGetpubkey.setId(id);
+				return newGetpubkey;
+			}
+		});
+	}
+	
+	/**
+	 * Searches the database for a getpubkey which we have already created to request
+	 * the pubkey with the given identifier, and which has not yet expired
+	 * 
+	 * @param pubkeyIdentifier - The ripe hash or tag of the pubkey
+	 * 
+	 * @return A Payload object containing the getpubkey, or null if none was found
+	 */
+	private Payload findExistingGetpubkey(byte[] pubkeyIdentifier)
+	{
+		PayloadProvider payProv = PayloadProvider.get(App.getContext());
+		String[] columnNames = new String[]{PayloadsTable.COLUMN_TYPE, PayloadsTable.COLUMN_BELONGS_TO_ME};
+		String[] selections = new String[]{Payload.OBJECT_TYPE_GETPUBKEY, "1"}; // 1 stands for true in the database
+		ArrayList<Payload> myGetpubkeys = payProv.searchPayloads(columnNames, selections);
+		
+		ObjectProcessor objProc = new ObjectProcessor();
+		for (Payload p : myGetpubkeys)
+		{
+			// The pubkey identifier is the last field of a getpubkey
+			byte[] payload = p.getPayload();
+			if (payload.length < pubkeyIdentifier.length)
+			{
+				continue;
+			}
+			byte[] identifier = ArrayCopier.copyOfRange(payload, payload.length - pubkeyIdentifier.length, payload.length);
+			if (Arrays.equals(identifier, pubkeyIdentifier) && objProc.validateObject(payload))
+			{
+				return p;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Calculates the data used by a getpubkey to identify the pubkey it requests. For
+	 * address versions 3 and below, this is the ripe hash. For address versions 4 and
+	 * above, this is the 'tag'. 
+	 * 
+	 * @param addressString - A String containing the address of the pubkey
+	 * 
+	 * @return A byte[] containing the pubkey identifier
+	 */
+	private byte[] calculatePubkeyIdentifier(String addressString)
+	{
+		AddressProcessor addProc = new AddressProcessor();
+		int addressVersion = addProc.decodeAddressNumbers(addressString)[0];
+		if (addressVersion <= 3)
+		{
+			return addProc.extractRipeHashFromAddress(addressString);
+		}
+		else
+		{
+			return addProc.calculateAddressTag(addressString);
+		}
 	}
 	
 	/**
@@ -132,15 +230,7 @@ public class OutgoingGetpubkeyProcessor
 		int addressVersion = decodedAddressNumbers[0];
 		int streamNumber = decodedAddressNumbers[1];
 		
-		byte[] pubkeyIdentifier = null;
-		if (addressVersion <= 3)
-		{
-			pubkeyIdentifier = addProc.extractRipeHashFromAddress(addressString);
-		}
-		else
-		{
-			pubkeyIdentifier = addProc.calculateAddressTag(addressString);
-		}
+		byte[] pubkeyIdentifier = calculatePubkeyIdentifier(addressString);
 		
 		byte[] payload = null;
 		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
@@ -162,7 +252,7 @@ public class OutgoingGetpubkeyProcessor
 		
 		// Do the POW for the payload we have constructed
 		POWProcessor powProc = new POWProcessor();
-		long powNonce = powProc.doPOW(payload, expirationTime, POWProcessor.NETWORK_NONCE_TRIALS_PER_BYTE, POWProcessor.NETWORK_EXTRA_BYTES);
+		long powNonce = powProc.doPOW(payload, expirationTime, POWProcessor.NETWORK_NONCE_TRIALS_PER_BYTE, POWProcessor.NETWORK_EXTRA_BYTES, POWProcessor.POW_PRIORITY_GETPUBKEY);
 		byte[] powNonceBytes = ByteUtils.longToBytes(powNonce);
 		
 		// Add the POW nonce to the payload
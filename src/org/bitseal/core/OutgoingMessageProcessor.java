@@ -298,7 +298,7 @@ public class OutgoingMessageProcessor
 			// Do proof of work for the Msg object
 			Log.i(TAG, "About to do POW calculations for a msg that we are sending");
 			byte[] powPayload = constructMsgPayloadForPOW(msg);
-			long powNonce = new POWProcessor().doPOW(powPayload, unencMsg.getExpirationTime(), toPubkey.getNonceTrialsPerByte(), toPubkey.getExtraBytes());
+			long powNonce = new POWProcessor().doPOW(powPayload, unencMsg.getExpirationTime(), toPubkey.getNonceTrialsPerByte(), toPubkey.getExtraBytes(), POWProcessor.POW_PRIORITY_MSG);
 			msg.setPOWNonce(powNonce);
 		}
 		else
@@ -436,7 +436,7 @@ public class OutgoingMessageProcessor
 			
 			// Do proof of work for the acknowledgement payload
 			Log.i(TAG, "About to do POW calculations for the acknowledgment payload of a msg that we are sending");
-			long powNonce = new POWProcessor().doPOW(initialPayload, expirationTime, POWProcessor.NETWORK_NONCE_TRIALS_PER_BYTE, POWProcessor.NETWORK_EXTRA_BYTES);
+			long powNonce = new POWProcessor().doPOW(initialPayload, expirationTime, POWProcessor.NETWORK_NONCE_TRIALS_PER_BYTE, POWProcessor.NETWORK_EXTRA_BYTES, POWProcessor.POW_PRIORITY_ACK);
 		
 			byte[] powNonceBytes = ByteUtils.longToBytes(powNonce);
 			
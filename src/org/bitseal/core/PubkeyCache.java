@@ -0,0 +1,315 @@
+package org.bitseal.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bitseal.data.AddressBookRecord;
+import org.bitseal.data.Pubkey;
+import org.bitseal.database.AddressBookRecordProvider;
+import org.bitseal.database.DatabaseContentProvider;
+import org.bitseal.database.PubkeyProvider;
+import org.bitseal.database.PubkeysTable;
+import org.bitseal.util.ByteUtils;
+
+import android.database.ContentObserver;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * A Singleton class which sits in front of the pubkeys table, holding the most
+ * recently used pubkeys in memory so that repeated lookups do not need to query
+ * the database. <br><br>
+ * 
+ * The cache is cleared whenever pubkeys are added to, updated in, or deleted from
+ * the database. The time at which each pubkey was last used is recorded in the
+ * database, so that the pubkeys of other people which are no longer needed can be
+ * deleted. <br><br>
+ * 
+ * The cache also remembers the addresses for which servers have recently answered
+ * that they do not have the pubkey, e.g. because the owner of the address has not
+ * yet published it. Further requests for those pubkeys are held back for a period
+ * which doubles after each failure, so that we do not call every server again for
+ * a pubkey that is not there.
+ * 
+ * @author Jonathan Coe
+ */
+public class PubkeyCache
+{
+	/** The cached pubkeys, keyed by their ripe hash and ordered from least to most recently used */
+	private final LinkedHashMap<String, CachedPubkey> pubkeys;
+	
+	/** The recent failures to retrieve pubkeys from a server, keyed by ripe hash */
+	private final HashMap<String, LookupFailure> lookupFailures;
+	
+	/** Incremented whenever the cache is cleared, so that pubkeys read from the database before then are not cached */
+	private long generation;
+	
+	/** The maximum number of pubkeys to hold in memory */
+	private static final int MAX_CACHED_PUBKEYS = 64;
+	
+	/** The minimum amount of time (in seconds) between each update to the last used time of a pubkey */
+	private static final long LAST_USED_TIME_UPDATE_INTERVAL = 86400; // Currently set to 1 day
+	
+	/** The amount of time (in seconds) for which we will wait before retrying a failed pubkey request for the first time */
+	private static final long MIN_LOOKUP_BACKOFF = 300; // Currently set to 5 minutes
+	
+	/** 
+	 * The maximum amount of time (in seconds) for which we will wait before retrying a failed pubkey request. This
+	 * should be no longer than the maximum retry delay for sending a msg whose pubkey is missing (see QueueRecordProcessor), 
+	 * so that the reply to a getpubkey we have sent is not ignored when that msg is retried. 
+	 */
+	private static final long MAX_LOOKUP_BACKOFF = 1800; // Currently set to 30 minutes
+	
+	private static final String TAG = "PUBKEY_CACHE";
+	
+	/**
+	 * A pubkey held in the cache, along with the last used time which we have
+	 * most recently saved for it
+	 */
+	private static class CachedPubkey
+	{
+		private final Pubkey pubkey;
+		private long savedLastUsedTime;
+		
+		private CachedPubkey(Pubkey pubkey)
+		{
+			this.pubkey = pubkey;
+		}
+	}
+	
+	/**
+	 * A record of the recent failures to retrieve a pubkey from a server
+	 */
+	private static class LookupFailure
+	{
+		private long backoff;
+		private long retryTime;
+	}
+	
+	private static class Holder
+	{
+		static final PubkeyCache INSTANCE = new PubkeyCache();
+	}
+	
+	/**
+	 * Returns a singleton instance of the PubkeyCache
+	 */
+	public static PubkeyCache getInstance()
+	{
+		return Holder.INSTANCE;
+	}
+	
+	private PubkeyCache()
+	{
+		pubkeys = new LinkedHashMap<String, CachedPubkey>(MAX_CACHED_PUBKEYS, 0.75f, true)
+		{
+			private static final long serialVersionUID = -4219325745374512093L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedPubkey> eldest)
+			{
+				return size() > MAX_CACHED_PUBKEYS;
+			}
+		};
+		lookupFailures = new HashMap<String, LookupFailure>();
+		
+		// Clear the cache whenever the pubkeys table is changed. Changes to the last used time of individual
+		// records are made through the URI of each record, and so do not cause the cache to be cleared.
+		App.getContext().getContentResolver().registerContentObserver(DatabaseContentProvider.CONTENT_URI_PUBKEYS, false, new ContentObserver(null)
+		{
+			@Override
+			public void onChange(boolean selfChange)
+			{
+				clear();
+			}
+		});
+	}
+	
+	/**
+	 * Returns the pubkey with the given ripe hash, reading it from the database if
+	 * it is not held in memory. If duplicate pubkeys are found in the database, the
+	 * first one is used and the others are deleted.
+	 * 
+	 * @param ripeHash - A byte[] containing the ripe hash of the pubkey
+	 * 
+	 * @return A Pubkey, or null if the pubkey cannot be found
+	 */
+	public Pubkey getPubkey(byte[] ripeHash)
+	{
+		String key = getKey(ripeHash);
+		
+		CachedPubkey cachedPubkey;
+		long generationBeforeRead;
+		synchronized (this)
+		{
+			cachedPubkey = pubkeys.get(key);
+			generationBeforeRead = generation;
+		}
+		
+		if (cachedPubkey == null)
+		{
+			// Note that ripe hashes in the database have their leading zeros removed
+			PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
+			ArrayList<Pubkey> retrievedPubkeys = pubProv.searchPubkeys(PubkeysTable.COLUMN_RIPE_HASH, key);
+			if (retrievedPubkeys.size() == 0)
+			{
+				return null;
+			}
+			if (retrievedPubkeys.size() > 1)
+			{
+				Log.i(TAG, "We seem to have found duplicate pubkeys during the database search. We will use the first one and delete the duplicates.");
+				for (int i = 1; i < retrievedPubkeys.size(); i++) // Keep the first record and delete all the others
+				{
+					pubProv.deletePubkey(retrievedPubkeys.get(i));
+				}
+			}
+			
+			cachedPubkey = new CachedPubkey(retrievedPubkeys.get(0));
+			synchronized (this)
+			{
+				if (generation == generationBeforeRead)
+				{
+					pubkeys.put(key, cachedPubkey);
+				}
+			}
+		}
+		
+		recordUse(cachedPubkey);
+		return cachedPubkey.pubkey;
+	}
+	
+	/**
+	 * Checks whether requests to servers for the pubkey with the given ripe hash
+	 * are currently being held back because of previous failures
+	 * 
+	 * @param ripeHash - A byte[] containing the ripe hash of the pubkey
+	 * 
+	 * @return The number of seconds until the pubkey may be requested again, or
+	 * zero if it may be requested now
+	 */
+	public synchronized long getLookupBackoffRemaining(byte[] ripeHash)
+	{
+		LookupFailure failure = lookupFailures.get(getKey(ripeHash));
+		if (failure == null)
+		{
+			return 0;
+		}
+		return Math.max(0, failure.retryTime - (System.currentTimeMillis() / 1000));
+	}
+	
+	/**
+	 * Records that servers did not have the pubkey with the given ripe hash,
+	 * doubling the time we will wait before requesting it again
+	 * 
+	 * @param ripeHash - A byte[] containing the ripe hash of the pubkey
+	 */
+	public synchronized void recordLookupFailure(byte[] ripeHash)
+	{
+		String key = getKey(ripeHash);
+		LookupFailure failure = lookupFailures.get(key);
+		if (failure == null)
+		{
+			failure = new LookupFailure();
+			failure.backoff = MIN_LOOKUP_BACKOFF;
+			lookupFailures.put(key, failure);
+		}
+		else
+		{
+			failure.backoff = Math.min(failure.backoff * 2, MAX_LOOKUP_BACKOFF);
+		}
+		failure.retryTime = (System.currentTimeMillis() / 1000) + failure.backoff;
+	}
+	
+	/**
+	 * Clears any record of failures to retrieve the pubkey with the given ripe hash
+	 * 
+	 * @param ripeHash - A byte[] containing the ripe hash of the pubkey
+	 */
+	public synchronized void clearLookupFailures(byte[] ripeHash)
+	{
+		lookupFailures.remove(getKey(ripeHash));
+	}
+	
+	/**
+	 * Deletes the pubkeys of other people which have not been used since the given
+	 * time, unless they belong to an address in our address book
+	 * 
+	 * @param lastUsedTime - The time before which the pubkeys were last used
+	 */
+	public void deleteUnusedPubkeys(long lastUsedTime)
+	{
+		HashSet<String> addressBookRipeHashes = new HashSet<String>();
+		AddressProcessor addProc = new AddressProcessor();
+		for (AddressBookRecord a : AddressBookRecordProvider.get(App.getContext()).getAllAddressBookRecords())
+		{
+			try
+			{
+				addressBookRipeHashes.add(getKey(addProc.extractRipeHashFromAddress(a.getAddress())));
+			}
+			catch (RuntimeException e)
+			{
+				Log.e(TAG, "Unable to extract the ripe hash from address book entry " + a.getAddress() + ". The exception message was: " + e.getMessage());
+			}
+		}
+		
+		PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
+		int pubkeysDeleted = 0;
+		for (Pubkey p : pubProv.searchPubkeysNotUsedSince(lastUsedTime))
+		{
+			if (addressBookRipeHashes.contains(getKey(p.getRipeHash())) == false)
+			{
+				pubProv.deletePubkey(p);
+				pubkeysDeleted ++;
+			}
+		}
+		Log.i(TAG, "Deleted " + pubkeysDeleted + " pubkey(s) which had not been used recently");
+	}
+	
+	/**
+	 * Removes all pubkeys from the cache
+	 */
+	public synchronized void clear()
+	{
+		pubkeys.clear();
+		generation ++;
+	}
+	
+	/**
+	 * Saves the current time as the last used time of the given pubkey, unless it was
+	 * saved recently
+	 */
+	private void recordUse(CachedPubkey cachedPubkey)
+	{
+		long currentTime = System.currentTimeMillis() / 1000;
+		synchronized (this)
+		{
+			if (currentTime - cachedPubkey.savedLastUsedTime < LAST_USED_TIME_UPDATE_INTERVAL)
+			{
+				return;
+			}
+			cachedPubkey.savedLastUsedTime = currentTime;
+		}
+		
+		try
+		{
+			PubkeyProvider.get(App.getContext()).updateLastUsedTime(cachedPubkey.pubkey.getId(), currentTime);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Exception occurred in PubkeyCache.recordUse(). The exception message was:\n"
+					+ e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns the key used for the pubkey with the given ripe hash. This is the
+	 * same as the value stored in the ripe hash column of the database.
+	 */
+	private String getKey(byte[] ripeHash)
+	{
+		return Base64.encodeToString(ByteUtils.stripLeadingZeros(ripeHash), Base64.DEFAULT);
+	}
+}
@@ -2,7 +2,7 @@ package org.bitseal.core;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.concurrent.Callable;
 
 import org.bitseal.R;
 import org.bitseal.crypt.AddressGenerator;
@@ -17,18 +17,20 @@ import org.bitseal.data.Pubkey;
 import org.bitseal.database.AddressProvider;
 import org.bitseal.database.PayloadProvider;
 import org.bitseal.database.PubkeyProvider;
-import org.bitseal.database.PubkeysTable;
 import org.bitseal.network.NetworkHelper;
+import org.bitseal.network.PubkeyNotFoundException;
 import org.bitseal.network.ServerCommunicator;
 import org.bitseal.pow.POWProcessor;
 import org.bitseal.services.MessageStatusHandler;
 import org.bitseal.util.ArrayCopier;
+import org.bitseal.util.ByteFormatter;
 import org.bitseal.util.ByteUtils;
+import org.bitseal.util.SingleFlight;
+import org.bitseal.util.TimeUtils;
 import org.bitseal.util.VarintEncoder;
 import org.spongycastle.jce.interfaces.ECPrivateKey;
 import org.spongycastle.jce.interfaces.ECPublicKey;
 
-import android.util.Base64;
 import android.util.Log;
 
 /**
@@ -47,6 +49,9 @@ public class PubkeyProcessor
 	private static final int EMPTY_SIGNATURE_LENGTH = 0; // Pubkeys of version 2 and below do not have signatures
 	private static final byte[] EMPTY_SIGNATURE = new byte[]{0};
 	
+	/** Pubkey requests which are currently being made to servers, keyed by the ripe hash or tag of the pubkey */
+	private static final SingleFlight<Pubkey> SERVER_PUBKEY_REQUESTS = new SingleFlight<Pubkey>();
+	
 	private static final String TAG = "PUBKEY_PROCESSOR";
 	
 	/**
@@ -201,39 +206,17 @@ public class PubkeyProcessor
 	 */
 	private Pubkey retrievePubkeyFromDatabase(byte[] ripeHash)
 	{
-		// Search the application's database to see if the pubkey we need is stored there
-		// Note that ripe hashes in the database have their leading zeros removed
-		PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
-		ArrayList<Pubkey> retrievedPubkeys = pubProv.searchPubkeys(PubkeysTable.COLUMN_RIPE_HASH, Base64.encodeToString(ByteUtils.stripLeadingZeros(ripeHash), Base64.DEFAULT));
-		if (retrievedPubkeys.size() > 1)
-		{
-			Log.i(TAG, "We seem to have found duplicate pubkeys during the database search. We will use the first one and delete the duplicates.");
-			
-			for (Pubkey p : retrievedPubkeys)
-			{
-				if (retrievedPubkeys.indexOf(p) != 0) // Keep the first record and delete all the others
-				{
-					pubProv.deletePubkey(p);
-				}
-			}
-			
-			Pubkey pubkey = retrievedPubkeys.get(0);
-			return pubkey;
-		}
-		else if (retrievedPubkeys.size() == 1)
-		{
-			Pubkey pubkey = retrievedPubkeys.get(0);
-			return pubkey;
-		}
-		else
-		{
-			return null;
-		}
+		// The PubkeyCache holds recently used pubkeys in memory, and searches the database for any others
+		return PubkeyCache.getInstance().getPubkey(ripeHash);
 	}
 	
 	/**
 	 * Attempts to retrieve the pubkey with a given address string and ripe hash from a server.<br><br>
 	 * 
+	 * If a request for the same pubkey is already in progress, for example because several
+	 * messages are being sent to the same new address, no new request is made. Instead we 
+	 * wait for the request in progress and use its result. <br><br>
+	 * 
 	 * Note! If the pubkey cannot be found, this method will throw a RuntimeException
 	 * 
 	 * @param addressString - A String containing the address of pubkey to be retrieved 
@@ -241,40 +224,152 @@ public class PubkeyProcessor
 	 * 
 	 * @return A Pubkey, or null if the Pubkey cannot be found
 	 */
-	private Pubkey retrievePubkeyFromServer(String addressString, byte[] ripeHash)
+	private Pubkey retrievePubkeyFromServer(final String addressString, final byte[] ripeHash)
+	{
+		final int addressVersion = new AddressProcessor().decodeAddressNumbers(addressString)[0];
+		final byte[] identifier = calculatePubkeyIdentifier(addressString, addressVersion, ripeHash);
+		
+		// If the ServerCommunicator fails to retrieve the Pubkey then it will throw a RuntimeException. This will be passed
+		// up the method call hierarchy and handled. 
+		return SERVER_PUBKEY_REQUESTS.execute(ByteFormatter.byteArrayToHexString(identifier), new Callable<Pubkey>()
+		{
+			@Override
+			public Pubkey call()
+			{
+				// Another request for this pubkey may have finished while we were checking the database
+				Pubkey pubkey = retrievePubkeyFromDatabase(ripeHash);
+				if (pubkey != null)
+				{
+					return pubkey;
+				}
+				
+				// Retrieve the pubkey from a server
+				pubkey = requestPubkeyFromServer(addressString, ripeHash, identifier, addressVersion);
+				
+				// Save the pubkey to the database and set its ID with the one generated by the database
+				PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
+				long id = pubProv.addPubkey(pubkey);
+				pubkey.setId(id);
+				
+				return pubkey;
+			}
+		});
+	}
+		
+	/**
+	 * Requests a fresh copy of the pubkey for a given address from a server. If we
+	 * do not yet have a pubkey for the address, the fresh copy is saved. If we do,
+	 * the stored pubkey is replaced by the fresh copy if the fresh copy will expire
+	 * later. This allows the pubkeys of the people we send messages to be fetched
+	 * and kept up to date before they are needed. <br><br>
+	 * 
+	 * Note: If the pubkey cannot be retrieved from a server, this method will throw 
+	 * a RuntimeException
+	 * 
+	 * @param addressString - A String containing the address of the pubkey to be refreshed
+	 * 
+	 * @return The Pubkey stored in the database for the address once the refresh is complete
+	 */
+	public Pubkey refreshPubkeyFromServer(final String addressString)
 	{
-		// Extract the address version from the address string in order to determine whether the pubkey will
-		// be encrypted (version 4 and above)
 		AddressProcessor addProc = new AddressProcessor();
-		int[] decodedAddressValues = addProc.decodeAddressNumbers(addressString);
-		int addressVersion = decodedAddressValues[0];
+		final byte[] ripeHash = addProc.extractRipeHashFromAddress(addressString);
+		final int addressVersion = addProc.decodeAddressNumbers(addressString)[0];
+		final byte[] identifier = calculatePubkeyIdentifier(addressString, addressVersion, ripeHash);
 		
-		// Retrieve the pubkey from a server
-		ServerCommunicator servCom = new ServerCommunicator();
-		Pubkey pubkey = null;
+		// Share any request for the same pubkey which is already in progress
+		return SERVER_PUBKEY_REQUESTS.execute(ByteFormatter.byteArrayToHexString(identifier), new Callable<Pubkey>()
+		{
+			@Override
+			public Pubkey call()
+			{
+				Pubkey storedPubkey = retrievePubkeyFromDatabase(ripeHash);
+				Pubkey freshPubkey = requestPubkeyFromServer(addressString, ripeHash, identifier, addressVersion);
+				
+				PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
+				if (storedPubkey == null)
+				{
+					long id = pubProv.addPubkey(freshPubkey);
+					freshPubkey.setId(id);
+					return freshPubkey;
+				}
+				else if (freshPubkey.getExpirationTime() > storedPubkey.getExpirationTime())
+				{
+					freshPubkey.setId(storedPubkey.getId());
+					pubProv.updatePubkey(freshPubkey);
+					return freshPubkey;
+				}
+				else
+				{
+					Log.i(TAG, "The pubkey retrieved for address " + addressString + " does not expire later than the one we already have, so it will not be used");
+					return storedPubkey;
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns the pubkey for a given address if it is stored in the database, without
+	 * requesting it from a server. 
+	 * 
+	 * @param addressString - A String containing the address of the pubkey to be retrieved
+	 * 
+	 * @return A Pubkey, or null if no pubkey for the address is stored in the database
+	 */
+	public Pubkey retrieveStoredPubkey(String addressString)
+	{
+		byte[] ripeHash = new AddressProcessor().extractRipeHashFromAddress(addressString);
+		return retrievePubkeyFromDatabase(ripeHash);
+	}
+	
+	/**
+	 * Requests the pubkey for a given address from a server, unless servers have recently
+	 * answered that they do not have the same pubkey, in which case we wait for a while 
+	 * before trying again. Failures to reach any server do not cause us to wait. <br><br>
+	 * 
+	 * Note: If the pubkey cannot be retrieved, or may not be requested yet, this method 
+	 * will throw a RuntimeException
+	 */
+	private Pubkey requestPubkeyFromServer(String addressString, byte[] ripeHash, byte[] identifier, int addressVersion)
+	{
+		PubkeyCache cache = PubkeyCache.getInstance();
+		long backoffRemaining = cache.getLookupBackoffRemaining(ripeHash);
+		if (backoffRemaining > 0)
+		{
+			throw new RuntimeException("Recent requests for the pubkey of address " + addressString + " have failed. It will not be requested again for " 
+					+ TimeUtils.getTimeMessage(backoffRemaining));
+		}
 		
-		if (addressVersion >= 4) // The pubkey will be encrypted
+		try
 		{
-			// Calculate the tag that will be used to request the encrypted pubkey
-			byte[] tag = addProc.calculateAddressTag(addressString);
-			
-			// Retrieve the encrypted pubkey from a server
-			pubkey = servCom.requestPubkeyFromServer(addressString, tag, addressVersion);
+			Pubkey pubkey = new ServerCommunicator().requestPubkeyFromServer(addressString, identifier, addressVersion);
+			cache.clearLookupFailures(ripeHash);
+			return pubkey;
 		}
-		else // The pubkey is of version 3 or below, and will therefore not be encrypted
+		catch (PubkeyNotFoundException e)
 		{
-			pubkey = servCom.requestPubkeyFromServer(addressString, ripeHash, addressVersion);
+			cache.recordLookupFailure(ripeHash);
+			throw e;
 		}
-		
-		// Save the pubkey to the database and set its ID with the one generated by the database
-		PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
-		long id = pubProv.addPubkey(pubkey);
-		pubkey.setId(id);
-		
-		return pubkey; // If the ServerCommunicator fails to retrieve the Pubkey then it will throw a RuntimeException. This will be passed
-					   // up the method call hierarchy and handled. 
 	}
-		
+	
+	/**
+	 * Calculates the identifier used to request the pubkey of a given address from a server. 
+	 * For address versions 3 and below, this is the ripe hash. For address versions 4 and above, 
+	 * the pubkey will be encrypted, so this is the 'tag'. 
+	 */
+	private byte[] calculatePubkeyIdentifier(String addressString, int addressVersion, byte[] ripeHash)
+	{
+		if (addressVersion >= 4)
+		{
+			return new AddressProcessor().calculateAddressTag(addressString);
+		}
+		else
+		{
+			return ripeHash;
+		}
+	}
+	
 	/**
 	 * Reconstructs a pubkey from its encoded byte[] form, typically
 	 * the data received from a server after requesting a pubkey. 
@@ -459,7 +554,7 @@ public class PubkeyProcessor
 			
 		if (doPOW)
 		{
-			long powNonce = new POWProcessor().doPOW(payload, pubkey.getExpirationTime(), POWProcessor.NETWORK_NONCE_TRIALS_PER_BYTE, POWProcessor.NETWORK_EXTRA_BYTES);
+			long powNonce = new POWProcessor().doPOW(payload, pubkey.getExpirationTime(), POWProcessor.NETWORK_NONCE_TRIALS_PER_BYTE, POWProcessor.NETWORK_EXTRA_BYTES, POWProcessor.POW_PRIORITY_PUBKEY);
 			payload = ByteUtils.concatenateByteArrays(ByteUtils.longToBytes(powNonce), payload);
 		}
 		
@@ -1,5 +1,7 @@
 package org.bitseal.core;
 
+import java.security.SecureRandom;
+
 import org.bitseal.data.Address;
 import org.bitseal.data.Message;
 import org.bitseal.data.Payload;
@@ -23,6 +25,29 @@ public class QueueRecordProcessor
 	public static final String TASK_CREATE_IDENTITY = "createIdentity";
 	public static final String TASK_DISSEMINATE_PUBKEY = "disseminatePubkey";
 	
+	// The classes of failure which can occur when attempting a task. Each has its own retry schedule. 
+	/** We were unable to reach a server, or a server did not accept our request */
+	public static final int FAILURE_NETWORK = 0;
+	/** The pubkey we need has not yet been published, so we have sent a getpubkey and must wait for a reply */
+	public static final int FAILURE_PUBKEY_MISSING = 1;
+	/** We were unable to do the proof of work or otherwise construct the object to be sent */
+	public static final int FAILURE_POW = 2;
+	
+	// The amount of time (in seconds) to wait before the first retry after each class of failure. This doubles after each further failed attempt. 
+	private static final long NETWORK_FAILURE_BASE_DELAY = 60;
+	private static final long PUBKEY_MISSING_BASE_DELAY = 300;
+	private static final long POW_FAILURE_BASE_DELAY = 60;
+	
+	// The maximum amount of time (in seconds) to wait before retrying after each class of failure. These should be kept
+	// shorter than BackgroundService.FIRST_ATTEMPT_TTL, so that a failed attempt to send a message is always retried before
+	// the QueueRecord for re-sending it is reached. 
+	private static final long NETWORK_FAILURE_MAX_DELAY = 1800; // Currently set to 30 minutes
+	private static final long PUBKEY_MISSING_MAX_DELAY = 1800; // Currently set to 30 minutes
+	private static final long POW_FAILURE_MAX_DELAY = 900; // Currently set to 15 minutes
+	
+	/** Used to add a random element to retry delays, so that many failed tasks are not all retried at once */
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
 	/**
 	 * Creates a new QueueRecord, saves it to the database, and returns it
 	 * to the caller. 
@@ -137,7 +162,8 @@ public class QueueRecordProcessor
 	 * Updates a given QueueRecord's lastAttemptTime and
 	 * numberOfAttempts values, then saves the updated QueueRecord
 	 * to the database. This method should be used when the task
-	 * of a QueueRecord has been attempted and failed. 
+	 * of a QueueRecord has been attempted and failed because of
+	 * a network problem. 
 	 * 
 	 * @param q - The QueueRecord to update
 	 * 
@@ -145,13 +171,79 @@ public class QueueRecordProcessor
 	 */
 	public QueueRecord updateQueueRecordAfterFailure (QueueRecord q)
 	{
-		q.setLastAttemptTime(System.currentTimeMillis() / 1000); // The current time in seconds	
-		int attempts = q.getAttempts();	
-		q.setAttempts(attempts + 1);
+		return updateQueueRecordAfterFailure(q, FAILURE_NETWORK);
+	}
+	
+	/**
+	 * Updates a given QueueRecord's lastAttemptTime and numberOfAttempts
+	 * values, and pushes its trigger time back so that the task will not
+	 * be attempted again until a retry delay has passed. The updated 
+	 * QueueRecord is then saved to the database. This method should be
+	 * used when the task of a QueueRecord has been attempted and failed. <br><br>
+	 * 
+	 * The retry delay doubles with each failed attempt, up to a maximum which
+	 * depends on the class of failure, and is randomised so that tasks which 
+	 * failed together are not all retried together. 
+	 * 
+	 * @param q - The QueueRecord to update
+	 * @param failureClass - The class of failure which occurred, e.g. FAILURE_NETWORK
+	 * 
+	 * @return The updated QueueRecord object
+	 */
+	public QueueRecord updateQueueRecordAfterFailure (QueueRecord q, int failureClass)
+	{
+		long currentTime = System.currentTimeMillis() / 1000;
+		int attempts = q.getAttempts() + 1;
+		long retryDelay = calculateRetryDelay(attempts, failureClass);
+		
+		q.setLastAttemptTime(currentTime);
+		q.setAttempts(attempts);
+		q.setTriggerTime(Math.max(q.getTriggerTime(), currentTime + retryDelay));
 		updateQueueRecord(q);
 		return q;
 	}
 	
+	/**
+	 * Calculates how long to wait before retrying a task which has failed
+	 * 
+	 * @param attempts - The number of failed attempts so far
+	 * @param failureClass - The class of the most recent failure
+	 * 
+	 * @return The retry delay in seconds
+	 */
+	private long calculateRetryDelay(int attempts, int failureClass)
+	{
+		long baseDelay;
+		long maxDelay;
+		if (failureClass == FAILURE_PUBKEY_MISSING)
+		{
+			baseDelay = PUBKEY_MISSING_BASE_DELAY;
+			maxDelay = PUBKEY_MISSING_MAX_DELAY;
+		}
+		else if (failureClass == FAILURE_POW)
+		{
+			baseDelay = POW_FAILURE_BASE_DELAY;
+			maxDelay = POW_FAILURE_MAX_DELAY;
+		}
+		else
+		{
+			baseDelay = NETWORK_FAILURE_BASE_DELAY;
+			maxDelay = NETWORK_FAILURE_MAX_DELAY;
+		}
+		
+		// Double the delay for each failed attempt after the first, taking care not to overflow
+		long delay = baseDelay;
+		for (int i = 1; i < attempts && delay < maxDelay; i++)
+		{
+			delay = delay * 2;
+		}
+		delay = Math.min(delay, maxDelay);
+		
+		// Wait for somewhere between half of the delay and the whole delay
+		long halfDelay = delay / 2;
+		return halfDelay + (long) (RANDOM.nextDouble() * (delay - halfDelay));
+	}
+	
 	/**
 	 * Saves the given QueueRecord to the database. 
 	 * 
@@ -1,6 +1,7 @@
 package org.bitseal.crypt;
 
 import java.math.BigInteger;
+import java.security.SecureRandom;
 
 import org.bitseal.core.AddressProcessor;
 import org.bitseal.core.App;
@@ -20,12 +21,23 @@ public class PubkeyGenerator
 	/** The 'time to live' value (in seconds) that we will use when creating new pubkey objects. */
 	private static final long PUBKEY_TTL = 172800; // Currently set to 2 days
 	
+	/** 
+	 * The maximum amount of time (in seconds) which will be randomly taken off the 'time to live' of each new pubkey, so
+	 * that the pubkeys of addresses which were created together do not all expire and need new POW at the same time.
+	 */
+	private static final long PUBKEY_TTL_JITTER = 43200; // Currently set to 12 hours
+	
+	/** The shortest 'time to live' value (in seconds) that a new pubkey object may be given */
+	public static final long MINIMUM_PUBKEY_TTL = PUBKEY_TTL - PUBKEY_TTL_JITTER;
+	
 	/** In Bitmessage protocol version 3, the network standard value for nonce trials per byte is 1000. */
 	public static final int NETWORK_NONCE_TRIALS_PER_BYTE = 1000;
 	
 	/** In Bitmessage protocol version 3, the network standard value for extra bytes is 1000. */
 	public static final int NETWORK_EXTRA_BYTES = 1000;
 	
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
 	/**
 	 * Generates a new Pubkey object for the given Address and saves it
 	 * to the app's database. Also updates the "correspondingPubkeyId" field
@@ -91,7 +103,8 @@ public class PubkeyGenerator
     	int behaviourBitfield = BehaviourBitfieldProcessor.getBitfieldForMyPubkeys();
 		
 		// Work out the 'end of life time' value to use
-		long expirationTime = TimeUtils.getFuzzedExpirationTime(PUBKEY_TTL);
+		long timeToLive = PUBKEY_TTL - (long) (RANDOM.nextDouble() * PUBKEY_TTL_JITTER);
+		long expirationTime = TimeUtils.getFuzzedExpirationTime(timeToLive);
     	
 		// Create a new Pubkey object and populate its fields. 
 		Pubkey pubkey = new Pubkey();
@@ -12,6 +12,8 @@ public class ServerRecord
 	private String url;
 	private String username;
 	private String password;
+	private double latency;
+	private double successRate;
 	
 	public long getId()
 	{
@@ -48,4 +50,29 @@ public class ServerRecord
 	{
 		this.password = password;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Returns the average latency of successful calls to this server in milliseconds, 
+	 * or zero if no call to the server has succeeded yet
+	 */
+	public double getLatency()
+	{
+		return latency;
+	}
+	public void setLatency(double latency)
+	{
+		this.latency = latency;
+	}
+	
+	/**
+	 * Returns the proportion of recent calls to this server which succeeded, between 0 and 1
+	 */
+	public double getSuccessRate()
+	{
+		return successRate;
+	}
+	public void setSuccessRate(double successRate)
+	{
+		this.successRate = successRate;
+	}
+}
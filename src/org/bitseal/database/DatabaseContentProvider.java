@@ -5,6 +5,7 @@ import info.guardianproject.cacheword.ICacheWordSubscriber;
 import info.guardianproject.cacheword.PassphraseSecrets;
 
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 
@@ -12,12 +13,16 @@ import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
 import android.annotation.SuppressLint;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -53,7 +58,7 @@ public class DatabaseContentProvider extends ContentProvider implements ICacheWo
     private static final int SERVER_RECORDS = 130;
     private static final int SERVER_RECORD_ID = 140;
 	  
-    private static final String AUTHORITY = "org.bitseal.database";
+    public static final String AUTHORITY = "org.bitseal.database";
 	  
     // The path strings for each table in the database
     private static final String PATH_ADDRESSES = "addresses";
@@ -73,6 +78,12 @@ public class DatabaseContentProvider extends ContentProvider implements ICacheWo
     public static final Uri CONTENT_URI_PUBKEYS = Uri.parse("content://" + AUTHORITY + "/" + PATH_PUBKEYS);
     public static final Uri CONTENT_URI_SERVER_RECORDS = Uri.parse("content://" + AUTHORITY + "/" + PATH_SERVER_RECORDS);
 	  
+    /** A URI query parameter which can be used to limit the number of records returned by a query */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    
+    /** A column which can be requested from any table to get the number of matching records, without reading the records themselves */
+    public static final String COLUMN_COUNT = "count(*)";
+	  
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     
     private static final String TAG = "DATABASE_CONTENT_PROVIDER";
@@ -266,7 +277,10 @@ public class DatabaseContentProvider extends ContentProvider implements ICacheWo
 		    	throw new IllegalArgumentException("Unknown URI: " + uri + " Exception occurred in DatabaseContentProvider.query()");
 	    }
 	    
-	    Cursor cursor = queryBuilder.query(sDatabase, projection, selection, selectionArgs, null, null, sortOrder);
+	    // The maximum number of records to return can optionally be specified as a query parameter of the URI
+	    String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+	    
+	    Cursor cursor = queryBuilder.query(sDatabase, projection, selection, selectionArgs, null, null, sortOrder, limit);
 	    // make sure that potential listeners are getting notified
 	    cursor.setNotificationUri(sContext.getContentResolver(), uri);
 	    return cursor;
@@ -566,6 +580,51 @@ public class DatabaseContentProvider extends ContentProvider implements ICacheWo
 	    return rowsUpdated;
 	  }
 	  
+	  /**
+	   * Applies a batch of operations inside a single database transaction, so that
+	   * either all of the operations are committed or none of them are. 
+	   */
+	  @Override
+	  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException
+	  {
+		  sDatabase.beginTransaction();
+		  try
+		  {
+			  ContentProviderResult[] results = super.applyBatch(operations);
+			  sDatabase.setTransactionSuccessful();
+			  return results;
+		  }
+		  finally
+		  {
+			  sDatabase.endTransaction();
+		  }
+	  }
+	  
+	  /**
+	   * Applies a batch of operations to the database in a single transaction. The
+	   * operations can be created using the 'buildXOperation' methods of the provider
+	   * classes. 
+	   * 
+	   * @param operations - An ArrayList containing the operations to apply
+	   * 
+	   * @return An array containing the result of each operation
+	   */
+	  public static ContentProviderResult[] applyOperations(ArrayList<ContentProviderOperation> operations)
+	  {
+		  try
+		  {
+			  return sContext.getContentResolver().applyBatch(AUTHORITY, operations);
+		  }
+		  catch (RemoteException e)
+		  {
+			  throw new RuntimeException("RemoteException occurred in DatabaseContentProvider.applyOperations(). The exception message was:\n" + e.getMessage());
+		  }
+		  catch (OperationApplicationException e)
+		  {
+			  throw new RuntimeException("OperationApplicationException occurred in DatabaseContentProvider.applyOperations(). The exception message was:\n" + e.getMessage());
+		  }
+	  }
+	  
 	  private void checkColumns(String[] projection, int uriType) 
 	  {
 		    String[] available = getAvailable(uriType);
@@ -574,6 +633,7 @@ public class DatabaseContentProvider extends ContentProvider implements ICacheWo
 		    {
 			    HashSet<String> requestedColumns = new HashSet<String>(Arrays.asList(projection));
 			    HashSet<String> availableColumns = new HashSet<String>(Arrays.asList(available));
+			    availableColumns.add(COLUMN_COUNT);
 			    // check if all columns which are requested are available
 			    if (!availableColumns.containsAll(requestedColumns)) 
 			    {
@@ -603,7 +663,7 @@ public class DatabaseContentProvider extends ContentProvider implements ICacheWo
 	    	{
 		    	String[] available = {MessagesTable.COLUMN_ID, MessagesTable.COLUMN_MSG_PAYLOAD_ID, MessagesTable.COLUMN_ACK_PAYLOAD_ID, MessagesTable.COLUMN_BELONGS_TO_ME, 
 		    			MessagesTable.COLUMN_READ, MessagesTable.COLUMN_STATUS, MessagesTable.COLUMN_TIME, MessagesTable.COLUMN_TO_ADDRESS, 
-		    			MessagesTable.COLUMN_FROM_ADDRESS, MessagesTable.COLUMN_SUBJECT, MessagesTable.COLUMN_BODY};
+		    			MessagesTable.COLUMN_FROM_ADDRESS, MessagesTable.COLUMN_SUBJECT, MessagesTable.COLUMN_BODY, MessagesTable.COLUMN_FINGERPRINT};
 		    	return available;
 	    	}
 
@@ -620,7 +680,7 @@ public class DatabaseContentProvider extends ContentProvider implements ICacheWo
 	    	{
 		    	String[] available = {PayloadsTable.COLUMN_ID, PayloadsTable.COLUMN_RELATED_ADDRESS_ID, PayloadsTable.COLUMN_BELONGS_TO_ME,
 		    			PayloadsTable.COLUMN_PROCESSING_COMPLETE, PayloadsTable.COLUMN_TIME, PayloadsTable.COLUMN_TYPE, PayloadsTable.COLUMN_ACK, 
-		    			PayloadsTable.COLUMN_POW_DONE, PayloadsTable.COLUMN_PAYLOAD};
+		    			PayloadsTable.COLUMN_POW_DONE, PayloadsTable.COLUMN_PAYLOAD, PayloadsTable.COLUMN_ACK_KEY};
 		    	return available;
 	    	}
 		    
@@ -629,13 +689,15 @@ public class DatabaseContentProvider extends ContentProvider implements ICacheWo
 		    	String[] available = {PubkeysTable.COLUMN_ID, PubkeysTable.COLUMN_BELONGS_TO_ME, PubkeysTable.COLUMN_POW_NONCE, PubkeysTable.COLUMN_EXPIRATION_TIME, 
 		    			PubkeysTable.COLUMN_OBJECT_TYPE, PubkeysTable.COLUMN_OBJECT_VERSION, PubkeysTable.COLUMN_STREAM_NUMBER, PubkeysTable.COLUMN_CORRESPONDING_ADDRESS_ID,
 		    			PubkeysTable.COLUMN_RIPE_HASH, PubkeysTable.COLUMN_BEHAVIOUR_BITFIELD, PubkeysTable.COLUMN_PUBLIC_SIGNING_KEY,	PubkeysTable.COLUMN_PUBLIC_ENCRYPTION_KEY,
-		    			PubkeysTable.COLUMN_NONCE_TRIALS_PER_BYTE, PubkeysTable.COLUMN_EXTRA_BYTES, PubkeysTable.COLUMN_SIGNATURE_LENGTH, PubkeysTable.COLUMN_SIGNATURE};
+		    			PubkeysTable.COLUMN_NONCE_TRIALS_PER_BYTE, PubkeysTable.COLUMN_EXTRA_BYTES, PubkeysTable.COLUMN_SIGNATURE_LENGTH, PubkeysTable.COLUMN_SIGNATURE,
+		    			PubkeysTable.COLUMN_LAST_USED_TIME};
 		    	return available;
 	    	}
 		    
 		    else if (uriType == SERVER_RECORDS || uriType == SERVER_RECORD_ID)
 	    	{
-		    	String[] available = {ServerRecordsTable.COLUMN_ID, ServerRecordsTable.COLUMN_URL, ServerRecordsTable.COLUMN_USERNAME, ServerRecordsTable.COLUMN_PASSWORD};
+		    	String[] available = {ServerRecordsTable.COLUMN_ID, ServerRecordsTable.COLUMN_URL, ServerRecordsTable.COLUMN_USERNAME, ServerRecordsTable.COLUMN_PASSWORD, 
+		    			ServerRecordsTable.COLUMN_LATENCY, ServerRecordsTable.COLUMN_SUCCESS_RATE};
 		    	return available;
 	    	}
 	
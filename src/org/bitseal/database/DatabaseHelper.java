@@ -7,7 +7,7 @@ import android.content.Context;
 public class DatabaseHelper extends SQLCipherOpenHelper
 {
 	protected static final String DATABASE_NAME = "bitseal_database.db";
-	private static final int DATABASE_VERSION = 7;
+	private static final int DATABASE_VERSION = 12;
 	
 	public DatabaseHelper(Context context, CacheWordHandler cacheWordHandler)
 	{
@@ -31,6 +31,25 @@ public class DatabaseHelper extends SQLCipherOpenHelper
 	@Override
 	public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion)
 	{
-		// Nothing to do here currently
+		if (oldVersion < 8)
+		{
+			PayloadsTable.addAckKeyColumn(database);
+		}
+		if (oldVersion < 9)
+		{
+			MessagesTable.addFingerprintColumn(database);
+		}
+		if (oldVersion < 10)
+		{
+			ServerRecordsTable.addScoreColumns(database);
+		}
+		if (oldVersion < 11)
+		{
+			PubkeysTable.addLastUsedTimeColumn(database);
+		}
+		if (oldVersion < 12)
+		{
+			QueueRecordsTable.addIndexes(database);
+		}
 	}
 }
\ No newline at end of file
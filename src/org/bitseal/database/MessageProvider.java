@@ -1,14 +1,20 @@
 package org.bitseal.database;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 
 import org.bitseal.data.Message;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.Base64;
 import android.util.Log;
 
 /**
@@ -67,23 +73,7 @@ public class MessageProvider
      */
     public long addMessage(Message m)
     {
-    	int belongsToMe = 0;
-    	if (m.belongsToMe())
-    	{
-    		belongsToMe = 1;
-    	}
-    	
-    	ContentValues values = new ContentValues();
-    	values.put(MessagesTable.COLUMN_MSG_PAYLOAD_ID, m.getMsgPayloadId());
-    	values.put(MessagesTable.COLUMN_ACK_PAYLOAD_ID, m.getAckPayloadId());
-    	values.put(MessagesTable.COLUMN_BELONGS_TO_ME, belongsToMe);
-    	values.put(MessagesTable.COLUMN_READ, m.hasBeenRead());
-    	values.put(MessagesTable.COLUMN_STATUS, m.getStatus());
-    	values.put(MessagesTable.COLUMN_TIME, m.getTime());
-    	values.put(MessagesTable.COLUMN_TO_ADDRESS, m.getToAddress());
-    	values.put(MessagesTable.COLUMN_FROM_ADDRESS, m.getFromAddress());
-    	values.put(MessagesTable.COLUMN_SUBJECT, m.getSubject());
-    	values.put(MessagesTable.COLUMN_BODY, m.getBody());
+    	ContentValues values = getContentValues(m);
 			
 		Uri insertionUri = mContentResolver.insert(DatabaseContentProvider.CONTENT_URI_MESSAGES, values);
     	Log.i(TAG, "Message with subject " + m.getSubject() + " saved to database");
@@ -95,6 +85,21 @@ public class MessageProvider
 		return id;
     }
     
+    /**
+     * Creates an operation which will add the given Message to the database
+     * when applied as part of a batch. See DatabaseContentProvider.applyOperations().
+     * 
+     * @param m - The Message object to be added
+     * 
+     * @return The ContentProviderOperation
+     */
+    public ContentProviderOperation buildAddOperation(Message m)
+    {
+    	return ContentProviderOperation.newInsert(DatabaseContentProvider.CONTENT_URI_MESSAGES)
+    			.withValues(getContentValues(m))
+    			.build();
+    }
+    
     /**
      * Finds all Messages in the application's database that match the given field
      * 
@@ -336,6 +341,7 @@ public class MessageProvider
     	values.put(MessagesTable.COLUMN_FROM_ADDRESS, m.getFromAddress());
     	values.put(MessagesTable.COLUMN_SUBJECT, m.getSubject());
     	values.put(MessagesTable.COLUMN_BODY, m.getBody());
+    	values.put(MessagesTable.COLUMN_FINGERPRINT, calculateFingerprint(m));
 		
 		long id = m.getId();
     	
@@ -387,7 +393,8 @@ public class MessageProvider
 	 * Takes a Message and determines whether it is a duplicate of 
 	 * any messages that are already in the inbox. This takes account
 	 * of the to address, from address, subject, body, and received time
-	 * of the message. 
+	 * of the message. The comparison is made using the fingerprint of
+	 * the message, so that it requires only a single indexed lookup. 
 	 * 
 	 * @param message - The Message object to be checked
 	 * 
@@ -395,44 +402,21 @@ public class MessageProvider
 	 */
     public boolean detectDuplicateMessage(Message message)
     {
-    	// Extract the data that we will use to make the duplicate comparison from the Message provided
-    	String toAddress = message.getToAddress();
-    	String fromAddress = message.getFromAddress();
-    	String subject = message.getSubject();
-    	String body = message.getBody();
-    	long receivedTime = message.getTime();
-    	
     	// Work out the time value to use in searching for duplicates. We will only consider a 
     	// Message to be a duplicate if we received it within a certain period of time, a period
     	// defined precisely by PYBITMESSAGE_NEW_OBJECT_ACCEPTANCE_PERIOD.
-    	long receivedSinceTime = receivedTime - PYBITMESSAGE_NEW_OBJECT_ACCEPTANCE_PERIOD;
-    	// Get the String representation of the time value
-    	String receivedSinceString = String.valueOf(receivedSinceTime);
+    	long receivedSinceTime = message.getTime() - PYBITMESSAGE_NEW_OBJECT_ACCEPTANCE_PERIOD;
     	
     	// Build the selection statement we will use
     	String selection = 
-    			MessagesTable.TABLE_MESSAGES + "." + MessagesTable.COLUMN_TO_ADDRESS + " = ? AND " +
-				MessagesTable.TABLE_MESSAGES + "." + MessagesTable.COLUMN_FROM_ADDRESS + " = ? AND " +
-				MessagesTable.TABLE_MESSAGES + "." + MessagesTable.COLUMN_SUBJECT + " = ? AND " +
-				MessagesTable.TABLE_MESSAGES + "." + MessagesTable.COLUMN_BODY + " = ? AND " +
+    			MessagesTable.TABLE_MESSAGES + "." + MessagesTable.COLUMN_FINGERPRINT + " = ? AND " +
 				MessagesTable.TABLE_MESSAGES + "." + MessagesTable.COLUMN_TIME + " > ?";
     	
     	// Build the String[] of selection arguments we will use
-    	String[] selectionArgs = new String[]{toAddress, fromAddress, subject, body, receivedSinceString};
+    	String[] selectionArgs = new String[]{calculateFingerprint(message), String.valueOf(receivedSinceTime)};
     	
-        // Specify which columns from the table we are interested in
-		String[] projection = {
-				MessagesTable.COLUMN_ID, 
-				MessagesTable.COLUMN_MSG_PAYLOAD_ID,
-				MessagesTable.COLUMN_ACK_PAYLOAD_ID,
-				MessagesTable.COLUMN_BELONGS_TO_ME,
-				MessagesTable.COLUMN_READ,
-				MessagesTable.COLUMN_STATUS,
-				MessagesTable.COLUMN_TIME,
-				MessagesTable.COLUMN_TO_ADDRESS,
-				MessagesTable.COLUMN_FROM_ADDRESS,
-				MessagesTable.COLUMN_SUBJECT,
-				MessagesTable.COLUMN_BODY};
+        // We only need to know whether any matching records exist
+		String[] projection = {MessagesTable.COLUMN_ID};
 		
 		// Query the database via the ContentProvider
 		Cursor cursor = mContentResolver.query(
@@ -442,23 +426,104 @@ public class MessageProvider
 				selectionArgs, 
 				null);
     	
-		int counter = 0;
-    	if (cursor.moveToFirst())
+		int duplicatesFound = cursor.getCount();
+		cursor.close();
+		
+    	if (duplicatesFound > 0)
     	{
-    	   while (cursor.moveToNext());
-    	   {
-    		   counter ++;
-    	   }
-    	   
-    	   Log.d(TAG, "Found " + counter + " duplicates of message with subject " + subject + " and to address " + toAddress);
-   		   cursor.close();
+    	   Log.d(TAG, "Found " + duplicatesFound + " duplicates of message with subject " + message.getSubject() + " and to address " + message.getToAddress());
     	   return true;
     	}
     	else
     	{
     		Log.i(TAG, "Found no duplicates for the message provided");
-    		cursor.close();
     		return false;
     	}
     }
+    
+    /**
+     * Calculates the fingerprint of the given Message. This is a hash of the message's
+     * to address, from address, subject, and body, which is used to detect duplicate
+     * messages. 
+     * 
+     * @param m - The Message object
+     * 
+     * @return A String containing the Base64 encoded fingerprint
+     */
+    public static String calculateFingerprint(Message m)
+    {
+    	return calculateFingerprint(m.getToAddress(), m.getFromAddress(), m.getSubject(), m.getBody());
+    }
+    
+    /**
+     * Calculates a message fingerprint from the given values. Each value is prefixed
+     * with its length before hashing, so that different combinations of values cannot
+     * produce the same input to the hash function. Null values are treated as empty. 
+     * 
+     * @param toAddress - The to address of the message
+     * @param fromAddress - The from address of the message
+     * @param subject - The subject of the message
+     * @param body - The body of the message
+     * 
+     * @return A String containing the Base64 encoded fingerprint
+     */
+    static String calculateFingerprint(String toAddress, String fromAddress, String subject, String body)
+    {
+    	try
+    	{
+    		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    		for (String value : new String[]{toAddress, fromAddress, subject, body})
+    		{
+    			byte[] valueBytes = new byte[0];
+    			if (value != null)
+    			{
+    				valueBytes = value.getBytes("UTF-8");
+    			}
+    			digest.update(ByteBuffer.allocate(4).putInt(valueBytes.length).array());
+    			digest.update(valueBytes);
+    		}
+    		return Base64.encodeToString(digest.digest(), Base64.DEFAULT);
+    	}
+    	catch (NoSuchAlgorithmException e)
+    	{
+    		throw new RuntimeException("NoSuchAlgorithmException occurred in MessageProvider.calculateFingerprint(). The exception message was:\n" 
+    				+ e.getMessage());
+    	}
+    	catch (UnsupportedEncodingException e)
+    	{
+    		throw new RuntimeException("UnsupportedEncodingException occurred in MessageProvider.calculateFingerprint(). The exception message was:\n" 
+    				+ e.getMessage());
+    	}
+    }
+    
+    /**
+     * Creates a ContentValues object containing the data from the given Message,
+     * ready to be written to the database
+     * 
+     * @param m - The Message object
+     * 
+     * @return The ContentValues object
+     */
+    private ContentValues getContentValues(Message m)
+    {
+    	int belongsToMe = 0;
+    	if (m.belongsToMe())
+    	{
+    		belongsToMe = 1;
+    	}
+    	
+    	ContentValues values = new ContentValues();
+    	values.put(MessagesTable.COLUMN_MSG_PAYLOAD_ID, m.getMsgPayloadId());
+    	values.put(MessagesTable.COLUMN_ACK_PAYLOAD_ID, m.getAckPayloadId());
+    	values.put(MessagesTable.COLUMN_BELONGS_TO_ME, belongsToMe);
+    	values.put(MessagesTable.COLUMN_READ, m.hasBeenRead());
+    	values.put(MessagesTable.COLUMN_STATUS, m.getStatus());
+    	values.put(MessagesTable.COLUMN_TIME, m.getTime());
+    	values.put(MessagesTable.COLUMN_TO_ADDRESS, m.getToAddress());
+    	values.put(MessagesTable.COLUMN_FROM_ADDRESS, m.getFromAddress());
+    	values.put(MessagesTable.COLUMN_SUBJECT, m.getSubject());
+    	values.put(MessagesTable.COLUMN_BODY, m.getBody());
+    	values.put(MessagesTable.COLUMN_FINGERPRINT, calculateFingerprint(m));
+    	return values;
+    }
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package org.bitseal.database;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.util.Log;
 
 public class MessagesTable 
@@ -19,6 +21,10 @@ public class MessagesTable
   public static final String COLUMN_FROM_ADDRESS = "from_address";
   public static final String COLUMN_SUBJECT = "subject";
   public static final String COLUMN_BODY = "body";
+  public static final String COLUMN_FINGERPRINT = "fingerprint";
+  
+  // The name of the index on the fingerprint and time columns
+  private static final String INDEX_FINGERPRINT = "messages_fingerprint_index";
 
   // Database creation SQL statement
   private static final String DATABASE_CREATE = "create table " 
@@ -34,12 +40,46 @@ public class MessagesTable
       + COLUMN_TO_ADDRESS + " text, "
       + COLUMN_FROM_ADDRESS + " text, "
       + COLUMN_SUBJECT + " text, "
-      + COLUMN_BODY + " text"
+      + COLUMN_BODY + " text, "
+      + COLUMN_FINGERPRINT + " text"
       + ");";
+  
+  // Index creation SQL statement. Allows duplicate messages to be detected with a single indexed lookup
+  private static final String INDEX_FINGERPRINT_CREATE = "create index if not exists " 
+      + INDEX_FINGERPRINT + " on " + TABLE_MESSAGES + "(" + COLUMN_FINGERPRINT + ", " + COLUMN_TIME + ");";
 
   public static void onCreate(SQLiteDatabase database) 
   {
     database.execSQL(DATABASE_CREATE);
+    database.execSQL(INDEX_FINGERPRINT_CREATE);
+  }
+  
+  /**
+   * Adds the fingerprint column and its index to an existing messages table, 
+   * calculating the fingerprint of every existing message. 
+   * 
+   * @param database - The SQLiteDatabase to upgrade
+   */
+  public static void addFingerprintColumn(SQLiteDatabase database)
+  {
+    database.execSQL("alter table " + TABLE_MESSAGES + " add column " + COLUMN_FINGERPRINT + " text");
+    
+    Cursor cursor = database.query(TABLE_MESSAGES, 
+        new String[]{COLUMN_ID, COLUMN_TO_ADDRESS, COLUMN_FROM_ADDRESS, COLUMN_SUBJECT, COLUMN_BODY}, 
+        null, null, null, null, null);
+    if (cursor.moveToFirst())
+    {
+      do
+      {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_FINGERPRINT, MessageProvider.calculateFingerprint(cursor.getString(1), cursor.getString(2), cursor.getString(3), cursor.getString(4)));
+        database.update(TABLE_MESSAGES, values, COLUMN_ID + " = " + cursor.getLong(0), null);
+      }
+      while (cursor.moveToNext());
+    }
+    cursor.close();
+    
+    database.execSQL(INDEX_FINGERPRINT_CREATE);
   }
 
   public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) 
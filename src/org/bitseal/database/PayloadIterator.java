@@ -0,0 +1,173 @@
+package org.bitseal.database;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.bitseal.data.Payload;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Base64;
+
+/**
+ * An Iterator over the Payloads in the application's database which match
+ * a given set of criteria. <br><br>
+ * 
+ * The matching records are retrieved one page at a time, ordered by ID, so that
+ * at most one page of records is held in memory at once. The payload data of each
+ * record is kept in its encoded form until that record is reached, and is only then
+ * decoded. This means that large numbers of payloads can be processed without
+ * loading all of them into memory together. <br><br>
+ * 
+ * Because each page is retrieved by querying for records with an ID greater than
+ * the last record returned, records which are modified or deleted while the
+ * iteration is in progress will not cause any records to be skipped or repeated.
+ * 
+ * @author Jonathan Coe
+ */
+public class PayloadIterator implements Iterator<Payload>
+{
+	private final ContentResolver contentResolver;
+	private final Uri pageUri;
+	private final String selectionString;
+	private final String[] selections;
+	private final int pageSize;
+	
+	private ArrayList<Payload> pageRecords;
+	private ArrayList<String> pagePayloads;
+	private int pagePosition;
+	private long lastId;
+	private boolean lastPageReached;
+	
+	/** The columns which are retrieved for each record */
+	private static final String[] PROJECTION = {
+		PayloadsTable.COLUMN_ID,
+		PayloadsTable.COLUMN_RELATED_ADDRESS_ID,
+		PayloadsTable.COLUMN_BELONGS_TO_ME,
+		PayloadsTable.COLUMN_PROCESSING_COMPLETE,
+		PayloadsTable.COLUMN_TIME,
+		PayloadsTable.COLUMN_TYPE,
+		PayloadsTable.COLUMN_ACK,
+		PayloadsTable.COLUMN_POW_DONE,
+		PayloadsTable.COLUMN_PAYLOAD};
+	
+	/**
+	 * Creates a new PayloadIterator
+	 * 
+	 * @param contentResolver - The ContentResolver to use when querying the database
+	 * @param columnNames - The columns in the table to use in the query
+	 * @param selections - The selections for each column
+	 * @param pageSize - The maximum number of records to retrieve from the database at once
+	 */
+	PayloadIterator(ContentResolver contentResolver, String[] columnNames, String[] selections, int pageSize)
+	{
+		this.contentResolver = contentResolver;
+		this.pageSize = Math.max(1, pageSize);
+		this.pageUri = DatabaseContentProvider.CONTENT_URI_PAYLOADS.buildUpon()
+				.appendQueryParameter(DatabaseContentProvider.QUERY_PARAMETER_LIMIT, String.valueOf(this.pageSize))
+				.build();
+		
+		// Build the selection String. The ID of the last record returned is added as the final selection for each page.
+		StringBuilder selectionBuilder = new StringBuilder();
+		for (String columnName : columnNames)
+		{
+			selectionBuilder.append(PayloadsTable.TABLE_PAYLOADS + "." + columnName + " = ? AND ");
+		}
+		selectionBuilder.append(PayloadsTable.TABLE_PAYLOADS + "." + PayloadsTable.COLUMN_ID + " > ?");
+		this.selectionString = selectionBuilder.toString();
+		
+		this.selections = new String[selections.length + 1];
+		System.arraycopy(selections, 0, this.selections, 0, selections.length);
+		
+		this.pageRecords = new ArrayList<Payload>();
+		this.pagePayloads = new ArrayList<String>();
+		this.pagePosition = 0;
+		this.lastId = 0;
+		this.lastPageReached = false;
+	}
+	
+	@Override
+	public boolean hasNext()
+	{
+		if (pagePosition < pageRecords.size())
+		{
+			return true;
+		}
+		if (lastPageReached)
+		{
+			return false;
+		}
+		loadNextPage();
+		return pagePosition < pageRecords.size();
+	}
+	
+	@Override
+	public Payload next()
+	{
+		if (hasNext() == false)
+		{
+			throw new NoSuchElementException("No more payloads matching the given criteria are available");
+		}
+		
+		// Decode the payload data of this record, and release the encoded form so that it can be garbage collected
+		Payload p = pageRecords.get(pagePosition);
+		p.setPayload(Base64.decode(pagePayloads.get(pagePosition), Base64.DEFAULT));
+		pageRecords.set(pagePosition, null);
+		pagePayloads.set(pagePosition, null);
+		pagePosition ++;
+		return p;
+	}
+	
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException("PayloadIterator does not support remove()");
+	}
+	
+	/**
+	 * Retrieves the next page of matching records from the database
+	 */
+	private void loadNextPage()
+	{
+		pageRecords = new ArrayList<Payload>(pageSize);
+		pagePayloads = new ArrayList<String>(pageSize);
+		pagePosition = 0;
+		selections[selections.length - 1] = String.valueOf(lastId);
+		
+		Cursor cursor = contentResolver.query(
+				pageUri,
+				PROJECTION,
+				selectionString,
+				selections,
+				PayloadsTable.TABLE_PAYLOADS + "." + PayloadsTable.COLUMN_ID + " ASC");
+		
+		if (cursor.moveToFirst())
+		{
+			do
+			{
+				Payload p = new Payload();
+				p.setId(cursor.getLong(0));
+				p.setRelatedAddressId(cursor.getLong(1));
+				p.setBelongsToMe(cursor.getInt(2) == 1);
+				p.setProcessingComplete(cursor.getInt(3) == 1);
+				p.setTime(cursor.getLong(4));
+				p.setType(cursor.getString(5));
+				p.setAck(cursor.getInt(6) == 1);
+				p.setPOWDone(cursor.getInt(7) == 1);
+				
+				pageRecords.add(p);
+				pagePayloads.add(cursor.getString(8));
+				lastId = p.getId();
+			}
+			while (cursor.moveToNext());
+		}
+		cursor.close();
+		
+		if (pageRecords.size() < pageSize)
+		{
+			lastPageReached = true;
+		}
+	}
+}
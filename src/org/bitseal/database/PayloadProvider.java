@@ -4,6 +4,7 @@ import java.util.ArrayList;
 
 import org.bitseal.data.Payload;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -62,33 +63,7 @@ public class PayloadProvider
      */
     public long addPayload(Payload p)
     {
-    	int belongsToMe = 0;
-    	if (p.belongsToMe())
-    	{
-    		belongsToMe = 1;
-    	}
-    	
-    	int processingComplete = 0;
-    	if (p.processingComplete())
-    	{
-    		processingComplete = 1;
-    	}
-    	
-    	int powDone = 0;
-    	if (p.powDone())
-    	{
-    		powDone = 1;
-    	}
-    	
-    	ContentValues values = new ContentValues();
-    	values.put(PayloadsTable.COLUMN_RELATED_ADDRESS_ID, p.getRelatedAddressId());
-    	values.put(PayloadsTable.COLUMN_BELONGS_TO_ME, belongsToMe);
-    	values.put(PayloadsTable.COLUMN_PROCESSING_COMPLETE, processingComplete);
-    	values.put(PayloadsTable.COLUMN_TIME, p.getTime());
-    	values.put(PayloadsTable.COLUMN_TYPE, p.getType());
-    	values.put(PayloadsTable.COLUMN_ACK, p.isAck());
-    	values.put(PayloadsTable.COLUMN_POW_DONE, powDone);   	
-    	values.put(PayloadsTable.COLUMN_PAYLOAD, Base64.encodeToString(p.getPayload(), Base64.DEFAULT));
+    	ContentValues values = getContentValues(p);
 			
 		Uri insertionUri = mContentResolver.insert(DatabaseContentProvider.CONTENT_URI_PAYLOADS, values);
     	Log.i(TAG, "Payload with type " + p.getType() + " and time value " + p.getTime() + " saved to database");
@@ -100,6 +75,37 @@ public class PayloadProvider
 		return id;
     }
     
+    /**
+     * Creates an operation which will add the given Payload to the database
+     * when applied as part of a batch. See DatabaseContentProvider.applyOperations().
+     * 
+     * @param p - The Payload object to be added
+     * 
+     * @return The ContentProviderOperation
+     */
+    public ContentProviderOperation buildAddOperation(Payload p)
+    {
+    	return ContentProviderOperation.newInsert(DatabaseContentProvider.CONTENT_URI_PAYLOADS)
+    			.withValues(getContentValues(p))
+    			.build();
+    }
+    
+    /**
+     * Creates an operation which will mark the Payload with the given ID as processed
+     * when applied as part of a batch. See DatabaseContentProvider.applyOperations().
+     * 
+     * @param id - The ID of the Payload
+     * 
+     * @return The ContentProviderOperation
+     */
+    public ContentProviderOperation buildProcessingCompleteOperation(long id)
+    {
+    	return ContentProviderOperation.newUpdate(DatabaseContentProvider.CONTENT_URI_PAYLOADS)
+    			.withValue(PayloadsTable.COLUMN_PROCESSING_COMPLETE, 1)
+    			.withSelection(PayloadsTable.COLUMN_ID + " = ? ", new String[]{String.valueOf(id)})
+    			.build();
+    }
+    
     /**
      * Finds all Payloads in the application's database that match the given field
      * 
@@ -305,6 +311,50 @@ public class PayloadProvider
     	return matchingRecords;
      }
     
+    /**
+     * Returns an iterator over all the Payloads in the application's database that match
+     * the given criteria, in order of ID. Rather than loading every matching record at once,
+     * the iterator retrieves the records one page at a time and only decodes the payload data 
+     * of each record when that record is reached. 
+     * 
+     * @param columnNames - The columns in the table to use in the query
+     * @param selections - The selections for each column
+     * @param pageSize - The maximum number of records to retrieve from the database at once
+     * 
+     * @return A PayloadIterator over the matching Payloads
+     */
+    public PayloadIterator iteratePayloads(String[] columnNames, String[] selections, int pageSize)
+    {
+    	return new PayloadIterator(mContentResolver, columnNames, selections, pageSize);
+    }
+    
+    /**
+     * Searches the database for an acknowledgement that I am awaiting, i.e. an ack
+     * Payload created by me whose ack data matches the given data. This uses the
+     * indexed ack key column, so only a single lookup is required no matter how
+     * many acknowledgements are outstanding. 
+     * 
+     * @param ackData - A byte[] containing the ack data to search for
+     * 
+     * @return The matching Payload, or null if no awaited acknowledgement matches
+     * the given data
+     */
+    public Payload searchForAwaitedAck(byte[] ackData)
+    {
+    	String[] columnNames = new String[]{PayloadsTable.COLUMN_ACK_KEY, PayloadsTable.COLUMN_BELONGS_TO_ME};
+    	String[] searchTerms = new String[]{Base64.encodeToString(ackData, Base64.DEFAULT), "1"}; // 1 stands for true in the database
+    	ArrayList<Payload> retrievedRecords = searchPayloads(columnNames, searchTerms);
+    	
+    	if (retrievedRecords.size() == 0)
+    	{
+    		return null;
+    	}
+    	else
+    	{
+    		return retrievedRecords.get(0);
+    	}
+    }
+    
     /**
      * Searches the database for the Payload with the given ID.
      * This method will return exactly one Payload object or throw
@@ -425,33 +475,7 @@ public class PayloadProvider
      */
     public void updatePayload(Payload p)
     {
-    	int belongsToMe = 0;
-    	if (p.belongsToMe())
-    	{
-    		belongsToMe = 1;
-    	}
-    	
-    	int processingComplete = 0;
-    	if (p.processingComplete())
-    	{
-    		processingComplete = 1;
-    	}
-    	
-    	int powDone = 0;
-    	if (p.powDone())
-    	{
-    		powDone = 1;
-    	}
-    	
-    	ContentValues values = new ContentValues();
-    	values.put(PayloadsTable.COLUMN_RELATED_ADDRESS_ID, p.getRelatedAddressId());
-    	values.put(PayloadsTable.COLUMN_BELONGS_TO_ME, belongsToMe);
-    	values.put(PayloadsTable.COLUMN_PROCESSING_COMPLETE, processingComplete);
-    	values.put(PayloadsTable.COLUMN_TIME, p.getTime());
-    	values.put(PayloadsTable.COLUMN_TYPE, p.getType());
-    	values.put(PayloadsTable.COLUMN_ACK, p.isAck());
-    	values.put(PayloadsTable.COLUMN_POW_DONE, powDone);   	
-    	values.put(PayloadsTable.COLUMN_PAYLOAD, Base64.encodeToString(p.getPayload(), Base64.DEFAULT));
+    	ContentValues values = getContentValues(p);
 		
 		long id = p.getId();
     	
@@ -515,4 +539,67 @@ public class PayloadProvider
     	
     	Log.i(TAG, recordsDeleted + " Payload(s) deleted from database");
      }
+    
+    /**
+     * Creates a ContentValues object containing the data from the given Payload,
+     * ready to be written to the database
+     * 
+     * @param p - The Payload object
+     * 
+     * @return The ContentValues object
+     */
+    private ContentValues getContentValues(Payload p)
+    {
+    	int belongsToMe = 0;
+    	if (p.belongsToMe())
+    	{
+    		belongsToMe = 1;
+    	}
+    	
+    	int processingComplete = 0;
+    	if (p.processingComplete())
+    	{
+    		processingComplete = 1;
+    	}
+    	
+    	int powDone = 0;
+    	if (p.powDone())
+    	{
+    		powDone = 1;
+    	}
+    	
+    	ContentValues values = new ContentValues();
+    	values.put(PayloadsTable.COLUMN_RELATED_ADDRESS_ID, p.getRelatedAddressId());
+    	values.put(PayloadsTable.COLUMN_BELONGS_TO_ME, belongsToMe);
+    	values.put(PayloadsTable.COLUMN_PROCESSING_COMPLETE, processingComplete);
+    	values.put(PayloadsTable.COLUMN_TIME, p.getTime());
+    	values.put(PayloadsTable.COLUMN_TYPE, p.getType());
+    	values.put(PayloadsTable.COLUMN_ACK, p.isAck());
+    	values.put(PayloadsTable.COLUMN_POW_DONE, powDone);   	
+    	values.put(PayloadsTable.COLUMN_PAYLOAD, Base64.encodeToString(p.getPayload(), Base64.DEFAULT));
+    	values.put(PayloadsTable.COLUMN_ACK_KEY, getAckKey(p));
+    	return values;
+    }
+    
+    /**
+     * Gets the value to store in the ack key column for the given Payload. Only
+     * the acknowledgements of our own messages are given an ack key, because they
+     * are the only ones we search for. This keeps the index on that column small. 
+     * 
+     * @param p - The Payload to get the ack key for
+     * 
+     * @return A String containing the Base64 encoded ack data, or null if the
+     * Payload is not an acknowledgement of one of our own messages
+     */
+    private String getAckKey(Payload p)
+    {
+    	if (p.isAck() && p.belongsToMe())
+    	{
+    		return Base64.encodeToString(p.getPayload(), Base64.DEFAULT);
+    	}
+    	else
+    	{
+    		return null;
+    	}
+    }
 }
\ No newline at end of file
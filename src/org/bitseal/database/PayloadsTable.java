@@ -17,6 +17,10 @@ public class PayloadsTable
 	public static final String COLUMN_ACK = "ack";
 	public static final String COLUMN_POW_DONE = "pow_done";
 	public static final String COLUMN_PAYLOAD = "payload";
+	public static final String COLUMN_ACK_KEY = "ack_key";
+	
+	// The name of the index on the ack key column
+	private static final String INDEX_ACK_KEY = "payloads_ack_key_index";
 
 	// Database creation SQL statement
 	private static final String DATABASE_CREATE = "create table " 
@@ -30,12 +34,31 @@ public class PayloadsTable
 	    + COLUMN_TYPE + " text, "
 	    + COLUMN_ACK + " integer, "
 	    + COLUMN_POW_DONE + " integer, "
-	    + COLUMN_PAYLOAD + " text"
+	    + COLUMN_PAYLOAD + " text, "
+	    + COLUMN_ACK_KEY + " text"
 	    + ");";
+	
+	// Index creation SQL statement. Allows received acknowledgements to be matched with a single indexed lookup
+	private static final String INDEX_ACK_KEY_CREATE = "create index if not exists " 
+	    + INDEX_ACK_KEY + " on " + TABLE_PAYLOADS + "(" + COLUMN_ACK_KEY + ");";
 
 	public static void onCreate(SQLiteDatabase database)
 	{
 	    database.execSQL(DATABASE_CREATE);
+	    database.execSQL(INDEX_ACK_KEY_CREATE);
+	}
+	
+	/**
+	 * Adds the ack key column and its index to an existing payloads table, 
+	 * populating the new column for the existing acknowledgements of our own messages. 
+	 * 
+	 * @param database - The SQLiteDatabase to upgrade
+	 */
+	public static void addAckKeyColumn(SQLiteDatabase database)
+	{
+		database.execSQL("alter table " + TABLE_PAYLOADS + " add column " + COLUMN_ACK_KEY + " text");
+		database.execSQL("update " + TABLE_PAYLOADS + " set " + COLUMN_ACK_KEY + " = " + COLUMN_PAYLOAD + " where " + COLUMN_ACK + " = 1 and " + COLUMN_BELONGS_TO_ME + " = 1");
+		database.execSQL(INDEX_ACK_KEY_CREATE);
 	}
 
 	public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) 
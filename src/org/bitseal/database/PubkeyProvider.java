@@ -6,6 +6,7 @@ import org.bitseal.data.Pubkey;
 import org.bitseal.util.ByteFormatter;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -85,6 +86,7 @@ public class PubkeyProvider
     	values.put(PubkeysTable.COLUMN_EXTRA_BYTES, p.getExtraBytes());
     	values.put(PubkeysTable.COLUMN_SIGNATURE_LENGTH, p.getSignatureLength());
     	values.put(PubkeysTable.COLUMN_SIGNATURE, Base64.encodeToString(p.getSignature(), Base64.DEFAULT));
+    	values.put(PubkeysTable.COLUMN_LAST_USED_TIME, System.currentTimeMillis() / 1000);
 			
 		Uri insertionUri = mContentResolver.insert(DatabaseContentProvider.CONTENT_URI_PUBKEYS, values);
     	
@@ -374,6 +376,66 @@ public class PubkeyProvider
     	Log.i(TAG, "Pubkey ID " + id + " updated");
     }
     
+    /**
+     * Records the time at which the Pubkey with the given ID was last used, e.g. to
+     * send a message. This is used to decide which pubkeys of other people are no 
+     * longer needed. <br><br>
+     * 
+     * <b>NOTE:</b> The record is updated through its own URI, so that observers of the 
+     * whole pubkeys table are not notified of the change
+     * 
+     * @param id - The ID of the Pubkey
+     * @param lastUsedTime - The time at which the Pubkey was last used
+     */
+    public void updateLastUsedTime(long id, long lastUsedTime)
+    {
+    	ContentValues values = new ContentValues();
+    	values.put(PubkeysTable.COLUMN_LAST_USED_TIME, lastUsedTime);
+    	
+    	mContentResolver.update(ContentUris.withAppendedId(DatabaseContentProvider.CONTENT_URI_PUBKEYS, id), values, null, null);
+    }
+    
+    /**
+     * Returns the IDs and ripe hashes of all the Pubkeys which do not belong to 
+     * us and which have not been used since the given time
+     * 
+     * @param lastUsedTime - The time before which the Pubkeys were last used
+     * 
+     * @return An ArrayList containing one Pubkey object for each matching record.
+     * Only the ID and ripe hash fields of these Pubkeys are set. 
+     */
+    public ArrayList<Pubkey> searchPubkeysNotUsedSince(long lastUsedTime)
+    {
+    	ArrayList<Pubkey> matchingRecords = new ArrayList<Pubkey>();
+    	
+		String[] projection = {
+				PubkeysTable.COLUMN_ID,
+				PubkeysTable.COLUMN_RIPE_HASH};
+		
+		// Query the database via the ContentProvider
+		Cursor cursor = mContentResolver.query(
+				DatabaseContentProvider.CONTENT_URI_PUBKEYS, 
+				projection, 
+				PubkeysTable.COLUMN_BELONGS_TO_ME + " = 0 and " + PubkeysTable.COLUMN_LAST_USED_TIME + " < ? ", 
+				new String[]{String.valueOf(lastUsedTime)}, 
+				null);
+		
+		if (cursor.moveToFirst())
+    	{
+    	    do 
+    	    {
+    	        Pubkey p = new Pubkey();
+    	        p.setId(cursor.getLong(0));
+    	        p.setRipeHash(Base64.decode(cursor.getString(1), Base64.DEFAULT));
+    	        matchingRecords.add(p);
+    	    } 
+    	    while (cursor.moveToNext());
+    	}
+		
+		cursor.close();
+    	return matchingRecords;
+    }
+    
     /**
      * Deletes a Pubkey object from the application's SQLite database<br><br>
      * 
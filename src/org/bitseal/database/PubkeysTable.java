@@ -24,6 +24,7 @@ public class PubkeysTable
   public static final String COLUMN_EXTRA_BYTES = "extra_bytes";
   public static final String COLUMN_SIGNATURE_LENGTH = "signature_length";
   public static final String COLUMN_SIGNATURE = "signature";
+  public static final String COLUMN_LAST_USED_TIME = "last_used_time";
 
   // Database creation SQL statement
   private static final String DATABASE_CREATE = "create table " 
@@ -44,13 +45,26 @@ public class PubkeysTable
       + COLUMN_NONCE_TRIALS_PER_BYTE + " integer, "
       + COLUMN_EXTRA_BYTES + " integer, "
       + COLUMN_SIGNATURE_LENGTH + " integer, "
-      + COLUMN_SIGNATURE + " text"
+      + COLUMN_SIGNATURE + " text, "
+      + COLUMN_LAST_USED_TIME + " integer default 0"
       + ");";
 
   public static void onCreate(SQLiteDatabase database) 
   {
     database.execSQL(DATABASE_CREATE);
   }
+  
+  /**
+   * Adds the last used time column to an existing pubkeys table. Existing pubkeys
+   * are treated as having been used at the time of the upgrade. 
+   * 
+   * @param database - The SQLiteDatabase to upgrade
+   */
+  public static void addLastUsedTimeColumn(SQLiteDatabase database)
+  {
+    database.execSQL("alter table " + TABLE_PUBKEYS + " add column " + COLUMN_LAST_USED_TIME + " integer default 0");
+    database.execSQL("update " + TABLE_PUBKEYS + " set " + COLUMN_LAST_USED_TIME + " = " + (System.currentTimeMillis() / 1000));
+  }
 
   public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) 
   {
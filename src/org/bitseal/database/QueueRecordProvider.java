@@ -276,6 +276,192 @@ public class QueueRecordProvider
     	return queueRecords;
     }
     
+    /**
+     * Returns an ArrayList containing the QueueRecords stored in the 
+     * application's database which are due to be processed, i.e. those
+     * with a trigger time no later than the given time. The records are
+     * ordered by their trigger time, earliest first. <br><br>
+     * 
+     * <b>NOTE:</b> This query uses the index on the trigger time and task
+     * columns, so its cost depends on the number of records which are due
+     * rather than on the total number of records in the queue. 
+     * 
+     * @param currentTime - The current time in seconds
+     * @param limit - The maximum number of QueueRecords to return
+     * 
+     * @return An ArrayList containing one QueueRecord object for
+     * each record in the QueueRecords table that is due to be processed,
+     * up to the given limit
+     */
+    public ArrayList<QueueRecord> getDueQueueRecords(long currentTime, int limit)
+    {
+		Uri limitedUri = DatabaseContentProvider.CONTENT_URI_QUEUE_RECORDS.buildUpon()
+				.appendQueryParameter(DatabaseContentProvider.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+				.build();
+		
+		return queryQueueRecords(
+				limitedUri,
+				QueueRecordsTable.TABLE_QUEUE_RECORDS + "." + QueueRecordsTable.COLUMN_TRIGGER_TIME + " <= ? ",
+				new String[]{String.valueOf(currentTime)},
+				QueueRecordsTable.COLUMN_TRIGGER_TIME + " ASC");
+    }
+    
+    /**
+     * Finds all QueueRecords in the application's database for the given task
+     * which refer to the given object as their first object, e.g. all the
+     * 'send message' QueueRecords for a single message. <br><br>
+     * 
+     * <b>NOTE:</b> This query uses the index on the object 0 ID and task columns,
+     * so only the matching records are read.
+     * 
+     * @param task - A String specifying the task, e.g. QueueRecordProcessor.TASK_SEND_MESSAGE
+     * @param object0Id - The ID of the first object referred to by the QueueRecords
+     * 
+     * @return An ArrayList containing the matching QueueRecords, ordered by their
+     * trigger time, earliest first
+     */
+    public ArrayList<QueueRecord> searchQueueRecords(String task, long object0Id)
+    {
+		return queryQueueRecords(
+				DatabaseContentProvider.CONTENT_URI_QUEUE_RECORDS,
+				QueueRecordsTable.TABLE_QUEUE_RECORDS + "." + QueueRecordsTable.COLUMN_OBJECT_0_ID + " = ? AND " 
+						+ QueueRecordsTable.TABLE_QUEUE_RECORDS + "." + QueueRecordsTable.COLUMN_TASK + " = ? ",
+				new String[]{String.valueOf(object0Id), task},
+				QueueRecordsTable.COLUMN_TRIGGER_TIME + " ASC");
+    }
+    
+    /**
+     * Queries the QueueRecords table and returns the QueueRecords found
+     * 
+     * @param uri - The URI to query
+     * @param selection - The selection String
+     * @param selectionArgs - The values for the selection String
+     * @param sortOrder - The order in which to return the records
+     * 
+     * @return An ArrayList containing the QueueRecords found
+     */
+    private ArrayList<QueueRecord> queryQueueRecords(Uri uri, String selection, String[] selectionArgs, String sortOrder)
+    {
+    	ArrayList<QueueRecord> queueRecords = new ArrayList<QueueRecord>();
+    	
+        // Specify which columns from the table we are interested in
+		String[] projection = {
+				QueueRecordsTable.COLUMN_ID, 
+				QueueRecordsTable.COLUMN_TASK,
+				QueueRecordsTable.COLUMN_TRIGGER_TIME,
+				QueueRecordsTable.COLUMN_RECORD_COUNT,
+				QueueRecordsTable.COLUMN_LAST_ATTEMPT_TIME,
+				QueueRecordsTable.COLUMN_ATTEMPTS,
+				QueueRecordsTable.COLUMN_OBJECT_0_ID,
+				QueueRecordsTable.COLUMN_OBJECT_0_TYPE, 
+				QueueRecordsTable.COLUMN_OBJECT_1_ID,
+				QueueRecordsTable.COLUMN_OBJECT_1_TYPE,
+				QueueRecordsTable.COLUMN_OBJECT_2_ID,
+				QueueRecordsTable.COLUMN_OBJECT_2_TYPE};
+		
+		// Query the database via the ContentProvider
+		Cursor cursor = mContentResolver.query(
+				uri, 
+				projection,
+				selection,
+				selectionArgs,
+				sortOrder);
+    	
+    	if (cursor.moveToFirst())
+    	{
+    	    do 
+    	    {
+    	        long id = cursor.getLong(0);
+    	        String task = cursor.getString(1);
+    	        long triggerTime = cursor.getLong(2);
+    	        int completionCount = cursor.getInt(3);
+    	        long lastAttemptTime = cursor.getLong(4);
+    	        int attempts = cursor.getInt(5);
+    	        long object0Id = cursor.getLong(6);
+    	        String object0Type = cursor.getString(7);
+    	        long object1Id = cursor.getLong(8);
+    	        String object1Type = cursor.getString(9);
+    	        long object2Id = cursor.getLong(10);
+    	        String object2Type = cursor.getString(11);
+    	      
+    	        QueueRecord q = new QueueRecord();
+    	        q.setId(id);
+    	        q.setTask(task);
+    	        q.setTriggerTime(triggerTime);
+    	        q.setRecordCount(completionCount);
+    	        q.setLastAttemptTime(lastAttemptTime);
+    	        q.setAttempts(attempts);
+    	        q.setObject0Id(object0Id);
+    	        q.setObject0Type(object0Type);
+    	        q.setObject1Id(object1Id);
+    	        q.setObject1Type(object1Type);
+    	        q.setObject2Id(object2Id);
+    	        q.setObject2Type(object2Type);
+    	      
+    	        queueRecords.add(q);
+    	    } 
+    	    while (cursor.moveToNext());
+    	}
+    	
+		cursor.close();
+    	return queueRecords;
+    }
+    
+    /**
+     * Returns the earliest trigger time of any QueueRecord stored in the
+     * application's database
+     * 
+     * @return The earliest trigger time in seconds, or -1 if there are no
+     * QueueRecords
+     */
+    public long getEarliestTriggerTime()
+    {
+		Uri limitedUri = DatabaseContentProvider.CONTENT_URI_QUEUE_RECORDS.buildUpon()
+				.appendQueryParameter(DatabaseContentProvider.QUERY_PARAMETER_LIMIT, "1")
+				.build();
+		String[] projection = {QueueRecordsTable.COLUMN_TRIGGER_TIME};
+		
+		// Query the database via the ContentProvider
+		Cursor cursor = mContentResolver.query(
+				limitedUri, 
+				projection,
+				null,
+				null,
+				QueueRecordsTable.COLUMN_TRIGGER_TIME + " ASC");
+		
+		long earliestTriggerTime = -1;
+		if (cursor.moveToFirst())
+		{
+			earliestTriggerTime = cursor.getLong(0);
+		}
+		cursor.close();
+		return earliestTriggerTime;
+    }
+    
+    /**
+     * Returns the number of QueueRecords stored in the application's database
+     */
+    public int getQueueRecordCount()
+    {
+		String[] projection = {DatabaseContentProvider.COLUMN_COUNT};
+		
+		// Query the database via the ContentProvider
+		Cursor cursor = mContentResolver.query(
+				DatabaseContentProvider.CONTENT_URI_QUEUE_RECORDS, 
+				projection,
+				null,
+				null,
+				null);
+		
+		int count = 0;
+		if (cursor.moveToFirst())
+		{
+			count = cursor.getInt(0);
+		}
+		cursor.close();
+		return count;
+    }
+    
     /**
      * Updates the database record for a given QueueRecord object<br><br>
      * 
@@ -20,6 +20,9 @@ public class QueueRecordsTable
 	  public static final String COLUMN_OBJECT_1_TYPE = "object_1_type";
 	  public static final String COLUMN_OBJECT_2_ID = "object_2_id";
 	  public static final String COLUMN_OBJECT_2_TYPE = "object_2_type";
+	  
+	  private static final String INDEX_TRIGGER_TIME = "queue_records_trigger_time_index";
+	  private static final String INDEX_OBJECT_0_ID = "queue_records_object_0_id_index";
 
 	  // Database creation SQL statement
 	  private static final String DATABASE_CREATE = "create table " 
@@ -38,10 +41,29 @@ public class QueueRecordsTable
 	      + COLUMN_OBJECT_2_ID + " integer, "
 	      + COLUMN_OBJECT_2_TYPE + " text"
 	      + ");";
+	  
+	  // Index creation SQL statements. Allow the due QueueRecords to be found in order of trigger time, and the QueueRecords
+	  // for a given object and task to be found, without reading the whole table. 
+	  private static final String INDEX_TRIGGER_TIME_CREATE = "create index if not exists " 
+	      + INDEX_TRIGGER_TIME + " on " + TABLE_QUEUE_RECORDS + "(" + COLUMN_TRIGGER_TIME + ", " + COLUMN_TASK + ");";
+	  private static final String INDEX_OBJECT_0_ID_CREATE = "create index if not exists " 
+	      + INDEX_OBJECT_0_ID + " on " + TABLE_QUEUE_RECORDS + "(" + COLUMN_OBJECT_0_ID + ", " + COLUMN_TASK + ");";
 
 	  public static void onCreate(SQLiteDatabase database) 
 	  {
 	    database.execSQL(DATABASE_CREATE);
+	    addIndexes(database);
+	  }
+	  
+	  /**
+	   * Adds the trigger time and object 0 ID indexes to an existing queue records table
+	   * 
+	   * @param database - The SQLiteDatabase to upgrade
+	   */
+	  public static void addIndexes(SQLiteDatabase database)
+	  {
+	    database.execSQL(INDEX_TRIGGER_TIME_CREATE);
+	    database.execSQL(INDEX_OBJECT_0_ID_CREATE);
 	  }
 
 	  public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) 
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import org.bitseal.data.ServerRecord;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -108,7 +109,9 @@ public class ServerRecordProvider
 				ServerRecordsTable.COLUMN_ID,
 				ServerRecordsTable.COLUMN_URL,
 				ServerRecordsTable.COLUMN_USERNAME,
-				ServerRecordsTable.COLUMN_PASSWORD};
+				ServerRecordsTable.COLUMN_PASSWORD,
+				ServerRecordsTable.COLUMN_LATENCY,
+				ServerRecordsTable.COLUMN_SUCCESS_RATE};
 		
 		// Query the database via the ContentProvider
 		Cursor cursor = mContentResolver.query(
@@ -126,12 +129,16 @@ public class ServerRecordProvider
     	        String url = cursor.getString(1);
     	        String username = cursor.getString(2);
     	        String password = cursor.getString(3);
+    	        double latency = cursor.getDouble(4);
+    	        double successRate = cursor.getDouble(5);
     	      
     	        ServerRecord s = new ServerRecord();
     	        s.setId(id);
     	        s.setURL(url);
     	        s.setUsername(username);
     	        s.setPassword(password);
+    	        s.setLatency(latency);
+    	        s.setSuccessRate(successRate);
     	      
     	        matchingRecords.add(s);
     	    } 
@@ -188,7 +195,9 @@ public class ServerRecordProvider
 				ServerRecordsTable.COLUMN_ID,
 				ServerRecordsTable.COLUMN_URL,
 				ServerRecordsTable.COLUMN_USERNAME,
-				ServerRecordsTable.COLUMN_PASSWORD};
+				ServerRecordsTable.COLUMN_PASSWORD,
+				ServerRecordsTable.COLUMN_LATENCY,
+				ServerRecordsTable.COLUMN_SUCCESS_RATE};
 		
 		// Query the database via the ContentProvider
 		Cursor cursor = mContentResolver.query(
@@ -206,12 +215,16 @@ public class ServerRecordProvider
 	   	        String url = cursor.getString(1);
 	   	        String username = cursor.getString(2);
 	   	        String password = cursor.getString(3);
+	   	        double latency = cursor.getDouble(4);
+	   	        double successRate = cursor.getDouble(5);
 	   	      
 	   	        ServerRecord s = new ServerRecord();
 	   	        s.setId(id);
 	   	        s.setURL(url);
 	   	        s.setUsername(username);
 	   	        s.setPassword(password);
+	   	        s.setLatency(latency);
+	   	        s.setSuccessRate(successRate);
     	      
 	   	        serverRecords.add(s);
     	   } 
@@ -248,6 +261,25 @@ public class ServerRecordProvider
     	Log.i(TAG, "ServerRecord ID " + id + " updated");
     }
     
+    /**
+     * Updates the latency and success rate scores of the ServerRecord with the given ID.<br><br>
+     * 
+     * <b>NOTE:</b> The update is made through the URI of the individual record, so that 
+     * observers of the whole server records table are not notified of every score change. 
+     * 
+     * @param id - The ID of the ServerRecord to update
+     * @param latency - The new latency score, in milliseconds
+     * @param successRate - The new success rate score, between 0 and 1
+     */
+    public void updateServerScores(long id, double latency, double successRate)
+    {
+    	ContentValues values = new ContentValues();
+    	values.put(ServerRecordsTable.COLUMN_LATENCY, latency);
+    	values.put(ServerRecordsTable.COLUMN_SUCCESS_RATE, successRate);
+    	
+    	mContentResolver.update(ContentUris.withAppendedId(DatabaseContentProvider.CONTENT_URI_SERVER_RECORDS, id), values, null, null);
+    }
+    
     /**
      * Deletes a ServerRecord object from the application's SQLite database<br><br>
      * 
@@ -12,6 +12,8 @@ public class ServerRecordsTable
   public static final String COLUMN_URL = "url";
   public static final String COLUMN_USERNAME = "username";
   public static final String COLUMN_PASSWORD = "password";
+  public static final String COLUMN_LATENCY = "latency";
+  public static final String COLUMN_SUCCESS_RATE = "success_rate";
 
   // Database creation SQL statement
   private static final String DATABASE_CREATE = "create table " 
@@ -20,13 +22,26 @@ public class ServerRecordsTable
       + COLUMN_ID + " integer primary key autoincrement, " 
       + COLUMN_URL + " text, "
       + COLUMN_USERNAME + " text, "
-      + COLUMN_PASSWORD + " text"
+      + COLUMN_PASSWORD + " text, "
+      + COLUMN_LATENCY + " real default 0, "
+      + COLUMN_SUCCESS_RATE + " real default 1"
       + ");";
 
   public static void onCreate(SQLiteDatabase database) 
   {
     database.execSQL(DATABASE_CREATE);
   }
+  
+  /**
+   * Adds the latency and success rate columns to an existing server records table
+   * 
+   * @param database - The SQLiteDatabase to upgrade
+   */
+  public static void addScoreColumns(SQLiteDatabase database)
+  {
+    database.execSQL("alter table " + TABLE_SERVER_RECORDS + " add column " + COLUMN_LATENCY + " real default 0");
+    database.execSQL("alter table " + TABLE_SERVER_RECORDS + " add column " + COLUMN_SUCCESS_RATE + " real default 1");
+  }
 
   public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) 
   {
@@ -1,19 +1,15 @@
 package org.bitseal.network;
 
-import java.net.MalformedURLException;
 import java.net.URL;
-import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Random;
 
-import org.bitseal.core.App;
-import org.bitseal.data.ServerRecord;
-import org.bitseal.database.ServerRecordProvider;
-
 import android.util.Log;
 import de.timroes.axmlrpc.XMLRPCClient;
 import de.timroes.axmlrpc.XMLRPCException;
+import de.timroes.axmlrpc.XMLRPCServerException;
 
 /**
  * An object which uses the XMLRPC client class to connect to servers running
@@ -24,22 +20,19 @@ import de.timroes.axmlrpc.XMLRPCException;
 public class ApiCaller
 {
 	private URL url;
-	private String username;
-	private String password;
 	
-	private XMLRPCClient newClient;
-	private XMLRPCClient client;
+	private ServerClientPool.PooledServer server;
 	
 	private ArrayList<URL> urlList;
-	private ArrayList<String> usernameList;
-	private ArrayList<String> passwordList;
+	private ArrayList<ServerClientPool.PooledServer> serverList;
 	
 	private int urlCounter;
-	private int usernameCounter;
-	private int passwordCounter;
 	
 	private int numberOfServers;
 	
+	private ServerHealthRegistry healthRegistry;
+	private ServerClientPool pool;
+	
 	/**
 	 * This constant defines the timeout period for API calls.
 	 */
@@ -50,65 +43,69 @@ public class ApiCaller
 	 */
 	private static final String API_METHOD_ADD = "add";
 	
+	/**
+	 * API command defined by the XMLRPC 'multicall' extension, used to make several
+	 * calls in a single request
+	 */
+	private static final String API_METHOD_MULTICALL = "system.multicall";
+	
 	private static final String TAG = "API_CALLER";
 	
 	/**
-	 * Creates a new ApiCaller object and sets the URL, username, and password values needed
-	 * to connect to the PyBitmessage servers.
+	 * Creates a new ApiCaller object and sets the URL values needed
+	 * to connect to the PyBitmessage servers. The servers and their clients are taken from
+	 * the ServerClientPool. 
 	 */
 	public ApiCaller()
+	{
+		this(0);
+	}
+	
+	/**
+	 * Creates a new ApiCaller object which starts a number of places down the list of servers. 
+	 * The servers which are skipped are moved to the end of the list. This can be used to 
+	 * spread several concurrent requests over different servers. 
+	 * 
+	 * @param serverOffset - The number of servers to move to the end of the list
+	 */
+	public ApiCaller(int serverOffset)
 	{	
-		// Check if any server records exist in app storage. If not, set up the default list of server records. 
-		ServerRecordProvider servProv = ServerRecordProvider.get(App.getContext());
-		ArrayList<ServerRecord> retrievedServerRecords = servProv.getAllServerRecords();
-		if (retrievedServerRecords.size() == 0)
+		// Get the servers in order of preference, based on their latency and reliability scores
+		pool = ServerClientPool.getInstance();
+		ArrayList<ServerClientPool.PooledServer> servers = pool.getServersInPreferenceOrder();
+		numberOfServers = servers.size();
+		if (numberOfServers > 0)
 		{
-			Log.i(TAG, "No server records found in app storage. Setting up list of default servers.");
-			ServerHelper servHelp = new ServerHelper();
-			servHelp.setupDefaultServers();
-			// Now the server records should be available from the database
-			retrievedServerRecords = servProv.getAllServerRecords();
+			Collections.rotate(servers, -(serverOffset % numberOfServers));
 		}
-		numberOfServers = retrievedServerRecords.size();
 				
-        // Set up ArrayLists for the URLs, usernames, and passwords of the servers
+        // Set up an ArrayList for the URLs of the servers
     	urlList = new ArrayList<URL>();
-		usernameList = new ArrayList<String>();
-		passwordList = new ArrayList<String>();
-
-		// Randomize the order of the server records list in order to avoid servers always being called in 
-		// the same order. 
-		Collections.shuffle(retrievedServerRecords, new SecureRandom());
+		serverList = servers;
 		
-		int arrayListIndex = 0;
-		for(ServerRecord s : retrievedServerRecords)
+		// Move any servers which have failed repeatedly to the end of the list, so that they are only used as a last resort
+		healthRegistry = ServerHealthRegistry.getInstance();
+		ArrayList<ServerClientPool.PooledServer> openCircuitServers = new ArrayList<ServerClientPool.PooledServer>();
+		for (ServerClientPool.PooledServer s : servers)
 		{
-			try
+			if (healthRegistry.isCircuitOpen(s.url))
 			{
-				urlList.add(arrayListIndex, new URL(s.getURL()));
-				usernameList.add(arrayListIndex, s.getUsername());
-				passwordList.add(arrayListIndex, s.getPassword());
-				
-				arrayListIndex ++;
-			}
-			catch (MalformedURLException e)
-			{
-				Log.e(TAG, "Malformed URL exception occurred in ApiCaller constructor. We will ignore the ServerRecord that contains this " +
-						"url. The String representation of the url was " + s.getURL());
-				arrayListIndex ++;
+				openCircuitServers.add(s);
 			}
 		}
+		servers.removeAll(openCircuitServers);
+		servers.addAll(openCircuitServers);
+		
+		for (ServerClientPool.PooledServer s : servers)
+		{
+			urlList.add(s.url);
+		}
         
-		// Start at the beginning of each of the three lists
+		// Start at the beginning of the list
 		urlCounter = 0;
-		usernameCounter = 0;
-		passwordCounter = 0;
 		
 		url = urlList.get(urlCounter);
-		username = usernameList.get(usernameCounter);
-		password = passwordList.get(passwordCounter);
-		
-		client = setUpClient(url, username, password);
+		server = serverList.get(urlCounter);
 		
 		Log.i(TAG, "ApiCaller setup completed");
 	}
@@ -119,7 +116,10 @@ public class ApiCaller
      * Attempts to establish a connection to one of the listed servers. The method will attempt to
 	 * connect to each server in sequence, until either a connection is successfully established or
 	 * all servers have been tested without any successful connection. If a connection is successfully
-	 * established, then the API call will be made.
+	 * established, then the API call will be made. <br><br>
+	 * 
+	 * If a server has succeeded recently, the connection test is skipped and the API call is made
+	 * straight away. The outcome of each call is recorded in the ServerHealthRegistry.
      *
      * @param method - A String which specifies the API method to be called
      * @param params - One or more Objects which provide the parameters for the API call
@@ -130,46 +130,186 @@ public class ApiCaller
 	{				
 		while (urlCounter < urlList.size())
 		{
-			boolean connectionSuccessful = doConnectionTest();
-			
-			if (connectionSuccessful)
+			try
+			{
+				return callServer(server, method, params);
+			}
+			catch (RuntimeException e)
 			{
-				Log.i(TAG, "Successfully connected to " + url.toString());
+				switchToNextServer();
+			}
+		}
+		throw new RuntimeException("API call failed after trying all listed servers. Last attempted URL was " + url.toString());
+	}
+	
+	/**
+     * Makes a call to the PyBitmessage XMLRPC API of one particular server from the list. Unlike
+     * call(), this method does not move on to the next server if the call fails, and does not
+     * change the server in use by this ApiCaller. It can therefore be used to call several 
+     * servers concurrently. 
+     *
+     * @param serverIndex - An int specifying the position of the server in the list
+     * @param method - A String which specifies the API method to be called
+     * @param params - One or more Objects which provide the parameters for the API call
+     * 
+     * @return An Object containing the result of the API call
+     * 
+     * @throws RuntimeException If the call to the server fails
+     */
+	public Object callServer(int serverIndex, String method, Object... params)
+	{
+		if (serverIndex >= urlList.size())
+		{
+			throw new RuntimeException("API call failed because there is no server at index " + serverIndex + ". The number of usable servers is " + urlList.size());
+		}
+		return callServer(serverList.get(serverIndex), method, params);
+	}
+	
+	/**
+     * Makes several calls to the same API method of one particular server from the list, in a 
+     * single request. This uses the 'system.multicall' method of the XMLRPC multicall extension. 
+     * Like callServer(), this method does not move on to the next server if the request fails. 
+     * <br><br>
+     * 
+     * If the server does not support multicall requests, an UnsupportedOperationException is
+     * thrown, and the server is remembered so that no further multicall requests will be made 
+     * to it. The calls should then be made one at a time instead. 
+     *
+     * @param serverIndex - An int specifying the position of the server in the list
+     * @param method - A String which specifies the API method to be called
+     * @param paramsList - An ArrayList containing the parameters for each call
+     * 
+     * @return An Object[] containing the result of each call, in the same order as the 
+     * parameters. The result of any call which failed on the server will be null. 
+     * 
+     * @throws UnsupportedOperationException If the server does not support multicall requests
+     * @throws RuntimeException If the request to the server fails
+     */
+	public Object[] multicallServer(int serverIndex, String method, ArrayList<Object[]> paramsList)
+	{
+		if (serverIndex >= urlList.size())
+		{
+			throw new RuntimeException("API call failed because there is no server at index " + serverIndex + ". The number of usable servers is " + urlList.size());
+		}
+		ServerClientPool.PooledServer server = serverList.get(serverIndex);
+		if (server.multicallUnsupported)
+		{
+			throw new UnsupportedOperationException("The server at " + server.url.toString() + " does not support multicall requests");
+		}
+		
+		// Each call is described by a struct containing the method name and its parameters
+		Object[] calls = new Object[paramsList.size()];
+		for (int i = 0; i < calls.length; i++)
+		{
+			HashMap<String, Object> call = new HashMap<String, Object>();
+			call.put("methodName", method);
+			call.put("params", paramsList.get(i));
+			calls[i] = call;
+		}
+		
+		Object callResult = callServer(server, API_METHOD_MULTICALL, new Object[]{calls});
+		if ((callResult instanceof Object[]) == false || ((Object[]) callResult).length != calls.length)
+		{
+			server.multicallUnsupported = true;
+			throw new UnsupportedOperationException("The server at " + server.url.toString() + " returned an unexpected result for a multicall request");
+		}
+		
+		// The result of each successful call is wrapped in an array. The result of each failed call is a fault struct.
+		Object[] multicallResults = (Object[]) callResult;
+		Object[] results = new Object[multicallResults.length];
+		for (int i = 0; i < multicallResults.length; i++)
+		{
+			if (multicallResults[i] instanceof Object[] && ((Object[]) multicallResults[i]).length > 0)
+			{
+				results[i] = ((Object[]) multicallResults[i])[0];
+			}
+			else
+			{
+				Log.e(TAG, "A call within a multicall request to " + server.url.toString() + " failed. The result was: " + multicallResults[i]);
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Makes a call to the PyBitmessage XMLRPC API of the given server, first testing the
+	 * connection to the server unless it has succeeded recently. The outcome is recorded 
+	 * in the ServerHealthRegistry, and used to update the server's latency and reliability
+	 * scores. If the calling thread is interrupted, the failure is not recorded. 
+	 * 
+	 * @return An Object containing the result of the API call
+	 * 
+	 * @throws RuntimeException If the call to the server fails
+	 */
+	private Object callServer(ServerClientPool.PooledServer server, String method, Object[] params)
+	{
+		URL url = server.url;
+		XMLRPCClient client = server.client;
+		
+		boolean connectionSuccessful;
+		if (healthRegistry.isRecentlyHealthy(url))
+		{
+			connectionSuccessful = true;
+		}
+		else
+		{
+			connectionSuccessful = doConnectionTest(client, url);
+		}
+		
+		if (connectionSuccessful)
+		{
+			Log.i(TAG, "Successfully connected to " + url.toString());
+			
+			try
+			{	
+				Log.i(TAG, "About to make an API call to " + url.toString());
 				
-				try
-				{	
-					Log.i(TAG, "About to make an API call to " + url.toString());
-					
-					Object result = client.call(method, params);
-					
-					return result;
-				}
+				long callStartTime = System.currentTimeMillis();
+				Object result = client.call(method, params);
+				healthRegistry.recordSuccess(url);
+				pool.recordCallResult(server, true, System.currentTimeMillis() - callStartTime);
 				
-				catch (XMLRPCException e)
-				{
-					Log.e(TAG, "XMLRPCException occurred in ApiCaller.call() \n" + 
-							"Execption message was: " + e.getMessage());
-					switchToNextServer();
-				}
-				catch (IllegalStateException e)
-				{
-					Log.e(TAG, "IllegalStateException occurred in ApiCaller.call() \n" + 
-							"Execption message was: " + e.getMessage());
-					switchToNextServer();
-				}
-				catch (Exception e)
+				return result;
+			}
+			
+			catch (XMLRPCServerException e)
+			{
+				if (method.equals(API_METHOD_MULTICALL))
 				{
-					Log.e(TAG, "An Exception occurred in ApiCaller.call() \n" + 
-							"Execption message was: " + e.getMessage());
-					switchToNextServer();
+					// The server answered, but does not support multicall requests
+					healthRegistry.recordSuccess(url);
+					server.multicallUnsupported = true;
+					Log.i(TAG, "The server at " + url.toString() + " does not support multicall requests. The fault message was: " + e.getMessage());
+					throw new UnsupportedOperationException("The server at " + url.toString() + " does not support multicall requests");
 				}
+				Log.e(TAG, "XMLRPCServerException occurred in ApiCaller.callServer() \n" + 
+						"Execption message was: " + e.getMessage());
 			}
-			else
+			catch (XMLRPCException e)
 			{
-				switchToNextServer();
+				Log.e(TAG, "XMLRPCException occurred in ApiCaller.callServer() \n" + 
+						"Execption message was: " + e.getMessage());
+			}
+			catch (IllegalStateException e)
+			{
+				Log.e(TAG, "IllegalStateException occurred in ApiCaller.callServer() \n" + 
+						"Execption message was: " + e.getMessage());
+			}
+			catch (Exception e)
+			{
+				Log.e(TAG, "An Exception occurred in ApiCaller.callServer() \n" + 
+						"Execption message was: " + e.getMessage());
 			}
 		}
-		throw new RuntimeException("API call failed after trying all listed servers. Last attempted URL was " + url.toString());
+		
+		if (Thread.currentThread().isInterrupted())
+		{
+			// The call was cancelled, for example because another server answered first, so it says nothing about this server
+			throw new RuntimeException("API call to " + url.toString() + " was cancelled");
+		}
+		healthRegistry.recordFailure(url, server.username, server.password);
+		pool.recordCallResult(server, false, 0);
+		throw new RuntimeException("API call to " + url.toString() + " failed");
 	}
 	
 	/**
@@ -183,14 +323,9 @@ public class ApiCaller
 			Log.i(TAG, "Currently the URL in use is " + url.toString() + ", about to change to next URL");
 			
 			urlCounter ++;
-			usernameCounter ++;
-			passwordCounter ++;
 			
 			url = urlList.get(urlCounter);
-			username = usernameList.get(usernameCounter);
-			password = passwordList.get(passwordCounter);
-			
-			client = setUpClient(url, username, password);
+			server = serverList.get(urlCounter);
 		}
 		else
 		{
@@ -210,9 +345,12 @@ public class ApiCaller
      * Performs a connection test by calling the "add" method from the PyBitmessage API and
      * checking if the returned result (if any) is correct. 
      *  
+     * @param client - The XMLRPCClient to test
+     * @param url - The URL of the server that the client connects to
+     *  
      * @return A boolean indicating whether or not a connection was successfully established
      */
-    private boolean doConnectionTest() 
+    static boolean doConnectionTest(XMLRPCClient client, URL url) 
     {   	
     	Object rawResult = null;
     	
@@ -259,7 +397,7 @@ public class ApiCaller
 		{
 			Log.e(TAG, "An Exception occurred in ApiCaller.doConnectionTest() \n" + 
 					"Execption message was: " + e.getMessage());
-			Log.e(TAG, "The raw result of the connection test was: " + rawResult.toString());
+			Log.e(TAG, "The raw result of the connection test was: " + rawResult);
 			return false;
 		}
     }
@@ -276,9 +414,9 @@ public class ApiCaller
 	 * 
 	 * @return An XMLRPCClient object that can be used to make XMLRPC calls to Bitseal servers
 	 */
-	private XMLRPCClient setUpClient(URL url, String username, String password)
+	static XMLRPCClient setUpClient(URL url, String username, String password)
 	{
-		newClient = new XMLRPCClient(url);	
+		XMLRPCClient newClient = new XMLRPCClient(url);	
 		newClient.setLoginData(username, password);
 		newClient.setTimeout(TIMEOUT_SECONDS);
 		return newClient;
@@ -0,0 +1,19 @@
+package org.bitseal.network;
+
+/**
+ * Receives each msg as it is read from a server's response, so that msgs can
+ * be processed without waiting for the whole response to be decoded.
+ * 
+ * @author Jonathan Coe
+ */
+public interface DownloadedMsgHandler
+{
+	/**
+	 * Called once for each msg read from a server's response
+	 * 
+	 * @param msgBytes - A byte[] containing the msg data
+	 * 
+	 * @throws InterruptedException If the thread is interrupted while handling the msg
+	 */
+	void onMsgDownloaded(byte[] msgBytes) throws InterruptedException;
+}
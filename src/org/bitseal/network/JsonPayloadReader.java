@@ -0,0 +1,350 @@
+package org.bitseal.network;
+
+import android.util.Log;
+
+/**
+ * Reads the hex encoded payloads from a JSON response returned by a server, in a
+ * single pass and without building an object tree for the whole response. <br><br>
+ * 
+ * The response is expected to be a JSON object containing an array of objects, each
+ * of which holds the hex encoded data of one payload. For example:<br>
+ * {"msgPayloads": [{"data": "0a1b..."}, {"data": "2c3d..."}]}<br><br>
+ * 
+ * Each payload is decoded straight from the response into a byte[] and handed on
+ * as soon as it has been read. Payloads larger than the maximum size are skipped
+ * without being decoded. Any other members of the response are skipped. <br><br>
+ * 
+ * <b>NOTE:</b> android.util.JsonReader would be the natural choice here, but it is
+ * only available from API level 11.
+ * 
+ * @author Jonathan Coe
+ */
+class JsonPayloadReader
+{
+	private final String json;
+	private final String arrayName;
+	private final String dataName;
+	private final long maxPayloadSize;
+	private int position;
+	private long payloadBytesRead;
+	
+	private static final String TAG = "JSON_PAYLOAD_READER";
+	
+	/**
+	 * Creates a new JsonPayloadReader
+	 * 
+	 * @param json - The JSON response to read
+	 * @param arrayName - The name of the array which contains the payload objects
+	 * @param dataName - The name of the member of each payload object which contains the hex encoded payload
+	 * @param maxPayloadSize - The maximum size of payload to accept, in bytes
+	 */
+	JsonPayloadReader(String json, String arrayName, String dataName, long maxPayloadSize)
+	{
+		this.json = json;
+		this.arrayName = arrayName;
+		this.dataName = dataName;
+		this.maxPayloadSize = maxPayloadSize;
+		this.position = 0;
+		this.payloadBytesRead = 0;
+	}
+	
+	/**
+	 * Reads the response, passing each payload to the given handler as it is read
+	 * 
+	 * @param handler - The DownloadedMsgHandler to pass each payload to
+	 * 
+	 * @return The number of payloads passed to the handler
+	 * 
+	 * @throws InterruptedException If the handler is interrupted
+	 * @throws RuntimeException If the response is not valid JSON
+	 */
+	int read(DownloadedMsgHandler handler) throws InterruptedException
+	{
+		int payloadsRead = 0;
+		
+		expect('{');
+		if (nextCharacter() == '}')
+		{
+			position ++;
+			return payloadsRead;
+		}
+		do
+		{
+			String name = readName();
+			if (name.equals(arrayName) && nextCharacter() == '[')
+			{
+				payloadsRead += readPayloadArray(handler);
+			}
+			else
+			{
+				skipValue();
+			}
+		}
+		while (readSeparator('}'));
+		
+		return payloadsRead;
+	}
+	
+	/**
+	 * Returns the total size in bytes of the payloads which have been passed to the handler
+	 */
+	long getPayloadBytesRead()
+	{
+		return payloadBytesRead;
+	}
+	
+	/**
+	 * Reads an array of payload objects, passing each payload to the given handler
+	 */
+	private int readPayloadArray(DownloadedMsgHandler handler) throws InterruptedException
+	{
+		int payloadsRead = 0;
+		
+		expect('[');
+		if (nextCharacter() == ']')
+		{
+			position ++;
+			return payloadsRead;
+		}
+		do
+		{
+			if (nextCharacter() != '{')
+			{
+				skipValue();
+				continue;
+			}
+			
+			expect('{');
+			if (nextCharacter() == '}')
+			{
+				position ++;
+				continue;
+			}
+			do
+			{
+				String name = readName();
+				if (name.equals(dataName) && nextCharacter() == '"')
+				{
+					byte[] payload = readHexPayload();
+					if (payload != null)
+					{
+						payloadBytesRead += payload.length;
+						handler.onMsgDownloaded(payload);
+						payloadsRead ++;
+					}
+				}
+				else
+				{
+					skipValue();
+				}
+			}
+			while (readSeparator('}'));
+		}
+		while (readSeparator(']'));
+		
+		return payloadsRead;
+	}
+	
+	/**
+	 * Reads a hex encoded String value, decoding it directly into a byte[]
+	 * 
+	 * @return The decoded payload, or null if the payload was too large or
+	 * was not valid hex
+	 */
+	private byte[] readHexPayload()
+	{
+		expect('"');
+		int start = position;
+		int end = json.indexOf('"', start);
+		if (end < 0)
+		{
+			throw malformed("Unterminated string");
+		}
+		position = end + 1;
+		
+		int hexLength = end - start;
+		long payloadByteSize = hexLength / 2;
+		if (payloadByteSize >= maxPayloadSize)
+		{
+			Log.d(TAG, "While running JsonPayloadReader.readHexPayload(), we received a payload that was larger than "
+					+ "the maximum size we are willing to accept. It has been ignored. \n"
+					+ "The size of the rejected payload was " + (payloadByteSize / 1000) + " kilobytes.");
+			return null;
+		}
+		if (hexLength % 2 != 0)
+		{
+			Log.d(TAG, "While running JsonPayloadReader.readHexPayload(), we received a payload with an odd number of hex digits. It has been ignored.");
+			return null;
+		}
+		
+		byte[] payload = new byte[hexLength / 2];
+		for (int i = 0; i < payload.length; i++)
+		{
+			int high = Character.digit(json.charAt(start + (i * 2)), 16);
+			int low = Character.digit(json.charAt(start + (i * 2) + 1), 16);
+			if (high < 0 || low < 0)
+			{
+				Log.d(TAG, "While running JsonPayloadReader.readHexPayload(), we received a payload which was not valid hex. It has been ignored.");
+				return null;
+			}
+			payload[i] = (byte) ((high << 4) + low);
+		}
+		return payload;
+	}
+	
+	/**
+	 * Reads the name of an object member, along with the following colon
+	 */
+	private String readName()
+	{
+		String name = readString();
+		expect(':');
+		return name;
+	}
+	
+	/**
+	 * Reads a String value, decoding any escape sequences
+	 */
+	private String readString()
+	{
+		expect('"');
+		StringBuilder builder = new StringBuilder();
+		while (position < json.length())
+		{
+			char c = json.charAt(position++);
+			if (c == '"')
+			{
+				return builder.toString();
+			}
+			else if (c == '\\')
+			{
+				if (position >= json.length())
+				{
+					break;
+				}
+				char escaped = json.charAt(position++);
+				switch (escaped)
+				{
+					case 'b': builder.append('\b'); break;
+					case 'f': builder.append('\f'); break;
+					case 'n': builder.append('\n'); break;
+					case 'r': builder.append('\r'); break;
+					case 't': builder.append('\t'); break;
+					case 'u':
+						if (position + 4 > json.length())
+						{
+							throw malformed("Invalid unicode escape sequence");
+						}
+						builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+						position += 4;
+						break;
+					default: builder.append(escaped); break;
+				}
+			}
+			else
+			{
+				builder.append(c);
+			}
+		}
+		throw malformed("Unterminated string");
+	}
+	
+	/**
+	 * Skips over a value of any type
+	 */
+	private void skipValue()
+	{
+		char c = nextCharacter();
+		if (c == '"')
+		{
+			readString();
+		}
+		else if (c == '{' || c == '[')
+		{
+			// Skip the object or array, keeping track of nesting and ignoring any brackets inside strings
+			int depth = 0;
+			do
+			{
+				c = nextCharacter();
+				if (c == '"')
+				{
+					readString();
+					continue;
+				}
+				if (c == '{' || c == '[')
+				{
+					depth ++;
+				}
+				else if (c == '}' || c == ']')
+				{
+					depth --;
+				}
+				position ++;
+			}
+			while (depth > 0);
+		}
+		else
+		{
+			// A number, boolean, or null
+			while (position < json.length() && ",}] \t\r\n".indexOf(json.charAt(position)) < 0)
+			{
+				position ++;
+			}
+		}
+	}
+	
+	/**
+	 * Reads the separator following a member of an object or an element of an array
+	 * 
+	 * @param closingCharacter - The character which closes the object or array
+	 * 
+	 * @return True if another member or element follows, or false if the object or array has ended
+	 */
+	private boolean readSeparator(char closingCharacter)
+	{
+		char c = nextCharacter();
+		position ++;
+		if (c == ',')
+		{
+			return true;
+		}
+		else if (c == closingCharacter)
+		{
+			return false;
+		}
+		throw malformed("Expected ',' or '" + closingCharacter + "'");
+	}
+	
+	/**
+	 * Skips any whitespace and returns the next character, without consuming it
+	 */
+	private char nextCharacter()
+	{
+		while (position < json.length() && Character.isWhitespace(json.charAt(position)))
+		{
+			position ++;
+		}
+		if (position >= json.length())
+		{
+			throw malformed("Unexpected end of input");
+		}
+		return json.charAt(position);
+	}
+	
+	/**
+	 * Consumes the next character, which must be the given character
+	 */
+	private void expect(char expected)
+	{
+		if (nextCharacter() != expected)
+		{
+			throw malformed("Expected '" + expected + "'");
+		}
+		position ++;
+	}
+	
+	private RuntimeException malformed(String problem)
+	{
+		return new RuntimeException("Malformed JSON found by JsonPayloadReader. " + problem + " at position " + position + ".");
+	}
+}
@@ -117,7 +117,7 @@ public class NetworkHelper
 	 * @return A boolean indicating whether or not the Android device
 	 * is connected to a wifi network
 	 */
-	private static boolean checkWifiConnected(Context context)
+	public static boolean checkWifiConnected(Context context)
 	{
          ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
          NetworkInfo wifiNetwork = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
@@ -144,7 +144,7 @@ public class NetworkHelper
 	 * @return A boolean indicating whether or not any network
 	 * connection is available
 	 */
-	private static boolean checkNetworkAvailablility(Context context) 
+	public static boolean checkNetworkAvailablility(Context context) 
 	{
 	    ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
 	    NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
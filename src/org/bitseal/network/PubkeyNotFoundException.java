@@ -0,0 +1,19 @@
+package org.bitseal.network;
+
+/**
+ * Thrown when servers have answered a request for a pubkey, but none of them
+ * has provided it, e.g. because the owner of the address has not yet published 
+ * their pubkey. This is different from being unable to reach any server, in 
+ * which case a plain RuntimeException is thrown. 
+ * 
+ * @author Jonathan Coe
+ */
+public class PubkeyNotFoundException extends RuntimeException
+{
+	private static final long serialVersionUID = 3518749022946517640L;
+	
+	public PubkeyNotFoundException(String message)
+	{
+		super(message);
+	}
+}
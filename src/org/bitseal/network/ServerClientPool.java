@@ -0,0 +1,343 @@
+package org.bitseal.network;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.bitseal.core.App;
+import org.bitseal.data.ServerRecord;
+import org.bitseal.database.DatabaseContentProvider;
+import org.bitseal.database.ServerRecordProvider;
+
+import android.database.ContentObserver;
+import android.util.Log;
+import de.timroes.axmlrpc.XMLRPCClient;
+
+/**
+ * A process-wide pool of XMLRPC clients, holding one long-lived client for
+ * each of our servers. <br><br>
+ * 
+ * The list of servers is read from the database once and then cached until
+ * the server records are changed. Reusing the same client for every call to
+ * a server allows the underlying HTTP connections to be kept alive and reused,
+ * along with any TLS sessions, so that most calls do not need a new TCP or TLS
+ * handshake. <br><br>
+ * 
+ * The pool also keeps a latency and reliability score for each server. These are 
+ * exponentially weighted moving averages, updated after every call and saved to 
+ * the database, and are used to decide which servers to call first.
+ * 
+ * @author Jonathan Coe
+ */
+public class ServerClientPool
+{
+	private ArrayList<PooledServer> servers;
+	private HashMap<String, XMLRPCClient> clients;
+	
+	/** The latencies of the most recent successful calls to any server, in milliseconds */
+	private final long[] recentLatencies = new long[LATENCY_SAMPLE_SIZE];
+	private int recentLatencyCount;
+	private int nextLatencyIndex;
+	
+	/** Set whenever the server records in the database are changed */
+	private volatile boolean serversChanged;
+	
+	/** The weight given to the newest result when updating a server's latency and reliability scores */
+	private static final double SCORE_SMOOTHING_FACTOR = 0.2;
+	
+	/** The latency (in milliseconds) assumed for a server which has not yet been called successfully */
+	private static final double DEFAULT_LATENCY = 500;
+	
+	/** The lowest success rate used when weighting servers, so that no server is ever excluded completely */
+	private static final double MIN_SUCCESS_RATE_WEIGHT = 0.05;
+	
+	/** The probability that servers will be ordered at random rather than by their scores, so that the scores of all servers are kept up to date */
+	private static final double EXPLORATION_RATE = 0.1;
+	
+	/** The number of recent call latencies which are kept in order to calculate latency percentiles */
+	private static final int LATENCY_SAMPLE_SIZE = 64;
+	
+	/** Used to randomize the order in which servers are called */
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	/** The maximum number of idle connections to keep alive for each server */
+	private static final String MAX_KEEP_ALIVE_CONNECTIONS = "5";
+	
+	private static final String TAG = "SERVER_CLIENT_POOL";
+	
+	/**
+	 * A single server from the pool, along with the client used to connect to it
+	 */
+	static class PooledServer
+	{
+		final long id;
+		final URL url;
+		final String username;
+		final String password;
+		final XMLRPCClient client;
+		
+		/** Set if the server has been found not to support multicall requests */
+		volatile boolean multicallUnsupported;
+		
+		/** The average latency of successful calls to this server in milliseconds, or zero if no call has succeeded yet */
+		private double latency;
+		
+		/** The proportion of recent calls to this server which succeeded */
+		private double successRate;
+		
+		private PooledServer(ServerRecord record, URL url, XMLRPCClient client)
+		{
+			this.id = record.getId();
+			this.url = url;
+			this.username = record.getUsername();
+			this.password = record.getPassword();
+			this.client = client;
+			this.latency = record.getLatency();
+			this.successRate = record.getSuccessRate();
+		}
+		
+		/**
+		 * Returns the weight of this server when choosing which servers to call. Fast and
+		 * reliable servers have the greatest weight.
+		 */
+		private synchronized double getWeight()
+		{
+			double expectedLatency = DEFAULT_LATENCY;
+			if (latency > 0)
+			{
+				expectedLatency = latency;
+			}
+			double successWeight = Math.max(successRate, MIN_SUCCESS_RATE_WEIGHT);
+			return (successWeight * successWeight) / expectedLatency;
+		}
+	}
+	
+	private static class Holder
+	{
+		private static final ServerClientPool INSTANCE = new ServerClientPool();
+	}
+	
+	private ServerClientPool()
+	{
+		clients = new HashMap<String, XMLRPCClient>();
+		serversChanged = true;
+		
+		// HttpURLConnection keeps connections alive by default, but make sure that this has not been disabled
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", MAX_KEEP_ALIVE_CONNECTIONS);
+		
+		// Refresh the list of servers whenever the server records are changed. Changes to the scores of individual 
+		// records are made through the URI of each record, and so do not cause the list to be refreshed. 
+		App.getContext().getContentResolver().registerContentObserver(DatabaseContentProvider.CONTENT_URI_SERVER_RECORDS, false, new ContentObserver(null)
+		{
+			@Override
+			public void onChange(boolean selfChange)
+			{
+				invalidate();
+			}
+		});
+	}
+	
+	/**
+	 * Returns the single instance of this class
+	 */
+	public static ServerClientPool getInstance()
+	{
+		return Holder.INSTANCE;
+	}
+	
+	/**
+	 * Returns a new list of the servers in the pool. If no server records exist in
+	 * the database, the default list of servers is set up first.
+	 */
+	synchronized ArrayList<PooledServer> getServers()
+	{
+		if (serversChanged || servers == null)
+		{
+			loadServers();
+		}
+		return new ArrayList<PooledServer>(servers);
+	}
+	
+	/**
+	 * Returns a new list of the servers in the pool, in the order in which they
+	 * should be called. Servers are chosen at random, weighted towards the servers 
+	 * with the lowest latency and the highest success rate. Occasionally the servers 
+	 * are ordered completely at random instead, so that slower servers are still 
+	 * called from time to time and their scores can recover.
+	 */
+	ArrayList<PooledServer> getServersInPreferenceOrder()
+	{
+		ArrayList<PooledServer> remainingServers = getServers();
+		if (RANDOM.nextDouble() < EXPLORATION_RATE)
+		{
+			Collections.shuffle(remainingServers, RANDOM);
+			return remainingServers;
+		}
+		
+		ArrayList<PooledServer> orderedServers = new ArrayList<PooledServer>();
+		while (remainingServers.size() > 0)
+		{
+			double totalWeight = 0;
+			for (PooledServer s : remainingServers)
+			{
+				totalWeight += s.getWeight();
+			}
+			
+			// Pick the next server at random, in proportion to its weight
+			double target = RANDOM.nextDouble() * totalWeight;
+			int chosenIndex = remainingServers.size() - 1;
+			for (int i = 0; i < remainingServers.size(); i++)
+			{
+				target -= remainingServers.get(i).getWeight();
+				if (target < 0)
+				{
+					chosenIndex = i;
+					break;
+				}
+			}
+			orderedServers.add(remainingServers.remove(chosenIndex));
+		}
+		return orderedServers;
+	}
+	
+	/**
+	 * Updates the latency and reliability scores of the given server after a call
+	 * to it, and saves the new scores to the database
+	 * 
+	 * @param server - The server which was called
+	 * @param success - Whether or not the call succeeded
+	 * @param latency - The time taken by the call in milliseconds. Only used if the call succeeded.
+	 */
+	void recordCallResult(PooledServer server, boolean success, long latency)
+	{
+		double newLatency;
+		double newSuccessRate;
+		synchronized (server)
+		{
+			if (success)
+			{
+				if (server.latency > 0)
+				{
+					server.latency = (SCORE_SMOOTHING_FACTOR * latency) + ((1 - SCORE_SMOOTHING_FACTOR) * server.latency);
+				}
+				else
+				{
+					server.latency = latency;
+				}
+			}
+			double result = success ? 1 : 0;
+			server.successRate = (SCORE_SMOOTHING_FACTOR * result) + ((1 - SCORE_SMOOTHING_FACTOR) * server.successRate);
+			
+			newLatency = server.latency;
+			newSuccessRate = server.successRate;
+		}
+		
+		if (success)
+		{
+			synchronized (recentLatencies)
+			{
+				recentLatencies[nextLatencyIndex] = latency;
+				nextLatencyIndex = (nextLatencyIndex + 1) % LATENCY_SAMPLE_SIZE;
+				recentLatencyCount = Math.min(recentLatencyCount + 1, LATENCY_SAMPLE_SIZE);
+			}
+		}
+		
+		try
+		{
+			ServerRecordProvider.get(App.getContext()).updateServerScores(server.id, newLatency, newSuccessRate);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Exception occurred in ServerClientPool.recordCallResult(). The exception message was:\n"
+					+ e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns the given percentile of the latencies of recent successful calls to any of
+	 * our servers
+	 * 
+	 * @param percentile - The percentile to calculate, between 0 and 1
+	 * 
+	 * @return The latency in milliseconds, or -1 if no calls have succeeded yet
+	 */
+	long getLatencyPercentile(double percentile)
+	{
+		long[] sortedLatencies;
+		synchronized (recentLatencies)
+		{
+			if (recentLatencyCount == 0)
+			{
+				return -1;
+			}
+			sortedLatencies = Arrays.copyOf(recentLatencies, recentLatencyCount);
+		}
+		Arrays.sort(sortedLatencies);
+		int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+		return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+	}
+	
+	/**
+	 * Marks the cached list of servers as out of date, so that it will be read again
+	 * from the database the next time it is needed
+	 */
+	public void invalidate()
+	{
+		serversChanged = true;
+	}
+	
+	/**
+	 * Reads the server records from the database, reusing the existing client for
+	 * any server which was already in the pool
+	 */
+	private void loadServers()
+	{
+		serversChanged = false;
+		
+		// Check if any server records exist in app storage. If not, set up the default list of server records.
+		ServerRecordProvider servProv = ServerRecordProvider.get(App.getContext());
+		ArrayList<ServerRecord> retrievedServerRecords = servProv.getAllServerRecords();
+		if (retrievedServerRecords.size() == 0)
+		{
+			Log.i(TAG, "No server records found in app storage. Setting up list of default servers.");
+			ServerHelper servHelp = new ServerHelper();
+			servHelp.setupDefaultServers();
+			// Now the server records should be available from the database
+			retrievedServerRecords = servProv.getAllServerRecords();
+		}
+		
+		ArrayList<PooledServer> newServers = new ArrayList<PooledServer>();
+		HashMap<String, XMLRPCClient> newClients = new HashMap<String, XMLRPCClient>();
+		for (ServerRecord s : retrievedServerRecords)
+		{
+			try
+			{
+				URL url = new URL(s.getURL());
+				
+				// Reuse the existing client for this server unless its login details have changed
+				String clientKey = s.getURL() + "\n" + s.getUsername() + "\n" + s.getPassword();
+				XMLRPCClient client = clients.get(clientKey);
+				if (client == null)
+				{
+					client = ApiCaller.setUpClient(url, s.getUsername(), s.getPassword());
+				}
+				newClients.put(clientKey, client);
+				newServers.add(new PooledServer(s, url, client));
+			}
+			catch (MalformedURLException e)
+			{
+				Log.e(TAG, "Malformed URL exception occurred in ServerClientPool.loadServers(). We will ignore the ServerRecord that contains this " +
+						"url. The String representation of the url was " + s.getURL());
+			}
+		}
+		
+		servers = newServers;
+		clients = newClients;
+		Log.i(TAG, "Loaded " + servers.size() + " server(s) into the client pool");
+	}
+}
@@ -1,13 +1,22 @@
 package org.bitseal.network;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bitseal.core.App;
 import org.bitseal.core.PubkeyProcessor;
-import org.bitseal.data.Payload;
 import org.bitseal.data.Pubkey;
-import org.bitseal.database.PayloadProvider;
-import org.bitseal.database.PayloadsTable;
 import org.bitseal.database.PubkeyProvider;
 import org.bitseal.database.PubkeysTable;
 import org.bitseal.util.ByteFormatter;
@@ -18,7 +27,6 @@ import org.json.JSONObject;
 
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
-import android.util.Base64;
 import android.util.Log;
 
 /**
@@ -42,18 +50,42 @@ public class ServerCommunicator
 	 */
 	private static final int MSG_DISSEMINATION_REDUNDANCY_FACTOR = 2;
 	
+	/**
+	 * The number of servers which must accept a msg before its dissemination is considered
+	 * successful. Once this many servers have accepted it, we stop waiting for the rest.
+	 */
+	private static final int MSG_DISSEMINATION_QUORUM = 1;
+	
 	/**
 	 * Determines the level of redundancy the client will attempt to maintain when
 	 * attempting to disseminate pubkeys to the rest of the Bitmessage network.
 	 */
 	private static final int PUBKEY_DISSEMINATION_REDUNDANCY_FACTOR = 2;
 	
+	/**
+	 * The number of servers which must accept a pubkey before its dissemination is considered
+	 * successful. Once this many servers have accepted it, we stop waiting for the rest.
+	 */
+	private static final int PUBKEY_DISSEMINATION_QUORUM = 1;
+	
 	/**
 	 * Determines the level of redundancy the client will attempt to maintain when
 	 * attempting to disseminate getpubkeys to the rest of the Bitmessage network.
 	 */
 	private static final int GETPUBKEY_DISSEMINATION_REDUNDANCY_FACTOR = 2;
 	
+	/**
+	 * The number of servers which must accept a getpubkey before its dissemination is considered
+	 * successful. Once this many servers have accepted it, we stop waiting for the rest.
+	 */
+	private static final int GETPUBKEY_DISSEMINATION_QUORUM = 1;
+	
+	/**
+	 * The maximum number of objects which will be sent to a server in a single batch
+	 * dissemination request
+	 */
+	private static final int MAX_OBJECTS_PER_BATCH = 50;
+	
 	/**
 	 * The modifier that we use to calculate the 'received since' time
 	 * that we supply to the API the first time we check for msgs sent to a particular
@@ -71,11 +103,44 @@ public class ServerCommunicator
 	private static final long DEFAULT_RECEIVED_TIME_MODIFIER = 10;
 	
 	/**
-	 * The maximum period in seconds which for which we will check for new msgs in a single request. 
-	 * This prevents us from being overwhelmed by a huge number of new msgs when we try
-	 * to catch up with the network after some time offline. 
+	 * The period in seconds for which we will check for new msgs in a single request, until
+	 * it has been adjusted. This prevents us from being overwhelmed by a huge number of new 
+	 * msgs when we try to catch up with the network after some time offline. <br><br>
+	 * 
+	 * The period is adjusted after each request according to how many msgs were returned. 
+	 * It grows during quiet periods, so that fewer requests are needed, and shrinks during
+	 * busy periods, so that each response stays within the response byte budget. 
 	 */
-	private static final long MAXIMUM_MSG_CATCH_UP_PERIOD = 1800;
+	private static final long DEFAULT_MSG_CATCH_UP_PERIOD = 1800;
+	
+	/** The default shortest period in seconds for which we will check for new msgs in a single request */
+	private static final long DEFAULT_MIN_MSG_CATCH_UP_PERIOD = 300;
+	
+	/** The default longest period in seconds for which we will check for new msgs in a single request */
+	private static final long DEFAULT_MAX_MSG_CATCH_UP_PERIOD = 21600;
+	
+	/** The default maximum total size in bytes of the msgs that we aim to receive in a single response */
+	private static final long DEFAULT_MSG_RESPONSE_BYTE_BUDGET = 4000000;
+	
+	/** The maximum number of msgs that we aim to receive in a single response */
+	private static final int MSG_RESPONSE_PAYLOAD_BUDGET = 1000;
+	
+	/** The proportion of the response budgets that the catch up period is sized to fill, leaving room for bursts of msgs */
+	private static final double MSG_RESPONSE_BUDGET_TARGET = 0.5;
+	
+	/** The greatest factor by which the catch up period can grow after a single request */
+	private static final long MAX_MSG_CATCH_UP_PERIOD_GROWTH = 2;
+	
+	/** A key used to store the current msg catch up period, alongside the 'last msg check time' */
+	private static final String MSG_CATCH_UP_PERIOD = "msgCatchUpPeriod";
+	
+	// Keys which can be used to override the bounds of the msg catch up period and the response byte budget
+	public static final String KEY_MIN_MSG_CATCH_UP_PERIOD = "minMsgCatchUpPeriod";
+	public static final String KEY_MAX_MSG_CATCH_UP_PERIOD = "maxMsgCatchUpPeriod";
+	public static final String KEY_MSG_RESPONSE_BYTE_BUDGET = "msgResponseByteBudget";
+	
+	/** Used to make sure that concurrent requests do not overwrite each other's adjustments to the catch up period */
+	private static final Object MSG_CATCH_UP_PERIOD_LOCK = new Object();
 	
 	/**
 	 * The maximum number of servers to poll on each attempt to retrieve data. If we have
@@ -84,14 +149,30 @@ public class ServerCommunicator
 	 */
 	private static final int MAX_SERVERS_TO_POLL = 1;
 	
+	/**
+	 * The maximum number of servers which a pubkey request will be sent to at the same time. 
+	 * If the first server does not answer quickly, the request is also sent to a second
+	 * server, and whichever valid pubkey arrives first is used.
+	 */
+	private static final int MAX_CONCURRENT_PUBKEY_REQUESTS = 2;
+	
+	/**
+	 * The percentile of recent call latencies which a pubkey request must exceed
+	 * before it is also sent to another server
+	 */
+	private static final double PUBKEY_REQUEST_HEDGE_PERCENTILE = 0.9;
+	
+	/** The hedge delay in milliseconds to use before any call latencies have been recorded */
+	private static final long DEFAULT_PUBKEY_REQUEST_HEDGE_DELAY = 1500;
+	
+	/** The shortest hedge delay in milliseconds that we will use, so that fast servers do not cause needless duplicate requests */
+	private static final long MIN_PUBKEY_REQUEST_HEDGE_DELAY = 250;
+	
 	/**
 	 * The maximum size of an incoming payload that we will accept, in bytes.
 	 **/
 	private static final long MAX_PAYLOAD_SIZE_TO_ACCEPT = 256000;
 	
-	/** A key used to store the time of the last successful 'check for new msgs' server request */
-	private static final String LAST_MSG_CHECK_TIME = "lastMsgCheckTime";
-	
 	// API commands recognised by PyBitmessage
 	private static final String API_METHOD_DISSEMINATE_MSG = "disseminateMsg";
 	private static final String API_METHOD_DISSEMINATE_MSG_NO_POW = "disseminateMsgNoPOW";
@@ -113,6 +194,27 @@ public class ServerCommunicator
 	private static final String JSON_NAME_MSG_PAYLOADS = "msgPayloads";
 	private static final String JSON_NAME_DATA = "data";
 	
+	/** The maximum number of threads which may be used to run concurrent API calls */
+	private static final int MAX_CONCURRENT_CALL_THREADS = 8;
+	
+	/** 
+	 * Runs the API calls made when calling several servers concurrently. Calls which are no longer needed once a quorum has
+	 * been reached are left to finish in the background, so the number of threads is limited in case some servers hang. If
+	 * every thread is busy, the call is run on the calling thread instead, so that no call is ever rejected. 
+	 */
+	private static final ExecutorService CONCURRENT_CALL_EXECUTOR = new ThreadPoolExecutor(0, MAX_CONCURRENT_CALL_THREADS, 60, TimeUnit.SECONDS, 
+			new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+	
+	/** The maximum number of threads which may be used to run 'request pubkey' API calls */
+	private static final int MAX_PUBKEY_REQUEST_THREADS = 4;
+	
+	/** 
+	 * Runs 'request pubkey' API calls, so that hedged requests do not have to wait for threads used by dissemination. If
+	 * every thread is busy, the call is rejected, and no hedged request is sent. 
+	 */
+	private static final ExecutorService PUBKEY_REQUEST_EXECUTOR = new ThreadPoolExecutor(0, MAX_PUBKEY_REQUEST_THREADS, 60, TimeUnit.SECONDS, 
+			new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+	
 	private static final String TAG = "SERVER_COMMUNICATOR";
 	
 	/**
@@ -131,42 +233,8 @@ public class ServerCommunicator
 		Log.d(TAG, "Attempting to disseminate an encrypted msg with POW done.\n"
 				+ "Encrypted msg payload: " + hexPayload);
 		
-		// Attempt to make the API call
-		ApiCaller caller = new ApiCaller();
-		int successfulCalls = 0;
-		for(int i = 0; i < MSG_DISSEMINATION_REDUNDANCY_FACTOR; i++)
-		{
-			Object callResult = caller.call(API_METHOD_DISSEMINATE_MSG, hexPayload);
-			String resultString = callResult.toString();
-			Log.d(TAG, "The result of the 'disseminate msg' API call was: " + resultString);
-			
-			if (resultString.equals(RESULT_CODE_DISSEMINATE_MSG)) 
-			{
-				successfulCalls = successfulCalls + 1;
-			}
-			else
-			{
-				Log.e(TAG, "While running disseminateMsgWithPOW(), a server connection was established \n" +
-						"successfully, but the API call failed. The result of the api call was: " + resultString);
-			}
-			try
-			{
-				caller.switchToNextServer();
-			}
-			catch (RuntimeException e)
-			{
-				break;
-			}
-		}
-		// If we successfully disseminated the payload to at least one server, return true
-		if (successfulCalls > 0)
-		{
-			return true;
-		}
-		else
-		{
-			return false;
-		}
+		// Attempt to make the API calls
+		return disseminate(API_METHOD_DISSEMINATE_MSG, hexPayload, RESULT_CODE_DISSEMINATE_MSG, MSG_DISSEMINATION_REDUNDANCY_FACTOR, MSG_DISSEMINATION_QUORUM);
 	}
 	
 	/**
@@ -190,42 +258,8 @@ public class ServerCommunicator
 		Log.d(TAG, "Attempting to disseminate an encrypted msg without POW done.\n"
 				+ "Encrypted msg payload: " + hexPayload);
 		
-		// Attempt to make the API call
-		ApiCaller caller = new ApiCaller();
-		int successfulCalls = 0;
-		for(int i = 0; i < MSG_DISSEMINATION_REDUNDANCY_FACTOR; i++)
-		{
-			Object callResult = caller.call(API_METHOD_DISSEMINATE_MSG_NO_POW, hexPayload);
-			String resultString = callResult.toString();
-			Log.d(TAG, "The result of the 'disseminate msg' API call was: " + resultString);
-			
-			if (resultString.equals(RESULT_CODE_DISSEMINATE_MSG)) 
-			{
-				successfulCalls = successfulCalls + 1;
-			}
-			else
-			{
-				Log.e(TAG, "While running disseminateMsgNoPOW(), a server connection was established \n" +
-						"successfully, but the API call failed. The result of the api call was: " + resultString);
-			}
-			try
-			{
-				caller.switchToNextServer();
-			}
-			catch (RuntimeException e)
-			{
-				break;
-			}
-		}
-		// If we successfully disseminated the payload to at least one server, return true
-		if (successfulCalls > 0)
-		{
-			return true;
-		}
-		else
-		{
-			return false;
-		}
+		// Attempt to make the API calls
+		return disseminate(API_METHOD_DISSEMINATE_MSG_NO_POW, hexPayload, RESULT_CODE_DISSEMINATE_MSG, MSG_DISSEMINATION_REDUNDANCY_FACTOR, MSG_DISSEMINATION_QUORUM);
 	}
 	
 	/**
@@ -244,42 +278,8 @@ public class ServerCommunicator
 		Log.d(TAG, "Attempting to disseminate a pubkey with POW done.\n"
 				+ "Pubkey payload: " + hexPayload);
 		
-		// Attempt to make the API call
-		ApiCaller caller = new ApiCaller();
-		int successfulCalls = 0;
-		for(int i = 0; i < PUBKEY_DISSEMINATION_REDUNDANCY_FACTOR; i++)
-		{
-			Object callResult = caller.call(API_METHOD_DISSEMINATE_PUBKEY, hexPayload);
-			String resultString = callResult.toString();
-			Log.d(TAG, "The result of the 'disseminate pubkey' API call was: " + resultString);
-			
-			if (resultString.equals(RESULT_CODE_DISSEMINATE_PUBKEY)) 
-			{
-				successfulCalls = successfulCalls + 1;
-			}
-			else
-			{
-				Log.e(TAG, "While running disseminatePubkeyWithPOW(), a server connection was established \n" +
-						"successfully, but the API call failed. The result of the api call was: " + resultString);
-			}
-			try
-			{
-				caller.switchToNextServer();
-			}
-			catch (RuntimeException e)
-			{
-				break;
-			}
-		}
-		// If we successfully disseminated the payload to at least one server, return true
-		if (successfulCalls > 0)
-		{
-			return true;
-		}
-		else
-		{
-			return false;
-		}
+		// Attempt to make the API calls
+		return disseminate(API_METHOD_DISSEMINATE_PUBKEY, hexPayload, RESULT_CODE_DISSEMINATE_PUBKEY, PUBKEY_DISSEMINATION_REDUNDANCY_FACTOR, PUBKEY_DISSEMINATION_QUORUM);
 	}
 	
 	/**
@@ -299,104 +299,401 @@ public class ServerCommunicator
 		Log.d(TAG, "Attempting to disseminate a pubkey without POW done.\n"
 				+ "Pubkey payload: " + hexPayload);
 		
-		// Attempt to make the API call
-		ApiCaller caller = new ApiCaller();
-		int successfulCalls = 0;
-		for(int i = 0; i < PUBKEY_DISSEMINATION_REDUNDANCY_FACTOR; i++)
+		// Attempt to make the API calls
+		return disseminate(API_METHOD_DISSEMINATE_PUBKEY_NO_POW, hexPayload, RESULT_CODE_DISSEMINATE_PUBKEY, PUBKEY_DISSEMINATION_REDUNDANCY_FACTOR, PUBKEY_DISSEMINATION_QUORUM);
+	}
+	
+	/**
+	 * Sends a getpubkey object to a server, waits some time for the server
+	 * to receive the pubkey specified by the getpubkey object, then requests
+	 * that pubkey from the server. 
+	 * 
+	 * @param getpubkeyPayload - A byte[] containing the payload of the getpubkey object
+	 * 
+	 * @return - A Pubkey object containing the pubkey specified by the
+	 * getpubkey payload
+	 */
+	public boolean disseminateGetpubkey(byte[] getpubkeyPayload)
+	{	
+		String hexPayload = ByteFormatter.byteArrayToHexString(getpubkeyPayload);
+		
+		Log.d(TAG, "Attempting to disseminate a getpubkey with POW done.\n"
+				+ "Getpubkey payload: " + hexPayload);
+		
+		// Attempt to make the API calls
+		return disseminate(API_METHOD_DISSEMINATE_GETPUBKEY, hexPayload, RESULT_CODE_DISSEMINATE_GETPUBKEY, GETPUBKEY_DISSEMINATION_REDUNDANCY_FACTOR, GETPUBKEY_DISSEMINATION_QUORUM);
+	}
+	
+	/**
+	 * Attempts to disseminate several messages to the rest of the Bitmessage network
+	 * by sending them to one or more Bitseal servers in batches. The proof of work 
+	 * for each message has already been done.
+	 * 
+	 * @param msgPayloads - An ArrayList containing the messages to be disseminated
+	 * 
+	 * @return A boolean[] indicating whether or not the dissemination of each message
+	 * was successful, in the same order as the given messages
+	 */
+	public boolean[] disseminateMsgs(ArrayList<byte[]> msgPayloads)
+	{
+		Log.d(TAG, "Attempting to disseminate " + msgPayloads.size() + " encrypted msgs with POW done.");
+		return disseminateBatch(API_METHOD_DISSEMINATE_MSG, msgPayloads, RESULT_CODE_DISSEMINATE_MSG, MSG_DISSEMINATION_REDUNDANCY_FACTOR, MSG_DISSEMINATION_QUORUM);
+	}
+	
+	/**
+	 * Attempts to disseminate several pubkeys to the rest of the Bitmessage network
+	 * by sending them to one or more Bitseal servers in batches. The proof of work 
+	 * for each pubkey has already been done.
+	 * 
+	 * @param pubkeyPayloads - An ArrayList containing the pubkeys to be disseminated
+	 * 
+	 * @return A boolean[] indicating whether or not the dissemination of each pubkey
+	 * was successful, in the same order as the given pubkeys
+	 */
+	public boolean[] disseminatePubkeys(ArrayList<byte[]> pubkeyPayloads)
+	{
+		Log.d(TAG, "Attempting to disseminate " + pubkeyPayloads.size() + " pubkeys with POW done.");
+		return disseminateBatch(API_METHOD_DISSEMINATE_PUBKEY, pubkeyPayloads, RESULT_CODE_DISSEMINATE_PUBKEY, PUBKEY_DISSEMINATION_REDUNDANCY_FACTOR, PUBKEY_DISSEMINATION_QUORUM);
+	}
+	
+	/**
+	 * Attempts to disseminate several pubkeys to the rest of the Bitmessage network
+	 * by sending them to one or more Bitseal servers in batches. The proof of work 
+	 * for the pubkeys has NOT yet been done, so the server will do the proof of work 
+	 * and then disseminate the pubkeys.
+	 * 
+	 * @param pubkeyPayloads - An ArrayList containing the pubkeys to be disseminated
+	 * 
+	 * @return A boolean[] indicating whether or not the dissemination of each pubkey
+	 * was successful, in the same order as the given pubkeys
+	 */
+	public boolean[] disseminatePubkeysNoPOW(ArrayList<byte[]> pubkeyPayloads)
+	{
+		Log.d(TAG, "Attempting to disseminate " + pubkeyPayloads.size() + " pubkeys without POW done.");
+		return disseminateBatch(API_METHOD_DISSEMINATE_PUBKEY_NO_POW, pubkeyPayloads, RESULT_CODE_DISSEMINATE_PUBKEY, PUBKEY_DISSEMINATION_REDUNDANCY_FACTOR, PUBKEY_DISSEMINATION_QUORUM);
+	}
+	
+	/**
+	 * Disseminates several objects to the rest of the Bitmessage network, sending them
+	 * to servers in batches of up to MAX_OBJECTS_PER_BATCH objects. Each batch is sent
+	 * to several servers concurrently, as in disseminate(). 
+	 * 
+	 * @param apiMethod - The API method to call for each object
+	 * @param payloads - An ArrayList containing the objects to disseminate
+	 * @param successResultCode - The result returned by a server which has accepted an object
+	 * @param redundancyFactor - The number of servers to send each object to
+	 * @param quorum - The number of servers which must accept each object
+	 * 
+	 * @return A boolean[] indicating whether or not the quorum of servers accepted each object
+	 */
+	private boolean[] disseminateBatch(String apiMethod, ArrayList<byte[]> payloads, String successResultCode, int redundancyFactor, int quorum)
+	{
+		boolean[] results = new boolean[payloads.size()];
+		for (int batchStart = 0; batchStart < payloads.size(); batchStart += MAX_OBJECTS_PER_BATCH)
 		{
-			Object callResult = caller.call(API_METHOD_DISSEMINATE_PUBKEY_NO_POW, hexPayload);
-			String resultString = callResult.toString();
-			Log.d(TAG, "The result of the 'disseminate pubkey' API call was: " + resultString);
+			int batchEnd = Math.min(batchStart + MAX_OBJECTS_PER_BATCH, payloads.size());
+			ArrayList<String> hexPayloads = new ArrayList<String>();
+			for (int i = batchStart; i < batchEnd; i++)
+			{
+				hexPayloads.add(ByteFormatter.byteArrayToHexString(payloads.get(i)));
+			}
 			
-			if (resultString.equals(RESULT_CODE_DISSEMINATE_PUBKEY)) 
+			boolean[] batchResults = disseminateSingleBatch(apiMethod, hexPayloads, successResultCode, redundancyFactor, quorum);
+			System.arraycopy(batchResults, 0, results, batchStart, batchResults.length);
+		}
+		return results;
+	}
+	
+	/**
+	 * Disseminates a single batch of objects by sending it to several Bitseal servers
+	 * concurrently. If a server cannot be reached, the batch is sent to the next unused 
+	 * server in the list instead. This method returns as soon as the given quorum of 
+	 * servers have accepted every object in the batch. 
+	 * 
+	 * @return A boolean[] indicating whether or not the quorum of servers accepted each object
+	 */
+	private boolean[] disseminateSingleBatch(final String apiMethod, final ArrayList<String> hexPayloads, final String successResultCode, int redundancyFactor, int quorum)
+	{
+		final ApiCaller caller = new ApiCaller();
+		int serversToUse = Math.min(redundancyFactor, caller.getNumberOfServers());
+		quorum = Math.max(1, Math.min(quorum, serversToUse));
+		final AtomicInteger nextSpareServer = new AtomicInteger(serversToUse);
+		
+		long startTime = System.currentTimeMillis();
+		CompletionService<boolean[]> completionService = new ExecutorCompletionService<boolean[]>(CONCURRENT_CALL_EXECUTOR);
+		for (int i = 0; i < serversToUse; i++)
+		{
+			final int serverIndex = i;
+			completionService.submit(new Callable<boolean[]>()
+			{
+				@Override
+				public boolean[] call()
+				{
+					return disseminateBatchToServer(caller, serverIndex, nextSpareServer, apiMethod, hexPayloads, successResultCode);
+				}
+			});
+		}
+		
+		int[] acceptedCounts = new int[hexPayloads.size()];
+		boolean anyServerReached = false;
+		for (int completed = 0; completed < serversToUse; completed++)
+		{
+			boolean[] accepted = null;
+			try
 			{
-				successfulCalls = successfulCalls + 1;
+				accepted = completionService.take().get();
 			}
-			else
+			catch (InterruptedException e)
 			{
-				Log.e(TAG, "While running disseminatePubkeyNoPOW(), a server connection was established \n" +
-						"successfully, but the API call failed. The result of the api call was: " + resultString);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("InterruptedException occurred in ServerCommunicator.disseminateSingleBatch(). The exception message was:\n" 
+						+ e.getMessage());
 			}
-			try
+			catch (ExecutionException e)
 			{
-				caller.switchToNextServer();
+				Log.e(TAG, "ExecutionException occurred in ServerCommunicator.disseminateSingleBatch(). The exception message was:\n" 
+						+ e.getMessage());
 			}
-			catch (RuntimeException e)
+			
+			if (accepted == null)
+			{
+				continue; // No server could be reached by this call
+			}
+			anyServerReached = true;
+			
+			boolean quorumReached = true;
+			for (int i = 0; i < accepted.length; i++)
+			{
+				if (accepted[i])
+				{
+					acceptedCounts[i] ++;
+				}
+				if (acceptedCounts[i] < quorum)
+				{
+					quorumReached = false;
+				}
+			}
+			if (quorumReached)
 			{
 				break;
 			}
 		}
-		// If we successfully disseminated the payload to at least one server, return true
-		if (successfulCalls > 0)
+		
+		if (anyServerReached == false)
 		{
-			return true;
+			throw new RuntimeException("API call failed after trying all listed servers. The API method was " + apiMethod);
 		}
-		else
+		
+		boolean[] results = new boolean[hexPayloads.size()];
+		int successCount = 0;
+		for (int i = 0; i < results.length; i++)
 		{
-			return false;
+			results[i] = acceptedCounts[i] >= quorum;
+			if (results[i])
+			{
+				successCount ++;
+			}
 		}
+		Log.i(TAG, successCount + " out of " + results.length + " objects sent with the '" + apiMethod + "' API call were accepted by a quorum of servers after " 
+				+ (System.currentTimeMillis() - startTime) + " milliseconds");
+		return results;
 	}
 	
 	/**
-	 * Sends a getpubkey object to a server, waits some time for the server
-	 * to receive the pubkey specified by the getpubkey object, then requests
-	 * that pubkey from the server. 
+	 * Sends a batch of objects to a single server. If the server supports multicall
+	 * requests, the whole batch is sent in a single request. Otherwise each object is
+	 * sent in a separate call. If the server cannot be reached, the next unused spare 
+	 * server is tried instead, until either a server responds or there are no more 
+	 * servers to try. 
 	 * 
-	 * @param getpubkeyPayload - A byte[] containing the payload of the getpubkey object
+	 * @return A boolean[] indicating whether or not the server accepted each object, or
+	 * null if no server could be reached
+	 */
+	private boolean[] disseminateBatchToServer(ApiCaller caller, int serverIndex, AtomicInteger nextSpareServer, String apiMethod, ArrayList<String> hexPayloads, String successResultCode)
+	{
+		while (serverIndex < caller.getNumberOfServers())
+		{
+			try
+			{
+				boolean[] accepted = new boolean[hexPayloads.size()];
+				try
+				{
+					ArrayList<Object[]> paramsList = new ArrayList<Object[]>();
+					for (String hexPayload : hexPayloads)
+					{
+						paramsList.add(new Object[]{hexPayload});
+					}
+					Object[] callResults = caller.multicallServer(serverIndex, apiMethod, paramsList);
+					for (int i = 0; i < callResults.length; i++)
+					{
+						accepted[i] = (callResults[i] != null) && callResults[i].toString().equals(successResultCode);
+					}
+				}
+				catch (UnsupportedOperationException e)
+				{
+					// Fall back to sending each object in a separate call
+					for (int i = 0; i < hexPayloads.size(); i++)
+					{
+						try
+						{
+							Object callResult = caller.callServer(serverIndex, apiMethod, hexPayloads.get(i));
+							accepted[i] = callResult.toString().equals(successResultCode);
+						}
+						catch (RuntimeException callException)
+						{
+							if (i == 0)
+							{
+								throw callException; // The server could not be reached, so try a spare server instead
+							}
+							break; // The server has stopped responding, so leave the remaining objects to be sent again later
+						}
+					}
+				}
+				return accepted;
+			}
+			catch (RuntimeException e)
+			{
+				serverIndex = nextSpareServer.getAndIncrement();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Disseminates an object to the rest of the Bitmessage network by sending it
+	 * to several Bitseal servers concurrently. If a server cannot be reached, the 
+	 * object is sent to the next unused server in the list instead. <br><br>
 	 * 
-	 * @return - A Pubkey object containing the pubkey specified by the
-	 * getpubkey payload
+	 * This method returns as soon as the given quorum of servers have accepted
+	 * the object. Any calls which are still in progress at that point are left to
+	 * finish in the background. 
+	 * 
+	 * @param apiMethod - The API method to call on each server
+	 * @param hexPayload - A String containing the hex encoded object
+	 * @param successResultCode - The result returned by a server which has accepted the object
+	 * @param redundancyFactor - The number of servers to send the object to
+	 * @param quorum - The number of servers which must accept the object
+	 * 
+	 * @return A boolean indicating whether or not the quorum of servers accepted the object
 	 */
-	public boolean disseminateGetpubkey(byte[] getpubkeyPayload)
-	{	
-		String hexPayload = ByteFormatter.byteArrayToHexString(getpubkeyPayload);
+	private boolean disseminate(final String apiMethod, final String hexPayload, final String successResultCode, int redundancyFactor, int quorum)
+	{
+		final ApiCaller caller = new ApiCaller();
+		int serversToUse = Math.min(redundancyFactor, caller.getNumberOfServers());
+		quorum = Math.max(1, Math.min(quorum, serversToUse));
 		
-		Log.d(TAG, "Attempting to disseminate a getpubkey with POW done.\n"
-				+ "Getpubkey payload: " + hexPayload);
+		// Servers beyond those initially selected are used as spares if any of the selected servers cannot be reached
+		final AtomicInteger nextSpareServer = new AtomicInteger(serversToUse);
 		
-		// Attempt to make the API call
-		ApiCaller caller = new ApiCaller();
-		int successfulCalls = 0;
-		for(int i = 0; i < GETPUBKEY_DISSEMINATION_REDUNDANCY_FACTOR; i++)
+		long startTime = System.currentTimeMillis();
+		CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(CONCURRENT_CALL_EXECUTOR);
+		for (int i = 0; i < serversToUse; i++)
 		{
-			Object callResult = caller.call(API_METHOD_DISSEMINATE_GETPUBKEY, hexPayload);
-			String resultString = callResult.toString();
-			Log.d(TAG, "The result of the 'disseminate getpubkey' API call was: " + resultString);
-			
-			if (resultString.equals(RESULT_CODE_DISSEMINATE_GETPUBKEY)) 
+			final int serverIndex = i;
+			completionService.submit(new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call()
+				{
+					return disseminateToServer(caller, serverIndex, nextSpareServer, apiMethod, hexPayload, successResultCode);
+				}
+			});
+		}
+		
+		int acceptedCount = 0;
+		int rejectedCount = 0;
+		for (int completed = 0; completed < serversToUse; completed++)
+		{
+			Boolean accepted = null;
+			try
 			{
-				successfulCalls = successfulCalls + 1;
+				accepted = completionService.take().get();
 			}
-			else
+			catch (InterruptedException e)
 			{
-				Log.e(TAG, "While running disseminateGetpubkeyWithPOW(), a server connection was established \n" +
-						"successfully, but the API call failed. The result of the api call was: " + resultString);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("InterruptedException occurred in ServerCommunicator.disseminate(). The exception message was:\n" 
+						+ e.getMessage());
 			}
-			try
+			catch (ExecutionException e)
 			{
-				caller.switchToNextServer();
+				Log.e(TAG, "ExecutionException occurred in ServerCommunicator.disseminate(). The exception message was:\n" 
+						+ e.getMessage());
 			}
-			catch (RuntimeException e)
+			
+			if (accepted == null)
 			{
-				break;
+				continue; // No server could be reached by this call
+			}
+			else if (accepted)
+			{
+				acceptedCount ++;
+				if (acceptedCount >= quorum)
+				{
+					Log.i(TAG, "The '" + apiMethod + "' API call was accepted by " + acceptedCount + " server(s) after " 
+							+ (System.currentTimeMillis() - startTime) + " milliseconds");
+					return true;
+				}
+			}
+			else
+			{
+				rejectedCount ++;
 			}
 		}
 		
-		// If we successfully disseminated the payload to at least one server, return true
-		if (successfulCalls > 0)
+		if (acceptedCount == 0 && rejectedCount == 0)
 		{
-			return true;
+			throw new RuntimeException("API call failed after trying all listed servers. The API method was " + apiMethod);
 		}
-		else
+		Log.e(TAG, "The '" + apiMethod + "' API call was accepted by only " + acceptedCount + " server(s), fewer than the quorum of " + quorum);
+		return false;
+	}
+	
+	/**
+	 * Sends an object to a single server. If the server cannot be reached, the next
+	 * unused spare server is tried instead, until either a server responds or there
+	 * are no more servers to try. 
+	 * 
+	 * @return Boolean.TRUE if a server accepted the object, Boolean.FALSE if a server
+	 * rejected the object, or null if no server could be reached
+	 */
+	private Boolean disseminateToServer(ApiCaller caller, int serverIndex, AtomicInteger nextSpareServer, String apiMethod, String hexPayload, String successResultCode)
+	{
+		while (serverIndex < caller.getNumberOfServers())
 		{
-			return false;
+			try
+			{
+				Object callResult = caller.callServer(serverIndex, apiMethod, hexPayload);
+				String resultString = callResult.toString();
+				Log.d(TAG, "The result of the '" + apiMethod + "' API call was: " + resultString);
+				
+				if (resultString.equals(successResultCode)) 
+				{
+					return Boolean.TRUE;
+				}
+				else
+				{
+					Log.e(TAG, "While running ServerCommunicator.disseminate(), a server connection was established \n" +
+							"successfully, but the '" + apiMethod + "' API call failed. The result of the api call was: " + resultString);
+					return Boolean.FALSE;
+				}
+			}
+			catch (RuntimeException e)
+			{
+				serverIndex = nextSpareServer.getAndIncrement();
+			}
 		}
+		return null;
 	}
 	
 	/**
 	 * Takes an identifier (ripe hash or tag) and requests the corresponding pubkey from a
 	 * Bitseal server.<br><br>
 	 * 
+	 * If the server does not answer within the usual latency of our servers, the request is
+	 * also sent to another server. The first valid pubkey received is returned, and any
+	 * other requests still in progress are cancelled. <br><br>
+	 * 
 	 * Note: If the pubkey cannot be retrieved after trying all available servers,
 	 * this method will throw a RuntimeException
 	 * 
@@ -410,108 +707,238 @@ public class ServerCommunicator
 	 * 
 	 * @return A Pubkey object containing the requested pubkey
 	 */
-	public Pubkey requestPubkeyFromServer(String addressString, byte[] identifier, int addressVersion)
+	public Pubkey requestPubkeyFromServer(final String addressString, byte[] identifier, final int addressVersion)
 	{
 		Log.d(TAG, "Requesting the pubkey of address " + addressString);
 		
 		// Encode the payload to be sent into hex
-		String hexPayload = ByteFormatter.byteArrayToHexString(identifier);
-
-		// Work out how many servers to poll in this request
-		ApiCaller caller = new ApiCaller();
-		int serversToPoll = caller.getNumberOfServers();
-		if (serversToPoll > MAX_SERVERS_TO_POLL)
+		final String hexPayload = ByteFormatter.byteArrayToHexString(identifier);
+		
+		// If a server has not answered within the hedge delay, the same request is sent to another server
+		long hedgeDelay = ServerClientPool.getInstance().getLatencyPercentile(PUBKEY_REQUEST_HEDGE_PERCENTILE);
+		if (hedgeDelay < 0)
 		{
-			serversToPoll = MAX_SERVERS_TO_POLL;
+			hedgeDelay = DEFAULT_PUBKEY_REQUEST_HEDGE_DELAY;
 		}
+		hedgeDelay = Math.max(hedgeDelay, MIN_PUBKEY_REQUEST_HEDGE_DELAY);
 		
-		// Make the API call
-		for (int i = 0; i < serversToPoll; i++)
+		final ApiCaller caller = new ApiCaller();
+		int numberOfServers = caller.getNumberOfServers();
+		CompletionService<Pubkey> completionService = new ExecutorCompletionService<Pubkey>(PUBKEY_REQUEST_EXECUTOR);
+		ArrayList<Future<Pubkey>> requests = new ArrayList<Future<Pubkey>>();
+		int nextServer = 0;
+		int requestsInProgress = 0;
+		int serversAnswered = 0;
+		boolean hedgingAvailable = true;
+		
+		try
 		{
-			Object callResult = caller.call(API_METHOD_REQUEST_PUBKEY, hexPayload, addressVersion);
-			String resultString = callResult.toString();
-			Log.d(TAG, "The result of the 'request pubkey from server' API call was: " + resultString);
-			
-			if ((resultString.equals(RESULT_CODE_REQUEST_PUBKEY)) == false) // If the call was successful
+			while (true)
 			{
-				try
-				{									
-					// Parse the JSON
-					JSONObject jObject = new JSONObject(resultString);
-					JSONArray jArray = jObject.getJSONArray(JSON_NAME_PUBKEY_PAYLOAD);
-					JSONObject object = jArray.getJSONObject(0); // There should never be more than one result for a 'request pubkey' call
-
-			        String pubkeyHex = object.getString(JSON_NAME_DATA);
-			        
-			        long payloadByteSize = pubkeyHex.length() / 2;
-			        if (payloadByteSize < MAX_PAYLOAD_SIZE_TO_ACCEPT)
-			        {
-						// Decode the pubkey data from hex
-						byte[] pubkeyData = ByteFormatter.hexStringToByteArray(pubkeyHex);
-
-						// Validate the pubkey
-						PubkeyProcessor pubProc = new PubkeyProcessor();
-						Pubkey pubkey = pubProc.reconstructPubkey(pubkeyData, addressString);
-						
-						// Validate the reconstructed pubkey.
-						boolean pubkeyValid = pubProc.validatePubkey(pubkey, addressString);
-						if (pubkeyValid == false)
+				Future<Pubkey> completedRequest = null;
+				
+				// Send the request to another server if we are still waiting for an answer and more servers are available
+				boolean moreServersAvailable = (nextServer < numberOfServers) && (serversAnswered < MAX_SERVERS_TO_POLL);
+				if (moreServersAvailable && requestsInProgress < MAX_CONCURRENT_PUBKEY_REQUESTS && (hedgingAvailable || requestsInProgress == 0))
+				{
+					final int serverIndex = nextServer;
+					Callable<Pubkey> request = new Callable<Pubkey>()
+					{
+						@Override
+						public Pubkey call()
+						{
+							Object callResult = caller.callServer(serverIndex, API_METHOD_REQUEST_PUBKEY, hexPayload, addressVersion);
+							return parsePubkeyResult(callResult.toString(), addressString);
+						}
+					};
+					try
+					{
+						requests.add(completionService.submit(request));
+						nextServer ++;
+						requestsInProgress ++;
+					}
+					catch (RejectedExecutionException e)
+					{
+						if (requestsInProgress > 0)
 						{
-							Log.i(TAG, "While running ServerCommunicator.requestPubkeyFromServer() in order to retrieve the pubkey \n" +
-									"for address " + addressString + ", a pubkey was reconstructed successfully from \n" +
-									"a payload provided by a server, but the resulting pubkey was found to be invalid.");
-							caller.switchToNextServer();
+							// Every thread is busy, so wait for the requests already in progress instead of sending a hedged request
+							Log.i(TAG, "Unable to send a hedged 'request pubkey' API call because every thread is busy.");
+							hedgingAvailable = false;
 						}
 						else
 						{
-							return pubkey;
+							// No other request is in progress, so there is nothing to race against. Make the request on this thread.
+							FutureTask<Pubkey> task = new FutureTask<Pubkey>(request);
+							task.run();
+							completedRequest = task;
+							nextServer ++;
 						}
-			        }
-			        else
-			        {
-			        	long payloadKilobytes = payloadByteSize / 1000;
-			        	
-			        	Log.d(TAG, "While running ServerCommunicator.requestPubkeyFromServer(), we received a payload that was larger than "
-			        			+ "the maximum size we are willing to accept. It has been ignored. \n"
-			        			+ "The size of the rejected payload was " + payloadKilobytes + " kilobytes.");
-			        }
+					}
 				}
-				catch (JSONException e)
+				else if (requestsInProgress == 0)
 				{
-			    	throw new RuntimeException("JSONException occcurred in ServerCommunicator.requestPubkeyFromServer(). \n" +
-							"The exception message was " + e.getLocalizedMessage() + "\n" +
-			    			"The API call result string was: " + resultString);
+					break; // There are no more servers to try
 				}
-			}
-			else
-			{
+				
+				if (completedRequest == null)
+				{
+					// Wait for an answer. If no answer arrives before the hedge delay expires, go round the loop again to send another request.
+					completedRequest = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+					if (completedRequest == null)
+					{
+						moreServersAvailable = (nextServer < numberOfServers) && (serversAnswered < MAX_SERVERS_TO_POLL);
+						if (moreServersAvailable == false || requestsInProgress >= MAX_CONCURRENT_PUBKEY_REQUESTS || hedgingAvailable == false)
+						{
+							completedRequest = completionService.take();
+						}
+						else
+						{
+							Log.i(TAG, "No answer to the 'request pubkey' API call after " + hedgeDelay + " milliseconds. Sending a hedged request to another server.");
+							continue;
+						}
+					}
+					requestsInProgress --;
+				}
+				
 				try
 				{
-					caller.switchToNextServer();
+					Pubkey pubkey = completedRequest.get();
+					if (pubkey != null)
+					{
+						return pubkey;
+					}
+					serversAnswered ++; // The server answered, but did not provide a valid pubkey
 				}
-				catch (RuntimeException e)
+				catch (ExecutionException e)
 				{
-					break;
+					// The server could not be reached. Another server will be tried if one is available.
+					Log.e(TAG, "ExecutionException occurred in ServerCommunicator.requestPubkeyFromServer(). The exception message was:\n" 
+							+ e.getMessage());
 				}
 			}
 		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("InterruptedException occurred in ServerCommunicator.requestPubkeyFromServer(). The exception message was:\n" 
+					+ e.getMessage());
+		}
+		finally
+		{
+			// Cancel any requests which are still in progress
+			for (Future<Pubkey> f : requests)
+			{
+				f.cancel(true);
+			}
+		}
+		
 		// If we tried all the servers and none of them returned the correct pubkey
+		if (serversAnswered > 0)
+		{
+			throw new PubkeyNotFoundException("The servers we asked for the requested pubkey did not have it.");
+		}
 		throw new RuntimeException("Failed to retrieve the requested pubkey after trying all servers.");
 	}
 	
 	/**
-	 * Requests any new msgs for each of our addresses, using the stream number of each address
-	 * and the 'lastMsgCheckTime' value to shape the request. 
+	 * Parses the result of a 'request pubkey' API call, reconstructing and validating
+	 * the pubkey if the server provided one.
+	 * 
+	 * @param resultString - The result of the API call
+	 * @param addressString - A String containing the address which we are trying 
+	 * to retrieve the pubkey of
 	 * 
-	 * @param address - The Bitmessage Address which we want to check for messages sent to.
+	 * @return The validated Pubkey, or null if the server did not provide a valid pubkey
 	 */
-	public void checkServerForNewMsgs()
+	private Pubkey parsePubkeyResult(String resultString, String addressString)
 	{
-		// Work out the time values to use in this request
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
-		long lastMsgCheckTime = prefs.getLong(LAST_MSG_CHECK_TIME, 0);
-		long receivedSinceTime = calculateReceivedSinceTime(lastMsgCheckTime);
-		long receivedBeforeTime = calculateReceivedBeforeTime(receivedSinceTime, MAXIMUM_MSG_CATCH_UP_PERIOD);
+		Log.d(TAG, "The result of the 'request pubkey from server' API call was: " + resultString);
+		
+		if (resultString.equals(RESULT_CODE_REQUEST_PUBKEY)) // If the server did not find the pubkey
+		{
+			return null;
+		}
+		
+		try
+		{									
+			// Parse the JSON
+			JSONObject jObject = new JSONObject(resultString);
+			JSONArray jArray = jObject.getJSONArray(JSON_NAME_PUBKEY_PAYLOAD);
+			JSONObject object = jArray.getJSONObject(0); // There should never be more than one result for a 'request pubkey' call
+
+	        String pubkeyHex = object.getString(JSON_NAME_DATA);
+	        
+	        long payloadByteSize = pubkeyHex.length() / 2;
+	        if (payloadByteSize < MAX_PAYLOAD_SIZE_TO_ACCEPT)
+	        {
+				// Decode the pubkey data from hex
+				byte[] pubkeyData = ByteFormatter.hexStringToByteArray(pubkeyHex);
+
+				// Validate the pubkey
+				PubkeyProcessor pubProc = new PubkeyProcessor();
+				Pubkey pubkey = pubProc.reconstructPubkey(pubkeyData, addressString);
+				
+				// Validate the reconstructed pubkey.
+				boolean pubkeyValid = pubProc.validatePubkey(pubkey, addressString);
+				if (pubkeyValid == false)
+				{
+					Log.i(TAG, "While running ServerCommunicator.requestPubkeyFromServer() in order to retrieve the pubkey \n" +
+							"for address " + addressString + ", a pubkey was reconstructed successfully from \n" +
+							"a payload provided by a server, but the resulting pubkey was found to be invalid.");
+					return null;
+				}
+				else
+				{
+					return pubkey;
+				}
+	        }
+	        else
+	        {
+	        	long payloadKilobytes = payloadByteSize / 1000;
+	        	
+	        	Log.d(TAG, "While running ServerCommunicator.requestPubkeyFromServer(), we received a payload that was larger than "
+	        			+ "the maximum size we are willing to accept. It has been ignored. \n"
+	        			+ "The size of the rejected payload was " + payloadKilobytes + " kilobytes.");
+	        	return null;
+	        }
+		}
+		catch (JSONException e)
+		{
+			Log.e(TAG, "JSONException occcurred in ServerCommunicator.requestPubkeyFromServer(). \n" +
+					"The exception message was " + e.getLocalizedMessage() + "\n" +
+	    			"The API call result string was: " + resultString);
+			return null;
+		}
+	}
+	
+	/**
+	 * Requests any new msgs received by the server between the given times, in
+	 * each of the streams used by our addresses. <br><br>
+	 * 
+	 * <b>NOTE:</b> This method does not save the downloaded msgs to the database and
+	 * does not update the 'last msg check time'. The caller is responsible for
+	 * processing the returned data and then recording that the given time window
+	 * has been checked.
+	 * 
+	 * The msgs are read from each server's response one at a time and passed to the given
+	 * handler as soon as each one has been decoded, rather than being collected together. 
+	 * Any msg larger than the maximum size we accept is skipped without being decoded. 
+	 * 
+	 * @param receivedSinceTime - The 'received since' time to use in the request
+	 * @param receivedBeforeTime - The 'received before' time to use in the request
+	 * @param serverOffset - The number of places to move down the list of servers before
+	 * making the first request. This allows several time windows to be downloaded at once 
+	 * without all of them being requested from the same server. 
+	 * @param handler - The DownloadedMsgHandler to pass each msg to
+	 * 
+	 * @return The number of msgs returned by the server(s)
+	 * 
+	 * @throws InterruptedException If the handler is interrupted while handling a msg
+	 */
+	public int downloadNewMsgs(long receivedSinceTime, long receivedBeforeTime, int serverOffset, DownloadedMsgHandler handler) throws InterruptedException
+	{
+		int msgsDownloaded = 0;
+		long msgBytesDownloaded = 0;
 		
 		// Get the stream numbers of all our addresses
 		PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
@@ -533,7 +960,7 @@ public class ServerCommunicator
 					" - a period of " + TimeUtils.getTimeMessage((receivedBeforeTime - receivedSinceTime)) + ". " + TimeUtils.getLastMsgCheckTimeMessage() + ".");
 			
 			// Work out how many servers to poll in this request
-			ApiCaller caller = new ApiCaller();
+			ApiCaller caller = new ApiCaller(serverOffset);
 			int serversToPoll = caller.getNumberOfServers();
 			if (serversToPoll > MAX_SERVERS_TO_POLL)
 			{
@@ -548,67 +975,15 @@ public class ServerCommunicator
 				
 				if ((resultString.equals(RESULT_CODE_CHECK_FOR_NEW_MSGS)) == false) // If the call was successful
 				{
-					try
-					{
-						ArrayList<String> msgStrings = new ArrayList<String>();
-						
-						// Parse the JSON
-						JSONObject jObject = new JSONObject(resultString);
-						JSONArray jArray = jObject.getJSONArray(JSON_NAME_MSG_PAYLOADS);
-						for (int index = 0; index < jArray.length(); index++)
-						{
-					        JSONObject object = jArray.getJSONObject(index);
-					        String msgHex = object.getString(JSON_NAME_DATA);
-					        
-					        long payloadByteSize = msgHex.length() / 2;
-					        if (payloadByteSize < MAX_PAYLOAD_SIZE_TO_ACCEPT)
-					        {
-					        	msgStrings.add(msgHex);
-					        }
-					        else
-					        {
-					        	long payloadKilobytes = payloadByteSize / 1000;
-					        	
-					        	Log.d(TAG, "While running ServerCommunicator.checkServerForNewMsgs(), we received a payload that was larger than "
-					        			+ "the maximum size we are willing to accept. It has been ignored. \n"
-					        			+ "The size of the rejected payload was " + payloadKilobytes + " kilobytes.");
-					        }					
-						}
-						
-						// For each retrieved msg payload, check whether we have already received it
-						int newPayloads = 0;
-						for (String msgPayloadString : msgStrings)
-						{
-							byte[] msgBytes = ByteFormatter.hexStringToByteArray(msgPayloadString);
-							String msgBase64 = Base64.encodeToString(msgBytes, Base64.DEFAULT);
-							PayloadProvider payProv = PayloadProvider.get(App.getContext());
-							ArrayList<Payload> retrievedPayloads = payProv.searchPayloads(PayloadsTable.COLUMN_PAYLOAD, msgBase64);
-							if (retrievedPayloads.size() == 0)
-							{
-								Payload msgPayload = new Payload();
-								msgPayload.setBelongsToMe(false);
-								msgPayload.setProcessingComplete(false);
-								msgPayload.setType(Payload.OBJECT_TYPE_MSG);
-								msgPayload.setPayload(msgBytes);
-								
-								payProv.addPayload(msgPayload);
-								newPayloads ++;
-							}
-						}
-						
-						Log.d(TAG, "Out of the " + msgStrings.size() + " msg payloads returned by the server, " + newPayloads + " were new.");
-						
-						if ((i + 1) < serversToPoll) // Do not attempt to switch to a new server if we have finished making all our API calls
-						{
-							caller.switchToNextServer();
-						}	
-					}
-					catch (JSONException e)
+					// Read the msgs from the JSON, passing each one to the handler as soon as it has been decoded
+					JsonPayloadReader reader = new JsonPayloadReader(resultString, JSON_NAME_MSG_PAYLOADS, JSON_NAME_DATA, MAX_PAYLOAD_SIZE_TO_ACCEPT);
+					msgsDownloaded += reader.read(handler);
+					msgBytesDownloaded += reader.getPayloadBytesRead();
+					
+					if ((i + 1) < serversToPoll) // Do not attempt to switch to a new server if we have finished making all our API calls
 					{
-				    	throw new RuntimeException("JSONException occcurred in ServerCommunicator.checkServerForNewMsgs(). \n" +
-								"The exception message was " + e.getLocalizedMessage() + "\n" +
-				    			"The API call result string was: " + resultString);
-					}
+						caller.switchToNextServer();
+					}	
 				}
 				else
 				{
@@ -626,11 +1001,9 @@ public class ServerCommunicator
 			}
 		}
 		
-		// After trying all the selected servers, if no exceptions were thrown, update the 'last successful msg check time'
-		SharedPreferences.Editor editor = prefs.edit();
-	    editor.putLong(LAST_MSG_CHECK_TIME, receivedBeforeTime);
-	    editor.commit();
-		Log.i(TAG, "Updated the 'last successful msg check time' value stored in SharedPreferences to " + receivedBeforeTime);
+		Log.d(TAG, "The server(s) returned " + msgsDownloaded + " msg payloads for the period between " + receivedSinceTime + " and " + receivedBeforeTime);
+		adjustMsgCatchUpPeriod(receivedBeforeTime - receivedSinceTime, msgsDownloaded, msgBytesDownloaded);
+		return msgsDownloaded;
 	}
 	
 	/**
@@ -642,7 +1015,7 @@ public class ServerCommunicator
 	 * 
 	 * @return A long containing the calculated 'received since' time value
 	 */
-	private long calculateReceivedSinceTime(long lastCheckTime)
+	public long calculateReceivedSinceTime(long lastCheckTime)
 	{
 		if (lastCheckTime == 0) // If this is the first time we have checked for msgs sent to this address
 		{
@@ -654,6 +1027,85 @@ public class ServerCommunicator
 		}
 	}
 	
+	/**
+	 * Adjusts the msg catch up period according to the number and size of the msgs
+	 * returned for a time window. The new period is the one which would be expected 
+	 * to fill the target proportion of the response budgets, limited so that it can
+	 * grow only gradually but can shrink straight away. The new period is saved in 
+	 * SharedPreferences. 
+	 * 
+	 * @param windowLength - The length of the time window in seconds
+	 * @param payloadCount - The number of msgs returned for the time window
+	 * @param payloadBytes - The total size of the msgs returned for the time window, in bytes
+	 */
+	private void adjustMsgCatchUpPeriod(long windowLength, int payloadCount, long payloadBytes)
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		long minPeriod = prefs.getLong(KEY_MIN_MSG_CATCH_UP_PERIOD, DEFAULT_MIN_MSG_CATCH_UP_PERIOD);
+		long maxPeriod = Math.max(minPeriod, prefs.getLong(KEY_MAX_MSG_CATCH_UP_PERIOD, DEFAULT_MAX_MSG_CATCH_UP_PERIOD));
+		long byteBudget = prefs.getLong(KEY_MSG_RESPONSE_BYTE_BUDGET, DEFAULT_MSG_RESPONSE_BYTE_BUDGET);
+		
+		if (windowLength < minPeriod)
+		{
+			// Short windows are made when we are nearly caught up, and tell us little about how busy the network is
+			return;
+		}
+		
+		synchronized (MSG_CATCH_UP_PERIOD_LOCK)
+		{
+			long currentPeriod = getMsgCatchUpPeriod();
+			
+			// Work out the period which would fill the target proportion of each budget at the rate msgs arrived during this window
+			double idealPeriod = Double.MAX_VALUE;
+			if (payloadBytes > 0)
+			{
+				idealPeriod = Math.min(idealPeriod, (byteBudget * MSG_RESPONSE_BUDGET_TARGET) / (payloadBytes / (double) windowLength));
+			}
+			if (payloadCount > 0)
+			{
+				idealPeriod = Math.min(idealPeriod, (MSG_RESPONSE_PAYLOAD_BUDGET * MSG_RESPONSE_BUDGET_TARGET) / (payloadCount / (double) windowLength));
+			}
+			
+			long newPeriod = (long) Math.min(idealPeriod, currentPeriod * MAX_MSG_CATCH_UP_PERIOD_GROWTH);
+			newPeriod = Math.max(minPeriod, Math.min(newPeriod, maxPeriod));
+			
+			if (newPeriod != currentPeriod)
+			{
+				SharedPreferences.Editor editor = prefs.edit();
+				editor.putLong(MSG_CATCH_UP_PERIOD, newPeriod);
+				editor.commit();
+				Log.d(TAG, "Adjusted the msg catch up period from " + currentPeriod + " to " + newPeriod + " seconds, after receiving " + payloadCount + 
+						" msgs totalling " + (payloadBytes / 1000) + " kilobytes for a period of " + windowLength + " seconds");
+			}
+		}
+	}
+	
+	/**
+	 * Returns the current msg catch up period in seconds, kept within the configured bounds
+	 */
+	private long getMsgCatchUpPeriod()
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+		long minPeriod = prefs.getLong(KEY_MIN_MSG_CATCH_UP_PERIOD, DEFAULT_MIN_MSG_CATCH_UP_PERIOD);
+		long maxPeriod = Math.max(minPeriod, prefs.getLong(KEY_MAX_MSG_CATCH_UP_PERIOD, DEFAULT_MAX_MSG_CATCH_UP_PERIOD));
+		long period = prefs.getLong(MSG_CATCH_UP_PERIOD, DEFAULT_MSG_CATCH_UP_PERIOD);
+		return Math.max(minPeriod, Math.min(period, maxPeriod));
+	}
+	
+	/**
+	 * Calculates the 'received before' time value that should be used when checking for
+	 * new msgs, using the current msg catch up period. 
+	 * 
+	 * @param receivedSinceTime - A long representing 'received since' time value that has
+	 * been calculated for this request
+	 * 
+	 * @return A long containing the calculated 'received before' time value
+	 */
+	public long calculateReceivedBeforeTime(long receivedSinceTime)
+	{
+		return calculateReceivedBeforeTime(receivedSinceTime, getMsgCatchUpPeriod());
+	}
+	
 	/**
 	 * Calculates the 'received before' time value that should be used when checking for
 	 * new objects. 
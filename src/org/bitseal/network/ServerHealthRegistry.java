@@ -0,0 +1,225 @@
+package org.bitseal.network;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+import de.timroes.axmlrpc.XMLRPCClient;
+
+/**
+ * A process-wide record of the recent health of each server we connect to. <br><br>
+ * 
+ * The registry records the recent successes and failures of each server. A server
+ * which has succeeded recently is trusted without a connection test, so that a normal
+ * API call needs only a single round trip. A server which fails repeatedly has its
+ * 'circuit' opened, meaning that it will be tried only after all other servers have
+ * failed. While a server's circuit is open it is probed in the background, and its
+ * circuit is closed again as soon as a probe succeeds.
+ * 
+ * @author Jonathan Coe
+ */
+public class ServerHealthRegistry
+{
+	private final HashMap<String, ServerHealth> healthRecords;
+	private final ScheduledExecutorService probeExecutor;
+	
+	/** The period (in seconds) after a successful call during which a server is trusted without a connection test */
+	private static final long HEALTHY_PERIOD_SECONDS = 300;
+	
+	/** The number of consecutive failures after which a server's circuit is opened */
+	private static final int CIRCUIT_FAILURE_THRESHOLD = 3;
+	
+	/** The initial period (in seconds) for which a server's circuit is held open before it is probed again */
+	private static final long CIRCUIT_OPEN_PERIOD_SECONDS = 120;
+	
+	/** The maximum period (in seconds) for which a server's circuit will be held open before it is probed again */
+	private static final long MAX_CIRCUIT_OPEN_PERIOD_SECONDS = 3600;
+	
+	private static final String TAG = "SERVER_HEALTH_REGISTRY";
+	
+	/**
+	 * The health of a single server
+	 */
+	private static class ServerHealth
+	{
+		private long lastSuccessTime;
+		private long lastFailureTime;
+		private int consecutiveFailures;
+		private long circuitOpenUntil;
+		private boolean probeScheduled;
+	}
+	
+	private static class Holder
+	{
+		private static final ServerHealthRegistry INSTANCE = new ServerHealthRegistry();
+	}
+	
+	private ServerHealthRegistry()
+	{
+		healthRecords = new HashMap<String, ServerHealth>();
+		probeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				Thread t = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "ServerHealthProbe");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Returns the single instance of this class
+	 */
+	public static ServerHealthRegistry getInstance()
+	{
+		return Holder.INSTANCE;
+	}
+	
+	/**
+	 * Returns a boolean indicating whether the given server has succeeded recently,
+	 * and has not failed since. If so, there is no need to test the connection to
+	 * the server before making an API call.
+	 * 
+	 * @param url - The URL of the server
+	 */
+	public synchronized boolean isRecentlyHealthy(URL url)
+	{
+		ServerHealth health = healthRecords.get(url.toString());
+		if (health == null || health.lastSuccessTime == 0)
+		{
+			return false;
+		}
+		return (health.lastSuccessTime >= health.lastFailureTime) && ((getTime() - health.lastSuccessTime) < HEALTHY_PERIOD_SECONDS);
+	}
+	
+	/**
+	 * Returns a boolean indicating whether the given server's circuit is open, meaning
+	 * that the server has failed repeatedly and should only be used as a last resort.
+	 * 
+	 * @param url - The URL of the server
+	 */
+	public synchronized boolean isCircuitOpen(URL url)
+	{
+		ServerHealth health = healthRecords.get(url.toString());
+		if (health == null)
+		{
+			return false;
+		}
+		return health.circuitOpenUntil > getTime();
+	}
+	
+	/**
+	 * Records a successful call to the given server, closing its circuit if it was open
+	 * 
+	 * @param url - The URL of the server
+	 */
+	public synchronized void recordSuccess(URL url)
+	{
+		ServerHealth health = getHealth(url);
+		if (health.circuitOpenUntil > 0)
+		{
+			Log.i(TAG, "Closing the circuit for server " + url.toString());
+		}
+		health.lastSuccessTime = getTime();
+		health.consecutiveFailures = 0;
+		health.circuitOpenUntil = 0;
+	}
+	
+	/**
+	 * Records a failed call to the given server. If the server has now failed repeatedly,
+	 * its circuit is opened and a background probe of the server is scheduled.
+	 * 
+	 * @param url - The URL of the server
+	 * @param username - The API username for the server, used when probing it
+	 * @param password - The API password for the server, used when probing it
+	 */
+	public synchronized void recordFailure(URL url, String username, String password)
+	{
+		ServerHealth health = getHealth(url);
+		health.lastFailureTime = getTime();
+		health.consecutiveFailures ++;
+		
+		if (health.consecutiveFailures >= CIRCUIT_FAILURE_THRESHOLD)
+		{
+			// Double the open period for each further failure, up to the maximum
+			int doublings = Math.min(health.consecutiveFailures - CIRCUIT_FAILURE_THRESHOLD, 5);
+			long openPeriod = Math.min(CIRCUIT_OPEN_PERIOD_SECONDS << doublings, MAX_CIRCUIT_OPEN_PERIOD_SECONDS);
+			health.circuitOpenUntil = getTime() + openPeriod;
+			Log.i(TAG, "Server " + url.toString() + " has failed " + health.consecutiveFailures + " times in a row. Opening its circuit for "
+					+ openPeriod + " seconds.");
+			
+			if (health.probeScheduled == false)
+			{
+				health.probeScheduled = true;
+				scheduleProbe(url, username, password, openPeriod);
+			}
+		}
+	}
+	
+	/**
+	 * Schedules a background connection test of the given server. If the test
+	 * succeeds, the server's circuit is closed. Otherwise the failure is recorded,
+	 * which will schedule a further probe after a longer delay.
+	 */
+	private void scheduleProbe(final URL url, final String username, final String password, long delaySeconds)
+	{
+		probeExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (ServerHealthRegistry.this)
+				{
+					getHealth(url).probeScheduled = false;
+				}
+				if (NetworkHelper.checkInternetAvailability() == false)
+				{
+					// Wait until we are next used rather than counting the lack of a connection against the server
+					return;
+				}
+				
+				Log.i(TAG, "Probing server " + url.toString() + " in the background");
+				XMLRPCClient client = ApiCaller.setUpClient(url, username, password);
+				if (ApiCaller.doConnectionTest(client, url))
+				{
+					recordSuccess(url);
+				}
+				else
+				{
+					recordFailure(url, username, password);
+				}
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+	
+	private ServerHealth getHealth(URL url)
+	{
+		ServerHealth health = healthRecords.get(url.toString());
+		if (health == null)
+		{
+			health = new ServerHealth();
+			healthRecords.put(url.toString(), health);
+		}
+		return health;
+	}
+	
+	private long getTime()
+	{
+		return System.currentTimeMillis() / 1000;
+	}
+}
@@ -22,9 +22,18 @@ public class POWCalculator implements POWListener
 	/** The hash of the message. */
 	private byte[] initialHash;
 	
+	/** The priority of this calculation. Calculations with higher values are more urgent. */
+	private int priority;
+	
+	/** The nonce from which each worker will start or carry on its calculations. */
+	private long[] nextNonces;
+	
 	/** The worker that found a valid nonce. */
 	private POWWorker finishedWorker;
 	
+	/** Set to true when the POWScheduler asks this calculation to pause so that a more urgent one can be run. */
+	private boolean pauseRequested;
+	
 	/** The number of double SHA-512 hashes calculated. */
 	private int doubleHashesCalculated = 0;
 	
@@ -39,56 +48,148 @@ public class POWCalculator implements POWListener
 	{
 		initialHash = newInitialHash;
 	}
+	
+	public void setPriority(int newPriority)
+	{
+		priority = newPriority;
+	}
+	
+	public int getPriority()
+	{
+		return priority;
+	}
 
 	/**
 	 * Do the Proof of Work calculations.<br><br>
 	 * <b>WARNING: This can take a long time.</b><br><br>
 	 * 
-	 * <b>Note: If POW is not completed within the time allowed, this method will return 0.</b>
+	 * The calculations are only run while the POWScheduler allows it. If a more urgent
+	 * calculation is started, this one is paused and then carried on from the nonces
+	 * that its workers had reached once the more urgent one has finished.
 	 * 
 	 * @return A long containing a nonce that fulfils the collision quality condition.
 	 */
-	public synchronized long execute() 
+	public long execute() 
 	{
-		// Create a new worker thread for each CPU core
-		POWWorker[] workers = new POWWorker[Runtime.getRuntime().availableProcessors() * THREADS_PER_CPU];
-		
-		long startTime = System.currentTimeMillis();
-		
-		// Start the worker threads
-		for (int i = 0; i < workers.length; i++) 
+		// Each worker starts from a different nonce and steps over the nonces checked by the other workers
+		int numberOfWorkers = Runtime.getRuntime().availableProcessors() * THREADS_PER_CPU;
+		nextNonces = new long[numberOfWorkers];
+		for (int i = 0; i < numberOfWorkers; i++)
 		{
-			workers[i] = new POWWorker(target, i, workers.length, initialHash, this);
-			new Thread(workers[i], "POW Worker No. " + i).start();
+			nextNonces[i] = i;
 		}
 		
-		// Wait for POW to be completed
-		try 
+		long timeRunning = 0;
+		POWScheduler scheduler = POWScheduler.getInstance();
+		try
 		{
-			wait();
+			while (true)
+			{
+				// Wait until no more urgent calculations are running
+				synchronized (this)
+				{
+					pauseRequested = false;
+				}
+				scheduler.acquire(this);
+				
+				long startTime = System.currentTimeMillis();
+				try
+				{
+					if (runWorkers())
+					{
+						break;
+					}
+				}
+				finally
+				{
+					timeRunning = timeRunning + (System.currentTimeMillis() - startTime);
+					scheduler.release(this);
+				}
+				
+				Log.d(TAG, "POW calculations with priority " + priority + " have been paused");
+			}
 		}
 		catch (InterruptedException e) 
 		{
 			throw new RuntimeException("InterruptedException occurred in POWCalculator.execute()", e);
 		}
 		
-		// Once POW has completed successfully or been interrupted, stop any worker threads that are still running
-		for (POWWorker w : workers) 
-		{
-			w.stop();
-			
-			doubleHashesCalculated = doubleHashesCalculated + w.getDoubleHashesCalculated();
-		}
-		
 		// Calculate the time statistics for this POW session
-		long endTime = System.currentTimeMillis();
-		long totalTime = (endTime - startTime) / 1000;
+		long totalTime = Math.max(timeRunning / 1000, 1);
 		Log.d(TAG, "Double hashes calculated : " + NumberFormat.getIntegerInstance().format(doubleHashesCalculated));
 		Log.d(TAG, "Time taken               : " + TimeUtils.getTimeMessage(totalTime));
 		Log.d(TAG, "Hash rate                : " + NumberFormat.getIntegerInstance().format((doubleHashesCalculated / totalTime)) + " double-hashes per second");
 		
 		return finishedWorker.getNonce();
 	}
+	
+	/**
+	 * Runs the worker threads until either a valid nonce has been found or this
+	 * calculation has been asked to pause. The nonce that each worker reached is
+	 * saved so that the calculations can be carried on later.
+	 * 
+	 * @return A boolean indicating whether or not a valid nonce was found
+	 * 
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private boolean runWorkers() throws InterruptedException
+	{
+		POWWorker[] workers = new POWWorker[nextNonces.length];
+		Thread[] threads = new Thread[nextNonces.length];
+		
+		// Start the worker threads
+		for (int i = 0; i < workers.length; i++) 
+		{
+			workers[i] = new POWWorker(target, nextNonces[i], workers.length, initialHash, this);
+			threads[i] = new Thread(workers[i], "POW Worker No. " + i);
+			threads[i].start();
+		}
+		
+		// Wait for POW to be completed or for a more urgent calculation to be started
+		try
+		{
+			synchronized (this)
+			{
+				while (finishedWorker == null && pauseRequested == false)
+				{
+					wait();
+				}
+			}
+		}
+		finally
+		{
+			// Stop any worker threads that are still running, then wait for them to record the nonce they reached
+			for (POWWorker w : workers) 
+			{
+				w.stop();
+			}
+			for (Thread t : threads)
+			{
+				t.join();
+			}
+		}
+		
+		for (int i = 0; i < workers.length; i++)
+		{
+			nextNonces[i] = workers[i].getNonce();
+			doubleHashesCalculated = doubleHashesCalculated + workers[i].getDoubleHashesCalculated();
+		}
+		
+		synchronized (this)
+		{
+			return finishedWorker != null;
+		}
+	}
+	
+	/**
+	 * Asks this calculation to pause so that a more urgent one can be run. The
+	 * nonces that have been reached are kept.
+	 */
+	public synchronized void requestPause()
+	{
+		pauseRequested = true;
+		notifyAll();
+	}
 
 	@Override
 	public synchronized void powFinished(POWWorker powWorker) 
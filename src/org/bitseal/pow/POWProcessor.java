@@ -29,6 +29,13 @@ public class POWProcessor
 	/** The minimum 'time to live' value to use when checking if a given payload's POW is sufficient */
 	private static final int MINIMUM_TIME_TO_LIVE_VALUE = 300;
 	
+	// The priorities of POW calculations. Calculations with higher values are more urgent, and will
+	// cause any less urgent calculation which is running to be paused until they have finished.
+	public static final int POW_PRIORITY_PUBKEY = 0;
+	public static final int POW_PRIORITY_GETPUBKEY = 1;
+	public static final int POW_PRIORITY_ACK = 2;
+	public static final int POW_PRIORITY_MSG = 3;
+	
 //	/**
 //	 * For testing, use this version of the doPOW method to avoid waiting for POW
 //	 * to be calculated.
@@ -37,10 +44,11 @@ public class POWProcessor
 //	 * @param expirationTime - The expiration time for this payload
 //	 * @param nonceTrialsPerByte - The nonceTrialsPerByte value to use
 //	 * @param extraBytes - The extraBytes value to use
+//	 * @param priority - The priority of the POW calculation, e.g. POW_PRIORITY_MSG
 //	 * 
 //	 * @return A random long that can act as a placeholder for a POW nonce
 //	 */
-//	public long doPOW(byte[] payload, long expirationTime, long nonceTrialsPerByte, long extraBytes)
+//	public long doPOW(byte[] payload, long expirationTime, long nonceTrialsPerByte, long extraBytes, int priority)
 //	{	
 //		byte[] fakePOWNonce = new byte[8];
 //		new SecureRandom().nextBytes(fakePOWNonce);
@@ -49,16 +57,20 @@ public class POWProcessor
 	
 	/**
 	 * Does the POW for the given payload.<br />
-	 * <b>WARNING: Takes a long time!!!</b>
+	 * <b>WARNING: Takes a long time!!!</b><br><br>
+	 * 
+	 * If POW with a higher priority is started by another thread, this POW will be
+	 * paused until that has finished.
 	 * 
 	 * @param payload - A byte[] containing the payload to do the POW for.
 	 * @param expirationTime - The expiration time for this payload
 	 * @param nonceTrialsPerByte - The nonceTrialsPerByte value to use
 	 * @param extraBytes - The extraBytes value to use
+	 * @param priority - The priority of the POW calculation, e.g. POW_PRIORITY_MSG
 	 * 
 	 * @return A long containing the calculated POW nonce. 
 	 */
-	public long doPOW(byte[] payload, long expirationTime, long nonceTrialsPerByte, long extraBytes) 
+	public long doPOW(byte[] payload, long expirationTime, long nonceTrialsPerByte, long extraBytes, int priority) 
 	{
 		long timeToLive = calculateTimeToLiveValue(expirationTime);
 		
@@ -66,12 +78,14 @@ public class POWProcessor
 		long powTarget = calculatePOWTarget(payload.length, nonceTrialsPerByte, extraBytes, timeToLive);
 		powCalc.setTarget(powTarget);
 		powCalc.setInitialHash(SHA512.sha512(payload));
+		powCalc.setPriority(priority);
 		
 		Log.d(TAG, "Doing POW calculations for a payload.\n" +
 				"Payload length        : " + NumberFormat.getIntegerInstance().format(payload.length) + " bytes\n" +
 				"Nonce trials per byte : " + NumberFormat.getIntegerInstance().format(nonceTrialsPerByte) + "\n" +
 				"Extra bytes           : " + NumberFormat.getIntegerInstance().format(extraBytes) + "\n" +
 				"Time to live          : " + TimeUtils.getTimeMessage(timeToLive) + "\n" +
+				"Priority              : " + priority + "\n" +
 				"Target                : " + NumberFormat.getIntegerInstance().format(powTarget));
 		
 		return powCalc.execute();
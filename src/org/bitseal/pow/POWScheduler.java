@@ -0,0 +1,114 @@
+package org.bitseal.pow;
+
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * A Singleton class which decides which POW calculation may use the CPU. <br><br>
+ * 
+ * Each POW calculation already uses every available core, so only one is run
+ * at a time. When a calculation with a higher priority is requested, the one
+ * that is running is asked to pause. It keeps the nonces that it has reached,
+ * and carries on from them once every calculation with a higher priority has
+ * finished. This means that a message which the user has just sent does not
+ * have to wait for the POW for a pubkey or a getpubkey to be completed.
+ * 
+ * @author Jonathan Coe
+ */
+public class POWScheduler
+{
+	/** The calculation which is currently using the CPU, or null if there is none */
+	private POWCalculator runningCalculation;
+	
+	/** The calculations which are waiting to use the CPU, in the order in which they asked for it */
+	private final ArrayList<POWCalculator> waitingCalculations;
+	
+	private static final String TAG = "POW_SCHEDULER";
+	
+	private static class Holder
+	{
+		static final POWScheduler INSTANCE = new POWScheduler();
+	}
+	
+	/**
+	 * Returns a singleton instance of the POWScheduler
+	 */
+	public static POWScheduler getInstance()
+	{
+		return Holder.INSTANCE;
+	}
+	
+	private POWScheduler()
+	{
+		waitingCalculations = new ArrayList<POWCalculator>();
+	}
+	
+	/**
+	 * Blocks until the given calculation may use the CPU. If the calculation which
+	 * is currently running has a lower priority, it is asked to pause.
+	 * 
+	 * @param calculation - The POWCalculator which wants to use the CPU
+	 * 
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public synchronized void acquire(POWCalculator calculation) throws InterruptedException
+	{
+		waitingCalculations.add(calculation);
+		try
+		{
+			if (runningCalculation != null && runningCalculation.getPriority() < calculation.getPriority())
+			{
+				Log.d(TAG, "Pausing a POW calculation with priority " + runningCalculation.getPriority() +
+						" so that one with priority " + calculation.getPriority() + " can be run");
+				runningCalculation.requestPause();
+			}
+			
+			while (runningCalculation != null || getNextCalculation() != calculation)
+			{
+				wait();
+			}
+		}
+		finally
+		{
+			waitingCalculations.remove(calculation);
+		}
+		runningCalculation = calculation;
+		
+		// Wake any other waiting calculations, so that they can check whether they should be next
+		notifyAll();
+	}
+	
+	/**
+	 * Records that the given calculation has stopped using the CPU, either because
+	 * it has finished or because it has paused.
+	 * 
+	 * @param calculation - The POWCalculator which was using the CPU
+	 */
+	public synchronized void release(POWCalculator calculation)
+	{
+		if (runningCalculation == calculation)
+		{
+			runningCalculation = null;
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Returns the waiting calculation which should be run next. This is the one
+	 * with the highest priority, or the one which has waited longest if more than
+	 * one has that priority.
+	 */
+	private POWCalculator getNextCalculation()
+	{
+		POWCalculator nextCalculation = null;
+		for (POWCalculator c : waitingCalculations)
+		{
+			if (nextCalculation == null || c.getPriority() > nextCalculation.getPriority())
+			{
+				nextCalculation = c;
+			}
+		}
+		return nextCalculation;
+	}
+}
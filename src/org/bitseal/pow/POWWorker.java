@@ -98,7 +98,8 @@ public class POWWorker implements Runnable
 
 	/**
 	 * Returns the current nonce. Note that it can be wrong if isRunning()
-	 * returns true or no success was reported.
+	 * returns true. If no success was reported, this is the next nonce that
+	 * the worker would have checked, so a new worker can carry on from it.
 	 * 
 	 * @return The current nonce.
 	 */
@@ -157,6 +158,9 @@ public class POWWorker implements Runnable
 				nonce += increment;
 			}
 		}
+		
+		// Record the nonce we reached, so that the calculations can be carried on if they were stopped early
+		this.nonce = nonce;
 
 		running = false;
 	}
@@ -2,11 +2,15 @@ package org.bitseal.services;
 
 import org.bitseal.util.TimeUtils;
 
+import android.annotation.SuppressLint;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
@@ -15,36 +19,80 @@ import com.commonsware.cwac.wakeful.WakefulIntentService;
  * Used to schedule tasks via the Android AlarmManager. We use
  * the CommonsWare AlarmListener to ensure that these tasks will
  * be completed even when the device is asleep and has to be 
- * 'woken up'. 
+ * 'woken up'. <br><br>
+ * 
+ * Rather than restarting the BackgroundService at a fixed interval,
+ * a single alarm is set for the time at which the next piece of work
+ * is due. This time is worked out by the BackgroundService at the end
+ * of each run and saved via setNextStartTime(). Any UI request or
+ * change in connectivity which starts the BackgroundService before
+ * then will cause the alarm to be set again.
  * 
  * @author Jonathan Coe
  */
 public class AlarmScheduler implements WakefulIntentService.AlarmListener
 {
     /**
-     * The normal amount of time in seconds between each attempt to start the
-     * BackgroundService. e.g. If this value is set to 60, then the BackgroundService
-     * will be restarted roughly every minute.
+     * The minimum amount of time in seconds between each attempt to start the
+     * BackgroundService. This stops the BackgroundService from being restarted
+     * over and over while there is work that is due but cannot yet be done.
+     */
+	public static final int BACKGROUND_SERVICE_MINIMUM_START_INTERVAL = 60;
+    
+    /**
+     * The maximum amount of time in seconds between each attempt to start the
+     * BackgroundService. This is used when the time of the next piece of work
+     * is not known, e.g. when the database is locked.
      */
-	public static final int BACKGROUND_SERVICE_NORMAL_START_INTERVAL = 60;
+	public static final int BACKGROUND_SERVICE_MAXIMUM_START_INTERVAL = 3600;
+	
+	/** A key used to store the time at which the BackgroundService should next be started */
+	private static final String NEXT_BACKGROUND_SERVICE_START_TIME = "nextBackgroundServiceStartTime";
 	
 	private static final String TAG = "ALARM_SCHEDULER";
 	
 	/**
-	 * Schedules an alarm.
+	 * Records the time at which the BackgroundService should next be started. This
+	 * will be used the next time that the alarm is scheduled.
+	 * 
+	 * @param context - A Context object for the currently running application
+	 * @param nextStartTime - The time in seconds at which the next piece of work is due,
+	 * or zero if this is not known
 	 */
+	public static void setNextStartTime(Context context, long nextStartTime)
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putLong(NEXT_BACKGROUND_SERVICE_START_TIME, nextStartTime);
+		editor.commit();
+	}
+	
+	/**
+	 * Schedules an alarm for the next time that the BackgroundService should be
+	 * started, replacing any alarm which was scheduled before.
+	 */
+	@SuppressLint("NewApi")
 	public void scheduleAlarms(AlarmManager manager, PendingIntent intent, Context context)
 	{
-		Log.d(TAG, "Scheduling a restart of the BackgroundService in roughly " + TimeUtils.getTimeMessage(BACKGROUND_SERVICE_NORMAL_START_INTERVAL));		
+		long restartInterval = getRestartInterval(context);
+		Log.d(TAG, "Scheduling a restart of the BackgroundService in " + TimeUtils.getTimeMessage(restartInterval));
 		
 		// Create an intent that will be used to restart the BackgroundService
 		Intent baseIntent = new Intent(context, BackgroundService.class);
 		baseIntent.putExtra(BackgroundService.PERIODIC_BACKGROUND_PROCESSING_REQUEST, BackgroundService.BACKGROUND_PROCESSING_REQUEST);
 		PendingIntent pendingIntent = PendingIntent.getService(context, 0, baseIntent, PendingIntent.FLAG_CANCEL_CURRENT);
 		
-		// Schedule a repeating alarm for restarting the BackgroundService
-		long restartIntervalMilliseconds = BACKGROUND_SERVICE_NORMAL_START_INTERVAL * 1000;
-		manager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + restartIntervalMilliseconds, restartIntervalMilliseconds, pendingIntent);
+		// Schedule a single alarm for restarting the BackgroundService. From API 19 onwards, alarms set with set() may be
+		// delayed so that they can be batched with other alarms, so we use setExact() instead.
+		long triggerAtMilliseconds = SystemClock.elapsedRealtime() + (restartInterval * 1000);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			manager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAtMilliseconds, pendingIntent);
+		}
+		else
+		{
+			manager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAtMilliseconds, pendingIntent);
+		}
 	}
 	
 	/**
@@ -61,11 +109,34 @@ public class AlarmScheduler implements WakefulIntentService.AlarmListener
 	
 	/**
 	 * Sets the maximum time period that can pass between executions of a given
-	 * alarm before that we assume that it has been lost and needs to be re-scheduled.  
+	 * alarm before that we assume that it has been lost and needs to be re-scheduled.
 	 */
 	public long getMaxAge()
 	{
-		// Return double the standard restart interval. CommonsWare states that this is a sensible approach. 
-		return BACKGROUND_SERVICE_NORMAL_START_INTERVAL * 2000;
+		// Return double the maximum restart interval. CommonsWare states that this is a sensible approach.
+		return BACKGROUND_SERVICE_MAXIMUM_START_INTERVAL * 2000;
+	}
+	
+	/**
+	 * Works out how long to wait before restarting the BackgroundService, based
+	 * on the next start time which has been recorded
+	 * 
+	 * @param context - A Context object for the currently running application
+	 * 
+	 * @return The amount of time to wait, in seconds
+	 */
+	private long getRestartInterval(Context context)
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		long nextStartTime = prefs.getLong(NEXT_BACKGROUND_SERVICE_START_TIME, 0);
+		if (nextStartTime == 0)
+		{
+			return BACKGROUND_SERVICE_MAXIMUM_START_INTERVAL;
+		}
+		
+		long restartInterval = nextStartTime - (System.currentTimeMillis() / 1000);
+		restartInterval = Math.max(restartInterval, BACKGROUND_SERVICE_MINIMUM_START_INTERVAL);
+		restartInterval = Math.min(restartInterval, BACKGROUND_SERVICE_MAXIMUM_START_INTERVAL);
+		return restartInterval;
 	}
-}
\ No newline at end of file
+}
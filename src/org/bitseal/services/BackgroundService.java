@@ -1,13 +1,12 @@
 package org.bitseal.services;
-import info.guardianproject.cacheword.CacheWordHandler;
-import info.guardianproject.cacheword.ICacheWordSubscriber;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 
 import org.bitseal.R;
+import org.bitseal.controllers.ReDisseminatePubkeysController;
 import org.bitseal.controllers.TaskController;
+import org.bitseal.controllers.TaskExecutor;
 import org.bitseal.core.App;
 import org.bitseal.core.ObjectProcessor;
 import org.bitseal.core.QueueRecordProcessor;
@@ -24,7 +23,6 @@ import org.bitseal.database.PayloadsTable;
 import org.bitseal.database.PubkeyProvider;
 import org.bitseal.database.PubkeysTable;
 import org.bitseal.database.QueueRecordProvider;
-import org.bitseal.database.QueueRecordsTable;
 import org.bitseal.network.NetworkHelper;
 import org.bitseal.util.ByteUtils;
 import org.bitseal.util.TimeUtils;
@@ -33,7 +31,7 @@ import android.annotation.SuppressLint;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.os.SystemClock;
+import android.os.PowerManager;
 import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
@@ -46,7 +44,7 @@ import com.commonsware.cwac.wakeful.WakefulIntentService;
  * 
  * @author Jonathan Coe
  */
-public class BackgroundService extends WakefulIntentService  implements ICacheWordSubscriber
+public class BackgroundService extends WakefulIntentService
 {
 	/**
 	 * This constant determines whether or not the app will do
@@ -91,12 +89,23 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 	/**
 	 * This 'maximum attempts' constant determines the number of times
 	 * that a task will be attempted before it is abandoned and deleted
-	 * from the queue.
+	 * from the queue. The delay between attempts grows to between 15 and
+	 * 30 minutes (see QueueRecordProcessor), so a task which keeps failing
+	 * is abandoned after roughly 8 hours.
 	 */
-	public static final int MAXIMUM_ATTEMPTS = 500;
+	public static final int MAXIMUM_ATTEMPTS = 25;
+	
+	/** The maximum number of due QueueRecords to process each time the service runs. Any others are processed the next time. */
+	private static final int MAXIMUM_QUEUE_RECORDS_PER_RUN = 50;
 		
 	/** Determines how often the database cleaning routine should be run, in seconds. */
 	private static final long TIME_BETWEEN_DATABASE_CLEANING = 3600;
+	
+	/** Determines how often the periodic tasks, e.g. checking for new msgs, should be run, in seconds. */
+	private static final long TIME_BETWEEN_PERIODIC_TASKS = 300; // Currently set to 5 minutes
+	
+	/** A key used to store the time at which the periodic tasks were last run */
+	private static final String LAST_PERIODIC_TASKS_RUN_TIME = "lastPeriodicTasksRunTime";
 		
 	// Constants to identify requests from the UI
 	public static final String UI_REQUEST = "uiRequest";
@@ -123,8 +132,9 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 	public static final String TASK_PROCESS_OUTGOING_MESSAGE = "processOutgoingMessage";
 	public static final String TASK_DISSEMINATE_MESSAGE = "disseminateMessage";
 	
-    private CacheWordHandler mCacheWordHandler;
-			
+	/** The maximum amount of time in milliseconds to wait for the CacheWordService to report whether the database is locked */
+	private static final long CACHEWORD_CONNECTION_TIMEOUT = 5000;
+	
 	private static final String TAG = "BACKGROUND_SERVICE";
 	
 	public BackgroundService() 
@@ -149,11 +159,12 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 		{
 			Log.i(TAG, "BackgroundService.doWakefulWork() called");
 			
-			// Connect to the CacheWordService and check whether it is locked
-			mCacheWordHandler = new CacheWordHandler(this);
-			mCacheWordHandler.connectToService();
-			SystemClock.sleep(5000); // We need to allow some extra time to connect to the CacheWordService
-			if (mCacheWordHandler.isLocked())
+			// Make sure that the BackgroundService will be started again even if this run does not finish, e.g. because
+			// the process is killed while POW is being done. The alarm will be set for the right time at the end of the run.
+			scheduleFallbackRestart();
+			
+			// Check whether the database is locked. This returns as soon as the CacheWordService has reported its state.
+			if (CacheWordMonitor.getInstance().waitUntilUnlocked(CACHEWORD_CONNECTION_TIMEOUT) == false)
 			{
 				scheduleRestart();
 				closeDatabaseIfLocked();
@@ -171,8 +182,6 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 			{
 				String uiRequest = i.getStringExtra(UI_REQUEST);
 				
-				TaskController taskController = new TaskController();
-				
 				if (uiRequest.equals(UI_REQUEST_SEND_MESSAGE))
 				{
 					Log.i(TAG, "Responding to UI request to run the 'send message' task");
@@ -207,7 +216,7 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 					queueProc.createAndSaveQueueRecord(TASK_SEND_MESSAGE, currentTime + FIRST_ATTEMPT_TTL, 1, messageToSend, null, null);
 					
 					// Attempt to send the message
-					taskController.sendMessage(queueRecord, messageToSend, DO_POW, FIRST_ATTEMPT_TTL, FIRST_ATTEMPT_TTL);
+					startSendMessage(queueRecord, messageToSend, FIRST_ATTEMPT_TTL);
 				}
 				
 				else if (uiRequest.equals(UI_REQUEST_CREATE_IDENTITY))
@@ -239,7 +248,7 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 					QueueRecord queueRecord = queueProc.createAndSaveQueueRecord(TASK_CREATE_IDENTITY, TimeUtils.getUnixTime(), 0, address, null, null);
 					
 					// Attempt to complete the create identity task
-					taskController.createIdentity(queueRecord, DO_POW);
+					startCreateIdentity(queueRecord);
 				}
 			}
 			else
@@ -247,6 +256,9 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 				Log.e(TAG, "BackgroundService.onHandleIntent() was called without a valid extra to specify what the service should do.");
 			}
 			
+			// Wait for the tasks started above to finish, so that the wake lock is held until they are done
+			TaskExecutor.getInstance().awaitIdle();
+			
 			scheduleRestart();
 			closeDatabaseIfLocked();
 		}
@@ -254,26 +266,100 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 		{
 			Log.e(TAG, "Exception occurred in BackgroundService.doWakefulWork(). The exception message was:\n"
 					+ e.getMessage());
+			TaskExecutor.getInstance().awaitIdle();
 			scheduleRestart();
 			closeDatabaseIfLocked();
 		}
+		finally
+		{
+			// Disconnect from the CacheWordService so that it can lock the database once its timeout has passed
+			CacheWordMonitor.getInstance().disconnect();
+		}
 	}
 	
 	/**
-	 * Schedules a restart of the BackgroundService
+	 * Schedules a restart of the BackgroundService after the maximum start interval,
+	 * replacing any restart which was scheduled before
+	 */
+	private void scheduleFallbackRestart()
+	{
+		AlarmScheduler.setNextStartTime(getApplicationContext(), 0);
+		WakefulIntentService.scheduleAlarms(new AlarmScheduler(), getApplicationContext(), true);
+	}
+	
+	/**
+	 * Schedules a restart of the BackgroundService for the time at which the next
+	 * piece of work is due
 	 */
 	private void scheduleRestart()
 	{
+		// If the database is locked then we cannot tell when the next piece of work is due. The BackgroundService
+		// will be started again when the database is unlocked. 
+		long nextStartTime = 0;
+		if (CacheWordMonitor.getInstance().isLocked() == false)
+		{
+			try
+			{
+				nextStartTime = calculateNextStartTime();
+			}
+			catch (Exception e)
+			{
+				Log.e(TAG, "Exception occurred in BackgroundService.scheduleRestart(). The exception message was:\n"
+						+ e.getMessage());
+				nextStartTime = System.currentTimeMillis() / 1000; // Restart as soon as the minimum start interval allows
+			}
+		}
+		
+		AlarmScheduler.setNextStartTime(getApplicationContext(), nextStartTime);
 		WakefulIntentService.scheduleAlarms(new AlarmScheduler(), getApplicationContext(), true);
 	}
 	
+	/**
+	 * Works out when the BackgroundService next needs to run. This is the earliest of
+	 * the trigger time of the next QueueRecord, the next run of the periodic tasks, the
+	 * time at which the next of our pubkeys is due to be disseminated again, and the next
+	 * run of the database cleaning routine. 
+	 * 
+	 * @return The time in seconds at which the next piece of work is due
+	 */
+	private long calculateNextStartTime()
+	{
+		long currentTime = System.currentTimeMillis() / 1000;
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+		
+		long nextStartTime = prefs.getLong(LAST_PERIODIC_TASKS_RUN_TIME, 0) + TIME_BETWEEN_PERIODIC_TASKS;
+		
+		long nextReDisseminationTime = new ReDisseminatePubkeysController().getNextReDisseminationTime();
+		if (nextReDisseminationTime > currentTime)
+		{
+			nextStartTime = Math.min(nextStartTime, nextReDisseminationTime);
+		}
+		
+		long earliestTriggerTime = QueueRecordProvider.get(getApplicationContext()).getEarliestTriggerTime();
+		if (earliestTriggerTime == -1)
+		{
+			// The database cleaning routine is only run when there are no QueueRecords
+			long nextDatabaseCleanTime = prefs.getLong(DatabaseCleaningService.LAST_DATABASE_CLEAN_TIME, 0) + TIME_BETWEEN_DATABASE_CLEANING;
+			nextStartTime = Math.min(nextStartTime, nextDatabaseCleanTime);
+		}
+		else if (earliestTriggerTime > currentTime || NetworkHelper.checkNetworkAvailablility(getApplicationContext()))
+		{
+			// If a QueueRecord is already due but no network is available, it must be waiting for a connection. In
+			// that case the BackgroundService will be started when the device connects to a network. 
+			nextStartTime = Math.min(nextStartTime, earliestTriggerTime);
+		}
+		
+		Log.i(TAG, "The next piece of work is due in " + TimeUtils.getTimeMessage(Math.max(0, nextStartTime - currentTime)));
+		return nextStartTime;
+	}
+	
 	/**
 	 * Checks whether CacheWord is locked. If yes, this routine closes
 	 * the database.
 	 */
 	private void closeDatabaseIfLocked()
 	{
-		if (mCacheWordHandler != null && mCacheWordHandler.isLocked())
+		if (CacheWordMonitor.getInstance().isLocked())
 		{
 			DatabaseContentProvider.closeDatabase();
 		}
@@ -283,270 +369,385 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 	 * Runs periodic background processing. <br><br>
 	 * 
 	 * This method will first check whether there are any QueueRecord objects saved
-	 * in the database. If there are, it will attempt to complete the task recorded
-	 * by each of those QueueRecords in turn. After that, it will run the 'check for
-	 * messages' task. If no QueueRecords are found in the database, it will run the
-	 * 'check for messages' task. 
+	 * in the database which are due to be processed. If there are, it will start the
+	 * task recorded by each of those QueueRecords on the TaskExecutor, so that the
+	 * network work for one task can be done while another task is doing proof of work.
+	 * QueueRecords whose tasks have failed are not loaded again until their retry delay
+	 * has passed. Once all of those tasks have finished, it will run the periodic tasks,
+	 * such as the 'check for messages' task. If no QueueRecords are due, it will run
+	 * the periodic tasks straight away. 
 	 */
 	private void processTasks()
 	{
 		Log.i(TAG, "BackgroundService.processTasks() called");
 		
-		TaskController taskController = new TaskController();
+		// Check the database TaskQueue table for any queued tasks which are due to be processed. Tasks which have
+		// failed are not due again until their retry delay has passed. 
+		QueueRecordProvider queueProv = QueueRecordProvider.get(getApplicationContext());
+		// The records are returned in order of trigger time, so those which have been waiting longest are processed first. 
+		ArrayList<QueueRecord> queueRecords = queueProv.getDueQueueRecords(System.currentTimeMillis() / 1000, MAXIMUM_QUEUE_RECORDS_PER_RUN);
+		Log.i(TAG, "Number of due QueueRecords found: " + queueRecords.size());
 		
-		// Check the database TaskQueue table for any queued tasks
+		if (queueRecords.size() > 0)
+		{
+			// Check each queued task in turn on the database lane of the TaskExecutor. From there, each stage of the task is
+			// run on the lane which suits it, so that network tasks do not have to wait for proof of work to be done. 
+			for (final QueueRecord q : queueRecords)
+			{
+				TaskExecutor.getInstance().execute(TaskExecutor.LANE_DATABASE, new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						processQueueRecord(q);
+					}
+				});
+			}
+			
+			// Wait for the queued tasks to finish before running the periodic tasks. Checking whether pubkey re-dissemination
+			// is due may delete pubkey Payloads and QueueRecords which the queued tasks are still using. 
+			TaskExecutor.getInstance().awaitIdle();
+			runPeriodicTasks();
+		}
+		else // If there are no other tasks that we need to do
+		{
+			runPeriodicTasks();
+			
+			// Check whether it is time to run the 'clean database' routine. If yes then run it. The routine is not run while
+			// any tasks are waiting to be retried, as it may delete the objects they refer to. 
+			if (queueProv.getQueueRecordCount() == 0 && checkIfDatabaseCleaningIsRequired())
+			{
+				Intent intent = new Intent(getBaseContext(), DatabaseCleaningService.class);
+			    intent.putExtra(DatabaseCleaningService.EXTRA_RUN_DATABASE_CLEANING_ROUTINE, true);
+			    startService(intent);
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether the task recorded by a QueueRecord can be carried out, and if
+	 * so starts it on the appropriate lane of the TaskExecutor. QueueRecords which 
+	 * are no longer needed are deleted. 
+	 * 
+	 * @param q - The QueueRecord to process
+	 */
+	private void processQueueRecord(QueueRecord q)
+	{
 		QueueRecordProvider queueProv = QueueRecordProvider.get(getApplicationContext());
 		QueueRecordProcessor queueProc = new QueueRecordProcessor();
-		ArrayList<QueueRecord> queueRecords = queueProv.getAllQueueRecords();
-		Log.i(TAG, "Number of QueueRecords found: " + queueRecords.size());
 		
-		if (queueRecords.size() > 0)
+		try
 		{
-			// Sort the queue records so that we will process the records with the earliest 'last attempt time' first
-			Collections.sort(queueRecords);
+			Log.i(TAG, "Found a QueueRecord with ID " + q.getId() + ", task " + q.getTask() + ", and number of attempts " + q.getAttempts());
+								
+			// First check how many times the task recorded by this QueueRecord has been attempted.
+			// If it has been attempted a very high number of times (all without success) then we
+			// will delete it.
+			int attempts = q.getAttempts();
+			String task = q.getTask();
+			if (attempts > MAXIMUM_ATTEMPTS)
+			{
+				Log.d(TAG, "Deleting a QueueRecord for a task of type " + task + " because it has been attempted " + attempts + " times without success.");
+				
+				if (task.equals(TASK_SEND_MESSAGE))
+				{
+					// Update the status of the Message we were trying to send to indicate that sending has failed
+					MessageProvider msgProv = MessageProvider.get(getApplicationContext());
+					Message messageToSend = msgProv.searchForSingleRecord(q.getObject0Id());
+					String messageStatus = App.getContext().getString(R.string.message_status_sending_failed);
+					MessageStatusHandler.updateMessageStatus(messageToSend, messageStatus);
+				}
+				queueProc.deleteQueueRecord(q);
+				return;
+			}
 			
-			// Process each queued task in turn, removing them from the database if completed successfully
-			for (QueueRecord q : queueRecords)
+			else if (task.equals(TASK_SEND_MESSAGE))
 			{
+				// Attempt to retrieve the Message from the database. If it has been deleted by the user
+				// then we should delete this QueueRecord and abort the sending process.
+				Message messageToSend = null;
 				try
 				{
-					Log.i(TAG, "Found a QueueRecord with ID " + q.getId() + ", task " + q.getTask() + ", and number of attempts " + q.getAttempts());
-										
-					// First check how many times the task recorded by this QueueRecord has been attempted.
-					// If it has been attempted a very high number of times (all without success) then we
-					// will delete it.
-					int attempts = q.getAttempts();
-					String task = q.getTask();
-					if (attempts > MAXIMUM_ATTEMPTS)
-					{
-						Log.d(TAG, "Deleting a QueueRecord for a task of type " + task + " because it has been attempted " + attempts + " times without success.");
-						
-						if (task.equals(TASK_SEND_MESSAGE))
-						{
-							// Update the status of the Message we were trying to send to indicate that sending has failed
-							MessageProvider msgProv = MessageProvider.get(getApplicationContext());
-							Message messageToSend = msgProv.searchForSingleRecord(q.getObject0Id());
-							String messageStatus = App.getContext().getString(R.string.message_status_sending_failed);
-							MessageStatusHandler.updateMessageStatus(messageToSend, messageStatus);
-						}
-						queueProc.deleteQueueRecord(q);
-						continue;
-					}
+					MessageProvider msgProv = MessageProvider.get(getApplicationContext());
+					messageToSend = msgProv.searchForSingleRecord(q.getObject0Id());
+				}
+				catch (RuntimeException e)
+				{
+					Log.i(TAG, "While running BackgroundService.processTasks() and attempting to process a task of type\n"
+							+ TASK_SEND_MESSAGE + ", the attempt to retrieve the Message object from the database failed.\n"
+							+ "The message sending process will therefore be aborted.");
+					queueProv.deleteQueueRecord(q);
+					return;
+				}
 					
-					else if (task.equals(TASK_SEND_MESSAGE))
+				// Check whether there are any existing QueueRecords which should be processed before this one.
+				// If there are, this method will push the trigger time of this QueueRecord further into the future and
+				// any duplicates will be deleted.
+				if (checkAndAdjustQueueRecords(q))
+				{
+					Log.i(TAG, "Ignoring QueueRecord with ID " + q.getId() + " and task " + q.getTask() + " because there is another QueueRecord for "
+							+ "the same task which should be processed first.");
+					return;
+				}
+				
+				// Work out which TTL value we should use, then attempt to send the message
+				if (q.getRecordCount() == 0) // This is the first attempt to send this message, so use the 'first attempt' TTL value
+				{
+					// Attempt to send the message
+					startSendMessage(q, messageToSend, FIRST_ATTEMPT_TTL);
+				}
+				else // This is not the first attempt to send this message, so use the 'subsequent attempts' TTL value
+				{
+					// Unless we have already done so, we need to create a new QueueRecord for re-sending this msg in the event that we do not receive
+					// an acknowledgement for it before its time to live expires. If we do receive the acknowledgement before then, this
+					// QueueRecord will be deleted.
+					if (checkForMatchingSendMsgQueueRecords(q) == false)
 					{
-						// Attempt to retrieve the Message from the database. If it has been deleted by the user
-						// then we should delete this QueueRecord and abort the sending process.
-						Message messageToSend = null;
-						try
-						{
-							MessageProvider msgProv = MessageProvider.get(getApplicationContext());
-							messageToSend = msgProv.searchForSingleRecord(q.getObject0Id());
-						}
-						catch (RuntimeException e)
-						{
-							Log.i(TAG, "While running BackgroundService.processTasks() and attempting to process a task of type\n"
-									+ TASK_SEND_MESSAGE + ", the attempt to retrieve the Message object from the database failed.\n"
-									+ "The message sending process will therefore be aborted.");
-							queueProv.deleteQueueRecord(q);
-							continue;
-						}
-							
-						// Check whether there are any existing QueueRecords which should be processed before this one.
-						// If there are, this method will push the trigger time of this QueueRecord further into the future and
-						// any duplicates will be deleted.
-						if (checkAndAdjustQueueRecords(q))
-						{
-							Log.i(TAG, "Ignoring QueueRecord with ID " + q.getId() + " and task " + q.getTask() + " because there is another QueueRecord for "
-									+ "the same task which should be processed first.");
-							continue;
-						}
-						
-						// Ignore any QueueRecords that have a 'trigger time' in the future
+						Log.i(TAG, "Creating a QueueRecord to re-send message with ID " + messageToSend.getId());
 						long currentTime = System.currentTimeMillis() / 1000;
-						if (q.getTriggerTime() > currentTime)
-						{
-							Log.i(TAG, "Ignoring a QueueRecord for a " + q.getTask() + " task because its trigger time has not been reached yet. "
-									+ "Its trigger time will be reached in roughly " + TimeUtils.getTimeMessage(q.getTriggerTime() - currentTime) + ".");
-							continue;
-						}
-						
-						// Work out which TTL value we should use, then attempt to send the message
-						if (q.getRecordCount() == 0) // This is the first attempt to send this message, so use the 'first attempt' TTL value
-						{
-							// Attempt to send the message
-							taskController.sendMessage(q, messageToSend, DO_POW, FIRST_ATTEMPT_TTL, FIRST_ATTEMPT_TTL);
-						}
-						else // This is not the first attempt to send this message, so use the 'subsequent attempts' TTL value
-						{
-							// Unless we have already done so, we need to create a new QueueRecord for re-sending this msg in the event that we do not receive
-							// an acknowledgement for it before its time to live expires. If we do receive the acknowledgement before then, this
-							// QueueRecord will be deleted.
-							if (checkForMatchingSendMsgQueueRecords(q) == false)
-							{
-								Log.i(TAG, "Creating a QueueRecord to re-send message with ID " + messageToSend.getId());
-								currentTime = System.currentTimeMillis() / 1000;
-								queueProc.createAndSaveQueueRecord(TASK_SEND_MESSAGE, currentTime + SUBSEQUENT_ATTEMPTS_TTL, q.getRecordCount() + 1, messageToSend, null, null);
-							}
-							
-							// Attempt to send the message
-							taskController.sendMessage(q, messageToSend, DO_POW, SUBSEQUENT_ATTEMPTS_TTL, SUBSEQUENT_ATTEMPTS_TTL);
-						}
+						queueProc.createAndSaveQueueRecord(TASK_SEND_MESSAGE, currentTime + SUBSEQUENT_ATTEMPTS_TTL, q.getRecordCount() + 1, messageToSend, null, null);
 					}
 					
-					else if (task.equals(TASK_PROCESS_OUTGOING_MESSAGE))
-					{
-						// Attempt to retrieve the Message from the database. If it has been deleted by the user
-						// then we should abort the sending process. 
-						Message messageToSend = null;
-						try
-						{
-							MessageProvider msgProv = MessageProvider.get(getApplicationContext());
-							messageToSend = msgProv.searchForSingleRecord(q.getObject0Id());
-						}
-						catch (RuntimeException e)
-						{
-							Log.i(TAG, "While running BackgroundService.processTasks() and attempting to process a task of type\n"
-									+ TASK_PROCESS_OUTGOING_MESSAGE + ", the attempt to retrieve the Message object from the database failed.\n"
-									+ "The message sending process will therefore be aborted.");
-							queueProv.deleteQueueRecord(q);
-							continue;
-						}
-						 
-						// Now retrieve the pubkey for the address we are sending the message to
-						PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
-						Pubkey toPubkey = pubProv.searchForSingleRecord(q.getObject1Id());
-							 
-						// Attempt to process and send the message
-						if (q.getRecordCount() == 0)
-						{
-							taskController.processOutgoingMessage(q, messageToSend, toPubkey, DO_POW, FIRST_ATTEMPT_TTL);
-						}
-						else
-						{
-							taskController.processOutgoingMessage(q, messageToSend, toPubkey, DO_POW, SUBSEQUENT_ATTEMPTS_TTL);
-						}
-					}
+					// Attempt to send the message
+					startSendMessage(q, messageToSend, SUBSEQUENT_ATTEMPTS_TTL);
+				}
+			}
+			
+			else if (task.equals(TASK_PROCESS_OUTGOING_MESSAGE))
+			{
+				// Attempt to retrieve the Message from the database. If it has been deleted by the user
+				// then we should abort the sending process. 
+				Message messageToSend = null;
+				try
+				{
+					MessageProvider msgProv = MessageProvider.get(getApplicationContext());
+					messageToSend = msgProv.searchForSingleRecord(q.getObject0Id());
+				}
+				catch (RuntimeException e)
+				{
+					Log.i(TAG, "While running BackgroundService.processTasks() and attempting to process a task of type\n"
+							+ TASK_PROCESS_OUTGOING_MESSAGE + ", the attempt to retrieve the Message object from the database failed.\n"
+							+ "The message sending process will therefore be aborted.");
+					queueProv.deleteQueueRecord(q);
+					return;
+				}
+				 
+				// Now retrieve the pubkey for the address we are sending the message to
+				PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
+				Pubkey toPubkey = pubProv.searchForSingleRecord(q.getObject1Id());
+					 
+				// Attempt to process and send the message
+				if (q.getRecordCount() == 0)
+				{
+					startProcessOutgoingMessage(q, messageToSend, toPubkey, FIRST_ATTEMPT_TTL);
+				}
+				else
+				{
+					startProcessOutgoingMessage(q, messageToSend, toPubkey, SUBSEQUENT_ATTEMPTS_TTL);
+				}
+			}
+			
+			else if (task.equals(TASK_DISSEMINATE_MESSAGE))
+			{
+				// Check whether the msg payload is still valid (its time to live pay have expired)
+				PayloadProvider payProv = PayloadProvider.get(getApplicationContext());
+				Payload msgPayload = payProv.searchForSingleRecord(q.getObject1Id());
+				boolean msgValid = new ObjectProcessor().validateObject(msgPayload.getPayload());
+				if (msgValid == false)
+				{
+					Log.d(TAG, "Found a QueueRecord for a 'disseminate message' task with a msg payload which is due to expire soon.\n"
+							+ "We will now delete this QueueRecord and msg and create a new 'process outgoing message' QueueRecord.");
 					
-					else if (task.equals(TASK_DISSEMINATE_MESSAGE))
-					{
-						// Check whether the msg payload is still valid (its time to live pay have expired)
-						PayloadProvider payProv = PayloadProvider.get(getApplicationContext());
-						Payload msgPayload = payProv.searchForSingleRecord(q.getObject1Id());
-						boolean msgValid = new ObjectProcessor().validateObject(msgPayload.getPayload());
-						if (msgValid == false)
-						{
-							Log.d(TAG, "Found a QueueRecord for a 'disseminate message' task with a msg payload which is due to expire soon.\n"
-									+ "We will now delete this QueueRecord and msg and create a new 'process outgoing message' QueueRecord.");
-							
-							// Delete the msg Payload from the database
-							payProv.deletePayload(msgPayload);
-							
-							// Delete this QueueRecord from the database
-							queueProv.deleteQueueRecord(q);
-							
-							// Retrieve the original Message that we are sending
-							MessageProvider msgProv = MessageProvider.get(getApplicationContext());
-							Message messageToSend = msgProv.searchForSingleRecord(q.getObject0Id());
-							
-							// Retrieve the pubkey for the address we are sending the message to
-							PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
-							Pubkey toPubkey = pubProv.searchForSingleRecord(q.getObject2Id());
-							
-							// Create a new QueueRecord for the 'process outgoing message' task. This will give us a new
-							// msg with an updated expiration time and proof of work
-							queueProc.createAndSaveQueueRecord(BackgroundService.TASK_PROCESS_OUTGOING_MESSAGE, TimeUtils.getUnixTime(), q.getRecordCount(), messageToSend, toPubkey, null);
-							
-							// Move on to the next QueueRecord
-							continue;
-						}
-						
-						// Check whether an Internet connection is available. If not, move on to the next QueueRecord
-						if (NetworkHelper.checkInternetAvailability() == true)
-						{
-							// Retrieve the pubkey for the address we are sending the message to
-							PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
-							Pubkey toPubkey = pubProv.searchForSingleRecord(q.getObject2Id());
-								 
-							// Attempt to send the msg
-							taskController.disseminateMessage(q, msgPayload, toPubkey, DO_POW);
-						}
-						else
-						{
-							MessageProvider messageProv = MessageProvider.get(getApplicationContext());
-							Message messageToSend = messageProv.searchForSingleRecord(q.getObject0Id());
-							MessageStatusHandler.updateMessageStatus(messageToSend, getApplicationContext().getString(R.string.message_status_waiting_for_connection));
-						}
-					}
+					// Delete the msg Payload from the database
+					payProv.deletePayload(msgPayload);
 					
-					else if (task.equals(TASK_CREATE_IDENTITY))
-					{
-						taskController.createIdentity(q, DO_POW);
-					}
+					// Delete this QueueRecord from the database
+					queueProv.deleteQueueRecord(q);
 					
-					else if (task.equals(TASK_DISSEMINATE_PUBKEY))
-					{
-						// Check whether the pubkey payload is still valid (its time to live may have expired)
-						PayloadProvider payProv = PayloadProvider.get(getApplicationContext());
-						Payload pubkeyPayload = payProv.searchForSingleRecord(q.getObject0Id());
-						boolean pubkeyValid = new ObjectProcessor().validateObject(pubkeyPayload.getPayload());
-						if (pubkeyValid)
-						{
-							// Check whether an Internet connection is available. If not, move on to the next QueueRecord
-							if (NetworkHelper.checkInternetAvailability() == true)
-							{
-								// Attempt to disseminate the pubkey payload
-								taskController.disseminatePubkey(q, pubkeyPayload, DO_POW);
-							}
-						}
-						else
-						{
-							Log.d(TAG, "Found a QueueRecord for a 'disseminate pubkey' task with a pubkey payload which has expired or is invalid.\n"
-									+ "We will now delete this QueueRecord and pubkey and create a new 'create identity' QueueRecord.");
-							
-							// Delete this QueueRecord from the database
-							queueProv.deleteQueueRecord(q);
-							
-							// Retrieve the original address for which we are trying to create and disseminate a pubkey
-							AddressProvider addProv = AddressProvider.get(getApplicationContext());
-							Address address = addProv.searchForSingleRecord(pubkeyPayload.getRelatedAddressId());
-							
-							// Create a new QueueRecord for the 'create identity' task. This will give us a new
-							// pubkey with an updated expiration time and proof of work
-							queueProc.createAndSaveQueueRecord(TASK_CREATE_IDENTITY, TimeUtils.getUnixTime(), q.getRecordCount(), address, null, null);
-						}
-					}
+					// Retrieve the original Message that we are sending
+					MessageProvider msgProv = MessageProvider.get(getApplicationContext());
+					Message messageToSend = msgProv.searchForSingleRecord(q.getObject0Id());
 					
-					else
-					{
-						Log.e(TAG, "While running BackgroundService.processTasks(), a QueueRecord with an invalid task " +
-								"field was found. The invalid task field was : " + task);
-					}
+					// Retrieve the pubkey for the address we are sending the message to
+					PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
+					Pubkey toPubkey = pubProv.searchForSingleRecord(q.getObject2Id());
+					
+					// Create a new QueueRecord for the 'process outgoing message' task. This will give us a new
+					// msg with an updated expiration time and proof of work
+					queueProc.createAndSaveQueueRecord(BackgroundService.TASK_PROCESS_OUTGOING_MESSAGE, TimeUtils.getUnixTime(), q.getRecordCount(), messageToSend, toPubkey, null);
+					
+					// Move on to the next QueueRecord
+					return;
 				}
-				catch (Exception e)
+				
+				// Retrieve the pubkey for the address we are sending the message to
+				PubkeyProvider pubProv = PubkeyProvider.get(App.getContext());
+				Pubkey toPubkey = pubProv.searchForSingleRecord(q.getObject2Id());
+					 
+				// Attempt to send the msg
+				startDisseminateMessage(q, msgPayload, toPubkey);
+			}
+			
+			else if (task.equals(TASK_CREATE_IDENTITY))
+			{
+				startCreateIdentity(q);
+			}
+			
+			else if (task.equals(TASK_DISSEMINATE_PUBKEY))
+			{
+				// Check whether the pubkey payload is still valid (its time to live may have expired)
+				PayloadProvider payProv = PayloadProvider.get(getApplicationContext());
+				Payload pubkeyPayload = payProv.searchForSingleRecord(q.getObject0Id());
+				boolean pubkeyValid = new ObjectProcessor().validateObject(pubkeyPayload.getPayload());
+				if (pubkeyValid)
 				{
-					Log.e(TAG, "Exception occurred in BackgroundService.processTasks(). The exception message was:\n"
-							+ e.getMessage());
+					// Attempt to disseminate the pubkey payload
+					startDisseminatePubkey(q, pubkeyPayload);
+				}
+				else
+				{
+					Log.d(TAG, "Found a QueueRecord for a 'disseminate pubkey' task with a pubkey payload which has expired or is invalid.\n"
+							+ "We will now delete this QueueRecord and pubkey and create a new 'create identity' QueueRecord.");
 					
 					// Delete this QueueRecord from the database
 					queueProv.deleteQueueRecord(q);
+					
+					// Retrieve the original address for which we are trying to create and disseminate a pubkey
+					AddressProvider addProv = AddressProvider.get(getApplicationContext());
+					Address address = addProv.searchForSingleRecord(pubkeyPayload.getRelatedAddressId());
+					
+					// Create a new QueueRecord for the 'create identity' task. This will give us a new
+					// pubkey with an updated expiration time and proof of work
+					queueProc.createAndSaveQueueRecord(TASK_CREATE_IDENTITY, TimeUtils.getUnixTime(), q.getRecordCount(), address, null, null);
 				}
 			}
 			
-			runPeriodicTasks();
+			else
+			{
+				Log.e(TAG, "While running BackgroundService.processTasks(), a QueueRecord with an invalid task " +
+						"field was found. The invalid task field was : " + task);
+			}
 		}
-		else // If there are no other tasks that we need to do
+		catch (Exception e)
 		{
-			runPeriodicTasks();
+			Log.e(TAG, "Exception occurred in BackgroundService.processTasks(). The exception message was:\n"
+					+ e.getMessage());
 			
-			// Check whether it is time to run the 'clean database' routine. If yes then run it. 
-			if (checkIfDatabaseCleaningIsRequired())
+			// Delete this QueueRecord from the database
+			queueProv.deleteQueueRecord(q);
+		}
+	}
+	
+	/**
+	 * Starts the 'send message' task for a given QueueRecord on the network lane
+	 * of the TaskExecutor
+	 * 
+	 * @param q - The QueueRecord for the task
+	 * @param messageToSend - The Message to send
+	 * @param timeToLive - The 'time to live' value (in seconds) to use for the msg and any getpubkey
+	 */
+	private void startSendMessage(final QueueRecord q, final Message messageToSend, final long timeToLive)
+	{
+		TaskExecutor.getInstance().execute(TaskExecutor.LANE_NETWORK, new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				Intent intent = new Intent(getBaseContext(), DatabaseCleaningService.class);
-			    intent.putExtra(DatabaseCleaningService.EXTRA_RUN_DATABASE_CLEANING_ROUTINE, true);
-			    startService(intent);
+				new TaskController().sendMessage(q, messageToSend, DO_POW, timeToLive, timeToLive);
 			}
-		}
+		});
+	}
+	
+	/**
+	 * Starts the 'process outgoing message' task for a given QueueRecord on the CPU
+	 * lane of the TaskExecutor
+	 * 
+	 * @param q - The QueueRecord for the task
+	 * @param messageToSend - The Message to process
+	 * @param toPubkey - The pubkey of the address the Message is being sent to
+	 * @param timeToLive - The 'time to live' value (in seconds) to use for the msg
+	 */
+	private void startProcessOutgoingMessage(final QueueRecord q, final Message messageToSend, final Pubkey toPubkey, final long timeToLive)
+	{
+		TaskExecutor.getInstance().execute(TaskExecutor.LANE_CPU, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				new TaskController().processOutgoingMessage(q, messageToSend, toPubkey, DO_POW, timeToLive);
+			}
+		});
+	}
+	
+	/**
+	 * Starts the 'disseminate message' task for a given QueueRecord on the network 
+	 * lane of the TaskExecutor, if an internet connection is available
+	 * 
+	 * @param q - The QueueRecord for the task
+	 * @param msgPayload - The msg Payload to disseminate
+	 * @param toPubkey - The pubkey of the address the msg is being sent to
+	 */
+	private void startDisseminateMessage(final QueueRecord q, final Payload msgPayload, final Pubkey toPubkey)
+	{
+		TaskExecutor.getInstance().execute(TaskExecutor.LANE_NETWORK, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Check whether an Internet connection is available. If not, the QueueRecord will be processed later
+				if (NetworkHelper.checkInternetAvailability() == true)
+				{
+					new TaskController().disseminateMessage(q, msgPayload, toPubkey, DO_POW);
+				}
+				else
+				{
+					MessageProvider messageProv = MessageProvider.get(getApplicationContext());
+					Message messageToSend = messageProv.searchForSingleRecord(q.getObject0Id());
+					MessageStatusHandler.updateMessageStatus(messageToSend, getApplicationContext().getString(R.string.message_status_waiting_for_connection));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Starts the 'create identity' task for a given QueueRecord on the CPU lane of
+	 * the TaskExecutor
+	 * 
+	 * @param q - The QueueRecord for the task
+	 */
+	private void startCreateIdentity(final QueueRecord q)
+	{
+		TaskExecutor.getInstance().execute(TaskExecutor.LANE_CPU, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				new TaskController().createIdentity(q, DO_POW);
+			}
+		});
+	}
+	
+	/**
+	 * Starts the 'disseminate pubkey' task for a given QueueRecord on the network
+	 * lane of the TaskExecutor, if an internet connection is available
+	 * 
+	 * @param q - The QueueRecord for the task
+	 * @param pubkeyPayload - The pubkey Payload to disseminate
+	 */
+	private void startDisseminatePubkey(final QueueRecord q, final Payload pubkeyPayload)
+	{
+		TaskExecutor.getInstance().execute(TaskExecutor.LANE_NETWORK, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Check whether an Internet connection is available. If not, the QueueRecord will be processed later
+				if (NetworkHelper.checkInternetAvailability() == true)
+				{
+					new TaskController().disseminatePubkey(q, pubkeyPayload, DO_POW);
+				}
+			}
+		});
 	}
 	
 	/**
@@ -611,29 +812,18 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 	 */
 	private ArrayList<QueueRecord> getMatchingSendMsgQueueRecords(QueueRecord q)
 	{
-		// First we need to get any QueueRecords which also refer to the msg in question
+		// Get any QueueRecords for the same task which also refer to the msg in question
 		QueueRecordProvider queueProv = QueueRecordProvider.get(getApplicationContext());
-		ArrayList<QueueRecord> matchingRecords = queueProv.searchQueueRecords(QueueRecordsTable.COLUMN_OBJECT_0_ID, String.valueOf(q.getObject0Id()));
+		ArrayList<QueueRecord> matchingRecords = queueProv.searchQueueRecords(q.getTask(), q.getObject0Id());
 				
-		// Now iterate through the list and remove any QueueRecords which are either
-		// i)  The same as the current record
-		// ii) Not QueueRecord for one of the three 'send message' tasks
+		// Remove the current QueueRecord from the list of 'matching' QueueRecords
 		Iterator<QueueRecord> iterator = matchingRecords.iterator();
 		while(iterator.hasNext())
 		{
-			QueueRecord match = iterator.next();
-			
-			// Remove the current QueueRecord from the list of 'matching' QueueRecods
-		    if(match.getId() == (q.getId()))
+		    if(iterator.next().getId() == (q.getId()))
 		    {
 		    	iterator.remove();
 		    }
-			
-			// Filter the list of QueueRecords so that we only consider two QueueRecords to match if they refer to the same task
-		    else if (match.getTask().equals(q.getTask()) == false)
-			{
-		    	iterator.remove();
-			}
 		}
 				
 		return matchingRecords;
@@ -681,7 +871,10 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 	}
 	
 	/**
-	 * Runs the tasks that must be done periodically, e.g. checking for new msgs. 
+	 * Runs the tasks that must be done periodically, e.g. checking for new msgs. The
+	 * tasks are skipped if they were last run less than TIME_BETWEEN_PERIODIC_TASKS ago,
+	 * so that starting the BackgroundService for a QueueRecord or a change in connectivity
+	 * does not run them again. 
 	 */
 	private void runPeriodicTasks()
 	{
@@ -689,8 +882,23 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 		{
 			Log.i(TAG, "BackgroundService.runPeriodicTasks() called");
 			
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+			long currentTime = System.currentTimeMillis() / 1000;
+			long lastRunTime = prefs.getLong(LAST_PERIODIC_TASKS_RUN_TIME, 0);
+			if (lastRunTime <= currentTime && currentTime - lastRunTime < TIME_BETWEEN_PERIODIC_TASKS)
+			{
+				Log.i(TAG, "The periodic tasks were run " + TimeUtils.getTimeMessage(currentTime - lastRunTime) + " ago, so they will not be run again yet");
+				return;
+			}
+			
 			runCheckForMessagesTask();
 			runCheckIfPubkeyReDisseminationIsDueTask();
+			runPrefetchPubkeysTask();
+			
+			// Record the time at which the periodic tasks were run, so that we know when they are next due
+			SharedPreferences.Editor editor = prefs.edit();
+			editor.putLong(LAST_PERIODIC_TASKS_RUN_TIME, currentTime);
+			editor.commit();
 		}
 		catch (Exception e)
 		{
@@ -750,7 +958,9 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 			
 			// Attempt to complete the task
 			TaskController taskController = new TaskController();
-			taskController.checkIfPubkeyDisseminationIsDue(DO_POW);
+			// While the device is idle, pubkeys which will soon expire may be disseminated again early. This spreads out
+			// the POW for pubkeys which would otherwise all expire at the same time. 
+			taskController.checkIfPubkeyDisseminationIsDue(DO_POW, isDeviceIdle());
 		}
 		else
 		{
@@ -758,6 +968,45 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 		}
 	}
 	
+	/**
+	 * This method runs the 'prefetch pubkeys' task, via the TaskController. This
+	 * fetches the pubkeys of the addresses in our address book before they are 
+	 * needed. <br><br>
+	 * 
+	 * So that this does not use the user's mobile data or compete with the app
+	 * while it is in use, the task is only run when we are connected to a wifi
+	 * network or the screen is off. <br><br>
+	 * 
+	 * Note that we do NOT create QueueRecords for this task, because it is a
+	 * default action that will be carried out regularly anyway. 
+	 */
+	private void runPrefetchPubkeysTask()
+	{
+		Log.i(TAG, "BackgroundService.runPrefetchPubkeysTask() called");
+		
+		if (NetworkHelper.checkWifiConnected(getApplicationContext()) == false && isDeviceIdle() == false)
+		{
+			Log.i(TAG, "We are not connected to a wifi network and the device is in use, so we will not run the 'Prefetch pubkeys' task");
+			return;
+		}
+		
+		if (NetworkHelper.checkInternetAvailability() == true)
+		{
+			TaskController taskController = new TaskController();
+			taskController.prefetchPubkeys();
+		}
+	}
+	
+	/**
+	 * Checks whether the device is idle, i.e. whether its screen is off
+	 */
+	@SuppressWarnings("deprecation")
+	private boolean isDeviceIdle()
+	{
+		PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+		return powerManager.isScreenOn() == false;
+	}
+	
 	/**
 	 * Deletes any duplicate pubkeys and any Payloads or QueueRecords that
 	 * correspond to them. 
@@ -824,13 +1073,9 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 						
 						// Delete any QueueRecords for disseminating this Payload
 						QueueRecordProvider queueProv = QueueRecordProvider.get(getApplicationContext());
-						ArrayList<QueueRecord> allQueueRecords = queueProv.getAllQueueRecords();
-						for (QueueRecord q : allQueueRecords)
+						for (QueueRecord q : queueProv.searchQueueRecords(QueueRecordProcessor.TASK_DISSEMINATE_PUBKEY, payload.getId()))
 						{
-							if (q.getTask().equals(QueueRecordProcessor.TASK_DISSEMINATE_PUBKEY) && q.getObject0Id() == payload.getId())
-							{
-								queueProv.deleteQueueRecord(q);
-							}
+							queueProv.deleteQueueRecord(q);
 						}
 					}
 					
@@ -888,36 +1133,4 @@ public class BackgroundService extends WakefulIntentService  implements ICacheWo
 			}
 		}
 	}
-	
-	@Override
-	public void onDestroy()
-	{
-    	super.onDestroy();
-    	if (mCacheWordHandler != null)
-    	{
-    		mCacheWordHandler.disconnectFromService();
-    	}
-	}
-	
-	@SuppressLint("InlinedApi")
-	@Override
-	public void onCacheWordLocked()
-	{
-		Log.i(TAG, "BackgroundService.onCacheWordLocked() called.");
-		// Nothing to do here currently
-	}
-
-	@Override
-	public void onCacheWordOpened()
-	{
-		Log.i(TAG, "BackgroundService.onCacheWordOpened() called.");
-		// Nothing to do here currently
-	}
-	
-	@Override
-	public void onCacheWordUninitialized()
-	{
-		Log.i(TAG, "BackgroundService.onCacheWordUninitialized() called.");
-		// Nothing to do here currently
-	}
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+package org.bitseal.services;
+
+import info.guardianproject.cacheword.CacheWordHandler;
+import info.guardianproject.cacheword.ICacheWordSubscriber;
+
+import org.bitseal.core.App;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * A Singleton class which manages the connection to the CacheWordService used
+ * by background tasks, and keeps track of whether the database is locked. <br><br>
+ * 
+ * Instead of waiting for a fixed amount of time after connecting, a background
+ * task can call waitUntilUnlocked(), which connects to the CacheWordService and
+ * returns as soon as CacheWord has reported its state. <br><br>
+ * 
+ * <b>NOTE:</b> CacheWord will not start its timer for locking the database while
+ * any subscriber is connected to it, so a background task must call disconnect()
+ * once it has finished. 
+ * 
+ * @author Jonathan Coe
+ */
+public class CacheWordMonitor implements ICacheWordSubscriber
+{
+	private final CacheWordHandler mCacheWordHandler;
+	
+	/** The most recent state reported by CacheWord */
+	private int mState;
+	
+	/** Whether or not we are currently connected to the CacheWordService */
+	private boolean mConnected;
+	
+	// The states which CacheWord can report
+	private static final int STATE_UNKNOWN = 0;
+	private static final int STATE_UNINITIALIZED = 1;
+	private static final int STATE_LOCKED = 2;
+	private static final int STATE_OPENED = 3;
+	
+	/** The key for a boolean variable that records whether or not a user-defined database encryption passphrase has been saved */
+	private static final String KEY_DATABASE_PASSPHRASE_SAVED = "databasePassphraseSaved";
+	
+	private static final String TAG = "CACHEWORD_MONITOR";
+	
+	private static class Holder
+	{
+		static final CacheWordMonitor INSTANCE = new CacheWordMonitor();
+	}
+	
+	/**
+	 * Returns a singleton instance of the CacheWordMonitor
+	 */
+	public static CacheWordMonitor getInstance()
+	{
+		return Holder.INSTANCE;
+	}
+	
+	private CacheWordMonitor()
+	{
+		mState = STATE_UNKNOWN;
+		mCacheWordHandler = new CacheWordHandler(App.getContext(), this);
+	}
+	
+	/**
+	 * Connects to the CacheWordService if we are not already connected, then
+	 * waits until CacheWord has reported whether the database is locked, for up
+	 * to the given amount of time. <br><br>
+	 * 
+	 * If the user has not set a database encryption passphrase, the database is
+	 * unlocked automatically with the default passphrase, so in that case we keep
+	 * waiting until it has been opened. <br><br>
+	 * 
+	 * <b>NOTE:</b> The CacheWord callbacks are made on the main thread, so this
+	 * method must not be called from the main thread.
+	 * 
+	 * @param timeout - The maximum amount of time to wait, in milliseconds
+	 * 
+	 * @return A boolean indicating whether or not the database is unlocked
+	 */
+	public synchronized boolean waitUntilUnlocked(long timeout)
+	{
+		if (mConnected == false)
+		{
+			mState = STATE_UNKNOWN;
+			mCacheWordHandler.connectToService();
+			mConnected = true;
+		}
+		
+		long deadline = SystemClock.elapsedRealtime() + timeout;
+		while (isStateFinal() == false)
+		{
+			long remaining = deadline - SystemClock.elapsedRealtime();
+			if (remaining <= 0)
+			{
+				Log.e(TAG, "Timed out while waiting for the CacheWordService to report whether the database is locked");
+				break;
+			}
+			try
+			{
+				wait(remaining);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return mCacheWordHandler.isLocked() == false;
+	}
+	
+	/**
+	 * Disconnects from the CacheWordService, so that CacheWord can lock the database
+	 * once its timeout has passed. Does nothing if we are not connected.
+	 */
+	public synchronized void disconnect()
+	{
+		if (mConnected)
+		{
+			mCacheWordHandler.disconnectFromService();
+			mConnected = false;
+			mState = STATE_UNKNOWN;
+		}
+	}
+	
+	/**
+	 * Returns a boolean indicating whether or not the database is currently locked
+	 */
+	public boolean isLocked()
+	{
+		return mCacheWordHandler.isLocked();
+	}
+	
+	/**
+	 * Returns a boolean indicating whether the state most recently reported by
+	 * CacheWord is one which will not change without action from the user
+	 */
+	private boolean isStateFinal()
+	{
+		if (mState == STATE_OPENED)
+		{
+			return true;
+		}
+		else if (mState == STATE_UNKNOWN)
+		{
+			return false;
+		}
+		else
+		{
+			// If the user has not set a passphrase, the database will be unlocked with the default passphrase shortly
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getContext());
+			return prefs.getBoolean(KEY_DATABASE_PASSPHRASE_SAVED, false);
+		}
+	}
+	
+	/**
+	 * Records the state reported by CacheWord and wakes any threads which are
+	 * waiting for it
+	 */
+	private synchronized void setState(int state)
+	{
+		mState = state;
+		notifyAll();
+	}
+	
+	@SuppressLint("InlinedApi")
+	@Override
+	public void onCacheWordLocked()
+	{
+		Log.i(TAG, "CacheWordMonitor.onCacheWordLocked() called.");
+		setState(STATE_LOCKED);
+	}
+	
+	@Override
+	public void onCacheWordOpened()
+	{
+		Log.i(TAG, "CacheWordMonitor.onCacheWordOpened() called.");
+		setState(STATE_OPENED);
+	}
+	
+	@Override
+	public void onCacheWordUninitialized()
+	{
+		Log.i(TAG, "CacheWordMonitor.onCacheWordUninitialized() called.");
+		setState(STATE_UNINITIALIZED);
+	}
+}
@@ -0,0 +1,42 @@
+package org.bitseal.services;
+
+import org.bitseal.network.NetworkHelper;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+/**
+ * When the device connects to a network, this class starts the
+ * BackgroundService with a request to do any pending background
+ * processing. <br><br>
+ * 
+ * Work which is waiting for an internet connection does not cause
+ * the BackgroundService to be restarted at regular intervals, so
+ * this is what allows that work to be done as soon as a connection
+ * becomes available.
+ * 
+ * @author Jonathan Coe
+ */
+public class ConnectivityChangeReceiver extends BroadcastReceiver
+{
+	private static final String TAG = "CONNECTIVITY_CHANGE_RECEIVER";
+	
+	@Override
+	public void onReceive(Context context, Intent i)
+	{
+		// Ignore the broadcasts sent when the device loses its connection
+		if (i.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false) || NetworkHelper.checkNetworkAvailablility(context) == false)
+		{
+			return;
+		}
+		
+		Log.i(TAG, "The device has connected to a network. Starting the BackgroundService.");
+		
+		Intent intent = new Intent(context, BackgroundService.class);
+		intent.putExtra(BackgroundService.PERIODIC_BACKGROUND_PROCESSING_REQUEST, BackgroundService.BACKGROUND_PROCESSING_REQUEST);
+		BackgroundService.sendWakefulWork(context, intent);
+	}
+}
@@ -1,5 +1,6 @@
 package org.bitseal.services;
 
+import org.bitseal.core.PubkeyCache;
 import org.bitseal.database.PayloadProvider;
 
 import android.app.IntentService;
@@ -18,6 +19,9 @@ public class DatabaseCleaningService extends IntentService
 	/** This is the maximum age of an object (in seconds) that PyBitmessage will accept. */
 	private static final int PYBITMESSAGE_NEW_OBJECT_ACCEPTANCE_PERIOD = 216000;
 	
+	/** The amount of time (in seconds) for which we keep the pubkeys of other people after they were last used */
+	private static final long UNUSED_PUBKEY_RETENTION_PERIOD = 2592000; // Currently set to 30 days
+	
 	public static final String TAG = "DATABASE_CLEANING_SERVICE";
 	
 	public DatabaseCleaningService()
@@ -52,6 +56,10 @@ public class DatabaseCleaningService extends IntentService
 			PayloadProvider payProv = PayloadProvider.get(getApplicationContext());
 			payProv.deletePayloadsCreatedBefore(deletionTime);
 			
+			// Delete the pubkeys of other people which have not been used for the time defined by UNUSED_PUBKEY_RETENTION_PERIOD,
+			// unless they belong to someone in our address book
+			PubkeyCache.getInstance().deleteUnusedPubkeys(currentTime - UNUSED_PUBKEY_RETENTION_PERIOD);
+			
 			// Update the 'last data clean time'
 			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
 			SharedPreferences.Editor editor = prefs.edit();
@@ -29,6 +29,16 @@ public class MessageStatusHandler
 		message.setStatus(status);
 		MessageProvider msgProv = MessageProvider.get(App.getContext());
 		msgProv.updateMessage(message);	
+		sendUIUpdateBroadcast();
+	}
+	
+	/**
+	 * Prompts the UI to refresh itself. Used when a Message's status has
+	 * been updated in the database by some other means, e.g. as part of a
+	 * batch of database operations. 
+	 */
+	public static void sendUIUpdateBroadcast()
+	{
 		Intent intent = new Intent(UI_NOTIFICATION);
 		App.getContext().sendBroadcast(intent);
 	}
@@ -0,0 +1,85 @@
+package org.bitseal.util;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes sure that only one piece of work is in progress for each key at any
+ * one time. <br><br>
+ * 
+ * If work is requested for a key while earlier work for the same key is still
+ * in progress, no new work is started. The caller instead waits for the earlier
+ * work to finish and receives the same result, or the same exception. Once the
+ * work has finished, the next request for that key will start new work.
+ * 
+ * @param <T> - The type of the result of the work
+ * 
+ * @author Jonathan Coe
+ */
+public class SingleFlight<T>
+{
+	private final HashMap<String, FutureTask<T>> workInProgress = new HashMap<String, FutureTask<T>>();
+	
+	/**
+	 * Carries out the given work, unless work for the same key is already in
+	 * progress, in which case the result of that work is returned instead.
+	 * 
+	 * @param key - A String identifying the work
+	 * @param work - The work to carry out if none is in progress for this key
+	 * 
+	 * @return The result of the work
+	 * 
+	 * @throws RuntimeException If the work failed, or the thread was interrupted
+	 * while waiting for it
+	 */
+	public T execute(String key, Callable<T> work)
+	{
+		FutureTask<T> task;
+		boolean startedHere = false;
+		synchronized (workInProgress)
+		{
+			task = workInProgress.get(key);
+			if (task == null)
+			{
+				task = new FutureTask<T>(work);
+				workInProgress.put(key, task);
+				startedHere = true;
+			}
+		}
+		
+		if (startedHere)
+		{
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				synchronized (workInProgress)
+				{
+					workInProgress.remove(key);
+				}
+			}
+		}
+		
+		try
+		{
+			return task.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Exception occurred in SingleFlight.execute(). The exception message was:\n" + e.getCause().getMessage(), e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("InterruptedException occurred in SingleFlight.execute(). The exception message was:\n" + e.getMessage());
+		}
+	}
+}